@@ -0,0 +1,68 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Router route lookup: longest-prefix match of a destination IP sitting in a frame buffer.
+ * Routes are {@code region<r>.site<s>} prefixes plus a default route; destinations cycle
+ * through a fixed set of hosts, a quarter of which fall through to the default route.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FibBenchmark {
+    private static final int DESTINATIONS = 1024;
+
+    @Param({"16", "1024", "65536"})
+    public int tableSize;
+
+    private Object fib;
+    private ByteBuffer addresses;
+    private final int[] offsets = new int[DESTINATIONS];
+    private final int[] lengths = new int[DESTINATIONS];
+    private int next;
+
+    @Setup
+    public void setup() throws Throwable {
+        fib = (Object) Tree.NEW_FIB.invokeExact();
+        Tree.FIB_INSERT.invokeExact(fib, "*", (Object) "default");
+        for (int i = 0; i < tableSize; i++) {
+            Tree.FIB_INSERT.invokeExact(fib, prefix(i), (Object) ("route" + i));
+        }
+
+        addresses = ByteBuffer.allocateDirect(DESTINATIONS * 32);
+        for (int i = 0; i < DESTINATIONS; i++) {
+            // Every fourth destination is in a region that has no route
+            String prefix = i % 4 == 3 ? "unrouted.site" + i : prefix(i * 7919 % tableSize);
+            byte[] address = (prefix + ".H" + i).getBytes(StandardCharsets.UTF_8);
+            offsets[i] = addresses.position();
+            lengths[i] = address.length;
+            addresses.put(address);
+        }
+    }
+
+    private static String prefix(int i) {
+        return "region" + (i / 256) + ".site" + (i % 256);
+    }
+
+    @Benchmark
+    public Object lookup() throws Throwable {
+        int i = next;
+        next = (i + 1) & (DESTINATIONS - 1);
+        return (Object) Tree.FIB_LOOKUP.invokeExact(fib, addresses, offsets[i], lengths[i]);
+    }
+}
@@ -0,0 +1,71 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Router fast path: finding the cached header and outgoing port for a parsed frame's flow.
+ * This replaced resolving the next hop to a port per frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FlowCacheBenchmark {
+    private static final int FRAMES = 256;
+
+    @Param({"16", "1024", "4096"})
+    public int flows;
+
+    private Object cache;
+    private final ByteBuffer[] frames = new ByteBuffer[FRAMES];
+    private final Object[] views = new Object[FRAMES];
+    private int next;
+
+    @Setup
+    public void setup() throws Throwable {
+        cache = (Object) Tree.NEW_FLOW_CACHE.invokeExact(flows);
+        Object table = new Object();
+        Tree.FLOW_VALIDATE.invokeExact(cache, table);
+
+        Object binary = Tree.format("BINARY");
+        Object view = (Object) Tree.NEW_VIEW.invokeExact();
+        for (int i = 0; i < flows; i++) {
+            ByteBuffer frame = (ByteBuffer) Tree.ENCODE.invokeExact(binary, "A", "R1",
+                    "subnet1.H" + i, "subnet3.H" + (i * 31 % flows), "payload");
+            if (!(boolean) Tree.PARSE.invokeExact(frame, view, false)) {
+                throw new IllegalStateException("Unparseable frame for flow " + i);
+            }
+            Tree.FLOW_PUT.invokeExact(cache, view, (Object) ("route" + i));
+        }
+
+        // Frames whose flows are all cached, each with its own parsed view
+        for (int i = 0; i < FRAMES; i++) {
+            int flow = i * 7919 % flows;
+            frames[i] = (ByteBuffer) Tree.ENCODE.invokeExact(binary, "A", "R1",
+                    "subnet1.H" + flow, "subnet3.H" + (flow * 31 % flows), "payload");
+            views[i] = (Object) Tree.NEW_VIEW.invokeExact();
+            if (!(boolean) Tree.PARSE.invokeExact(frames[i], views[i], false)) {
+                throw new IllegalStateException("Unparseable frame " + i);
+            }
+        }
+    }
+
+    @Benchmark
+    public Object lookupHit() throws Throwable {
+        int i = next;
+        next = (i + 1) & (FRAMES - 1);
+        return (Object) Tree.FLOW_LOOKUP.invokeExact(cache, views[i]);
+    }
+}
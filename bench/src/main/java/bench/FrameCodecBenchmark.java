@@ -0,0 +1,64 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Header parsing and the MAC rewrite a router does on every frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameCodecBenchmark {
+    @Param({"BINARY", "LEGACY"})
+    public String format;
+
+    @Param({"16", "512"})
+    public int payloadSize;
+
+    private ByteBuffer template;
+    private ByteBuffer frame;
+    private Object view;
+    private final byte[] routerMac = "R1".getBytes(StandardCharsets.UTF_8);
+    private final byte[] nextHopMac = "R2".getBytes(StandardCharsets.UTF_8);
+
+    @Setup
+    public void setup() throws Throwable {
+        template = (ByteBuffer) Tree.ENCODE.invokeExact(Tree.format(format),
+                "A", "R1", "subnet1.A", "subnet3.C", "x".repeat(payloadSize));
+        frame = ByteBuffer.allocateDirect(template.remaining() + 64);
+        frame.put(template.duplicate()).flip();
+        view = (Object) Tree.NEW_VIEW.invokeExact();
+    }
+
+    @Benchmark
+    public boolean parse() throws Throwable {
+        frame.position(0);
+        return (boolean) Tree.PARSE.invokeExact(frame, view, true);
+    }
+
+    /**
+     * Parse plus rewrite. The frame is restored from the template first, which is a copy of
+     * the frame's size and part of every measured operation.
+     */
+    @Benchmark
+    public boolean parseAndRewrite() throws Throwable {
+        frame.clear();
+        frame.put(template.duplicate()).flip();
+        if (!(boolean) Tree.PARSE.invokeExact(frame, view, true)) return false;
+        return (boolean) Tree.REWRITE_MACS.invokeExact(view, routerMac, nextHopMac);
+    }
+}
@@ -0,0 +1,105 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Switch MAC learning and lookup with probe keys pointing into a buffer, as on the forwarding
+ * path. Learning an already known MAC is the common case once the network has settled.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MacTableBenchmark {
+    private static final int PROBES = 1024;
+
+    @Param({"16", "1024", "65536"})
+    public int tableSize;
+
+    @Param({"HEAP", "OFFHEAP"})
+    public String backend;
+
+    private Object table;
+    private Object probe;
+    private final Object[] ports = new Object[8];
+    private ByteBuffer known;
+    private ByteBuffer unknown;
+    private final int[] offsets = new int[PROBES];
+    private final int[] unknownOffsets = new int[PROBES];
+    private final int[] lengths = new int[PROBES];
+    private final Object[] knownPorts = new Object[PROBES];
+    private final int[] unknownLengths = new int[PROBES];
+    private int next;
+
+    @Setup
+    public void setup() throws Throwable {
+        // Room to spare, so no MAC of the table is evicted; no aging, as the table is never ticked
+        table = (Object) Tree.NEW_MAC_TABLE.invokeExact(Tree.macBackend(backend), 2 * tableSize, 0);
+        probe = (Object) Tree.MAC_KEY_OF.invokeExact("");
+        for (int i = 0; i < ports.length; i++) {
+            ports[i] = "127.0.0.1:" + (6000 + i);
+        }
+        for (int i = 0; i < tableSize; i++) {
+            Object key = (Object) Tree.MAC_KEY_OF.invokeExact("H" + i);
+            if (!(boolean) Tree.MAC_LEARN.invokeExact(table, key, ports[i % ports.length])) {
+                throw new IllegalStateException("Duplicate MAC H" + i);
+            }
+        }
+
+        known = ByteBuffer.allocateDirect(PROBES * 16);
+        unknown = ByteBuffer.allocateDirect(PROBES * 16);
+        for (int i = 0; i < PROBES; i++) {
+            int host = i * 7919 % tableSize;
+            byte[] mac = ("H" + host).getBytes(StandardCharsets.UTF_8);
+            knownPorts[i] = ports[host % ports.length];
+            offsets[i] = known.position();
+            lengths[i] = mac.length;
+            known.put(mac);
+
+            byte[] missing = ("X" + i).getBytes(StandardCharsets.UTF_8);
+            unknownOffsets[i] = unknown.position();
+            unknownLengths[i] = missing.length;
+            unknown.put(missing);
+        }
+    }
+
+    private int nextIndex() {
+        int i = next;
+        next = (i + 1) & (PROBES - 1);
+        return i;
+    }
+
+    @Benchmark
+    public boolean learnKnown() throws Throwable {
+        int i = nextIndex();
+        Object key = (Object) Tree.MAC_KEY_SET.invokeExact(probe, known, offsets[i], lengths[i]);
+        return (boolean) Tree.MAC_LEARN.invokeExact(table, key, knownPorts[i]);
+    }
+
+    @Benchmark
+    public Object lookupHit() throws Throwable {
+        int i = nextIndex();
+        Object key = (Object) Tree.MAC_KEY_SET.invokeExact(probe, known, offsets[i], lengths[i]);
+        return (Object) Tree.MAC_LOOKUP.invokeExact(table, key);
+    }
+
+    @Benchmark
+    public Object lookupMiss() throws Throwable {
+        int i = nextIndex();
+        Object key = (Object) Tree.MAC_KEY_SET.invokeExact(probe, unknown, unknownOffsets[i], unknownLengths[i]);
+        return (Object) Tree.MAC_LOOKUP.invokeExact(table, key);
+    }
+}
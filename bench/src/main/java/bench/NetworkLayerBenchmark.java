@@ -0,0 +1,69 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * One datagram sent from one NetworkLayer to another over loopback and received, on a single
+ * thread. Measures the per-frame cost of the socket path including the kernel.
+ * The ports are fixed and must be free on the machine running the benchmark.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NetworkLayerBenchmark {
+    private static final int SENDER_PORT = 47001;
+    private static final int RECEIVER_PORT = 47002;
+
+    @Param({"64", "1024"})
+    public int frameSize;
+
+    private Object sender;
+    private Object receiver;
+    private InetSocketAddress receiverAddress;
+    private ByteBuffer frame;
+    private ByteBuffer rxBuffer;
+
+    @Setup(Level.Trial)
+    public void setup() throws Throwable {
+        sender = (Object) Tree.NEW_NETWORK_LAYER.invokeExact(SENDER_PORT);
+        receiver = (Object) Tree.NEW_NETWORK_LAYER.invokeExact(RECEIVER_PORT);
+        receiverAddress = new InetSocketAddress("127.0.0.1", RECEIVER_PORT);
+
+        frame = (ByteBuffer) Tree.ACQUIRE_BUFFER.invokeExact(sender);
+        frame.clear();
+        for (int i = 0; i < frameSize; i++) {
+            frame.put((byte) i);
+        }
+        frame.flip();
+        rxBuffer = (ByteBuffer) Tree.ACQUIRE_BUFFER.invokeExact(receiver);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Throwable {
+        Tree.CLOSE.invokeExact(sender);
+        Tree.CLOSE.invokeExact(receiver);
+    }
+
+    @Benchmark
+    public InetSocketAddress roundTrip() throws Throwable {
+        Tree.SEND.invokeExact(sender, frame, receiverAddress);
+        rxBuffer.clear();
+        return (InetSocketAddress) Tree.RECEIVE.invokeExact(receiver, rxBuffer);
+    }
+}
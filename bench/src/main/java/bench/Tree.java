@@ -0,0 +1,140 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Handles to the device classes, which live in the default package and cannot be named from
+ * here. Every handle is adapted so that device types appear as {@code Object}; the benchmarks
+ * call them with {@code invokeExact}. The handles are static finals, so the JIT inlines through
+ * them and the measured code is the same as a direct call.
+ */
+final class Tree {
+    static final Class<?> FIB = type("Fib");
+    static final Class<?> FLOW_CACHE = type("FlowCache");
+    static final Class<?> FRAME_CODEC = type("FrameCodec");
+    static final Class<?> VIEW = type("FrameCodec$View");
+    static final Class<?> FORMAT = type("FrameCodec$Format");
+    static final Class<?> MAC_KEY = type("MacKey");
+    static final Class<?> MAC_TABLE = type("MacTable");
+    static final Class<?> MAC_BACKEND = type("MacTable$Backend");
+    static final Class<?> NETWORK_LAYER = type("NetworkLayer");
+
+    static final int SRC_MAC = 0;
+    static final int DEST_MAC = 1;
+    static final int SRC_IP = 2;
+    static final int DEST_IP = 3;
+
+    // () -> Fib; (Fib, String prefix, Object route); (Fib, buf, off, len) -> route
+    static final MethodHandle NEW_FIB = constructor(FIB);
+    static final MethodHandle FIB_INSERT = virtual(FIB, "insert", void.class, String.class, Object.class);
+    static final MethodHandle FIB_LOOKUP = virtual(FIB, "lookup", Object.class, ByteBuffer.class, int.class, int.class);
+
+    // (int capacity) -> FlowCache; (cache, table); (cache, View) -> entry; (cache, View, entry)
+    static final MethodHandle NEW_FLOW_CACHE = constructor(FLOW_CACHE, int.class);
+    static final MethodHandle FLOW_VALIDATE = virtual(FLOW_CACHE, "validate", void.class, Object.class);
+    static final MethodHandle FLOW_LOOKUP = virtual(FLOW_CACHE, "lookup", Object.class, VIEW);
+    static final MethodHandle FLOW_PUT = virtual(FLOW_CACHE, "put", void.class, VIEW, Object.class);
+
+    // () -> View; (buf, View, acceptLegacy) -> ok; (View, srcMac, destMac) -> ok
+    static final MethodHandle NEW_VIEW = constructor(VIEW);
+    static final MethodHandle PARSE = statik(FRAME_CODEC, "parse", boolean.class, ByteBuffer.class, VIEW, boolean.class);
+    static final MethodHandle REWRITE_MACS = statik(FRAME_CODEC, "rewriteMacs", boolean.class, VIEW, byte[].class, byte[].class);
+    // (Format, srcMac, destMac, srcIp, destIp, payload) -> frame
+    static final MethodHandle ENCODE = statik(FRAME_CODEC, "encode", ByteBuffer.class,
+            FORMAT, String.class, String.class, String.class, String.class, String.class);
+
+    // (String) -> MacKey; (key, buf, off, len) -> key; (key) -> owned copy
+    static final MethodHandle MAC_KEY_OF = statik(MAC_KEY, "of", MAC_KEY, String.class);
+    static final MethodHandle MAC_KEY_SET = virtual(MAC_KEY, "set", MAC_KEY, ByteBuffer.class, int.class, int.class);
+    static final MethodHandle MAC_KEY_COPY = virtual(MAC_KEY, "copy", MAC_KEY);
+
+    // (Backend, capacity, agingSeconds) -> MacTable; (table, key, port) -> isNew; (table, key) -> port
+    static final MethodHandle NEW_MAC_TABLE = statik(MAC_TABLE, "create", MAC_TABLE, MAC_BACKEND, int.class, int.class);
+    static final MethodHandle MAC_LEARN = virtual(MAC_TABLE, "learn", boolean.class, MAC_KEY, Object.class);
+    static final MethodHandle MAC_LOOKUP = virtual(MAC_TABLE, "lookup", Object.class, MAC_KEY);
+
+    // (int port) -> NetworkLayer; (layer) -> buffer; (layer, frame, dest); (layer, dst) -> sender; (layer)
+    static final MethodHandle NEW_NETWORK_LAYER = constructor(NETWORK_LAYER, int.class);
+    static final MethodHandle ACQUIRE_BUFFER = virtual(NETWORK_LAYER, "acquireBuffer", ByteBuffer.class);
+    static final MethodHandle SEND = virtual(NETWORK_LAYER, "send", void.class, ByteBuffer.class, InetSocketAddress.class);
+    static final MethodHandle RECEIVE = virtual(NETWORK_LAYER, "receive", InetSocketAddress.class, ByteBuffer.class);
+    static final MethodHandle CLOSE = virtual(NETWORK_LAYER, "close", void.class);
+
+    private Tree() {}
+
+    /**
+     * @return the FrameCodec.Format constant with the given name
+     */
+    static Object format(String name) {
+        for (Object constant : FORMAT.getEnumConstants()) {
+            if (((Enum<?>) constant).name().equals(name)) return constant;
+        }
+        throw new IllegalArgumentException("Unknown frame format: " + name);
+    }
+
+    /**
+     * @return the MacTable.Backend constant with the given name
+     */
+    static Object macBackend(String name) {
+        for (Object constant : MAC_BACKEND.getEnumConstants()) {
+            if (((Enum<?>) constant).name().equals(name)) return constant;
+        }
+        throw new IllegalArgumentException("Unknown MAC table backend: " + name);
+    }
+
+    private static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle constructor(Class<?> owner, Class<?>... params) {
+        try {
+            return generic(MethodHandles.publicLookup().findConstructor(owner, MethodType.methodType(void.class, params)));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle virtual(Class<?> owner, String name, Class<?> ret, Class<?>... params) {
+        try {
+            return generic(MethodHandles.publicLookup().findVirtual(owner, name, MethodType.methodType(ret, params)));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle statik(Class<?> owner, String name, Class<?> ret, Class<?>... params) {
+        try {
+            return generic(MethodHandles.publicLookup().findStatic(owner, name, MethodType.methodType(ret, params)));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * Replaces every default-package type in the handle's signature with Object.
+     */
+    private static MethodHandle generic(MethodHandle handle) {
+        MethodType type = handle.type();
+        for (int i = 0; i < type.parameterCount(); i++) {
+            if (isDeviceType(type.parameterType(i))) {
+                type = type.changeParameterType(i, Object.class);
+            }
+        }
+        if (isDeviceType(type.returnType())) {
+            type = type.changeReturnType(Object.class);
+        }
+        return handle.asType(type);
+    }
+
+    private static boolean isDeviceType(Class<?> c) {
+        return !c.isPrimitive() && !c.isArray() && c.getPackageName().isEmpty();
+    }
+}
@@ -0,0 +1,51 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Fixed-size pool of direct buffers so the receive/forward path does not allocate per frame.
+ * If the pool runs dry a new buffer is allocated; returns beyond capacity are dropped.
+ */
+public class BufferPool {
+    private final ArrayBlockingQueue<ByteBuffer> free;
+    private final int bufferSize;
+    private final boolean direct;
+
+    public BufferPool(int count, int bufferSize) {
+        this(count, bufferSize, true);
+        for (int i = 0; i < count; i++) {
+            free.offer(ByteBuffer.allocateDirect(bufferSize));
+        }
+    }
+
+    private BufferPool(int count, int bufferSize, boolean direct) {
+        this.free = new ArrayBlockingQueue<>(count);
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+    }
+
+    /**
+     * A pool of heap buffers that are only allocated when first needed, for layers that never
+     * hand their buffers to a socket. Keeps up to {@code count} returned buffers.
+     */
+    public static BufferPool heap(int count, int bufferSize) {
+        return new BufferPool(count, bufferSize, false);
+    }
+
+    public ByteBuffer acquire() {
+        ByteBuffer buf = free.poll();
+        if (buf == null) {
+            buf = direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+        }
+        return buf.clear();
+    }
+
+    public void release(ByteBuffer buf) {
+        if (buf != null && buf.capacity() == bufferSize) {
+            free.offer(buf);
+        }
+    }
+
+    public int bufferSize() {
+        return bufferSize;
+    }
+}
@@ -1,23 +1,90 @@
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
+/**
+ * The topology config, loaded lazily so that startup does not grow with the size of the file.
+ * <p>
+ * The file is read and scanned once into a {@link ConfigIndex}: the id, type,
+ * virtual IPs and neighbors of every device and where its JSON object and routing table are.
+ * A device's full {@link DeviceInfo} and a routing table are only parsed when first asked
+ * for, so a process parses little more than its own entry and its neighbors'.
+ * <p>
+ * For files of at least {@link #SNAPSHOT_MIN_BYTES} the index is also written next to the
+ * file as {@code <file>.snapshot}. Later loads map the snapshot instead of reading and scanning
+ * the file, as long as the file's size and modification time still match. Such large files are
+ * not kept in memory either: the JSON of a device or routing table is read from the file when
+ * it is parsed, and rejected if the file has changed since it was loaded.
+ */
 public class Config {
+    static final long SNAPSHOT_MIN_BYTES = 1 << 20;
 
-    public Map<String, DeviceInfo> devices = new HashMap<>();
-    public Map<String, List<String>> links = new HashMap<>();
-    public Map<String, List<RoutingTableEntry>> routingTables = new HashMap<>();
+    private final Path file;
+    private final long size;
+    private final long modified;
+    // The file's contents if it is smaller than SNAPSHOT_MIN_BYTES, otherwise null
+    private final ByteBuffer source;
+    private final ConfigIndex index;
+    private final boolean fromSnapshot;
+
+    private final ConcurrentHashMap<String, DeviceInfo> parsedDevices = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, List<RoutingTableEntry>> parsedRoutingTables = new ConcurrentHashMap<>();
+    private TopologyCompiler.Result compiledRoutes;
 
     public static class DeviceInfo {
         public String id;
         public String ip;
         public int port;
+        public String type;
         public List<String> virtualIPs = new ArrayList<>();
         public String gateway;
+        public String frameFormat;
+        public int workers = 1;
+        public int ingressQueueSize;
+        public String dropPolicy;
+        public int receiveBuffer;
+        public int sendBuffer;
+        public int flowCacheSize = 4096;
+        public String scheduler;
+        public int trafficClasses = 4;
+        public int outputQueueSize = 128;
+        public long shapeRate;
+        public long shapeBurst;
+        public int priority;
+        public int macTableCapacity = MacTable.DEFAULT_CAPACITY;
+        public int macAgingSeconds = MacTable.DEFAULT_AGING_SECONDS;
+        public String macTableBackend;
+        public long floodRateLimit;
+        public long floodBurst;
+        public long stormThreshold;
+        public String logLevel;
+        public String logFile;
+        public int statsPort;
+        public String statsFile;
+        public int statsIntervalSeconds = 10;
+        public String stateFile;
+        public int stateIntervalSeconds = 10;
+        public boolean distanceVector;
+        public int advertiseIntervalSeconds = 5;
+        public boolean watchConfig;
+        public boolean jumbo;
+        public int mtu;
+        public int reassemblyBuffers = 64;
+        public int reassemblyTimeoutMillis = 5000;
+        public int maxMessageBytes = 16 << 20;
+        public boolean reliable;
+        public int reliableWindow = 64;
+        public double lossRate;
+        public boolean coalesce;
 
         public DeviceInfo(String id, String ip, int port) {
             this.id = id;
@@ -26,6 +93,11 @@ public class Config {
         }
     }
 
+    /**
+     * One route. {@code subnet} is a dotted prefix matched on whole labels
+     * (e.g. "subnet1" or "campus1.bldg2"), or {@link Fib#DEFAULT_ROUTE} for the default route.
+     * In config.json it may be given as either "subnet" or "prefix".
+     */
     public static class RoutingTableEntry {
         public String subnet;
         public String nextHop;
@@ -34,97 +106,686 @@ public class Config {
             this.subnet = subnet;
             this.nextHop = nextHop;
         }
+
+        public boolean isDefaultRoute() {
+            return Fib.DEFAULT_ROUTE.equals(subnet);
+        }
+
+        public int prefixLength() {
+            return isDefaultRoute() ? 0 : subnet.split("\\.").length;
+        }
     }
 
     public Config(String filename) throws IOException {
-        parse(filename);
-    }
+        this.file = Path.of(filename);
+        this.modified = Files.getLastModifiedTime(file).toMillis();
+        this.size = Files.size(file);
 
-    private void parse(String filename) throws IOException {
-        StringBuilder sb = new StringBuilder();
+        Path snapshot = file.resolveSibling(file.getFileName() + ".snapshot");
+        boolean useSnapshot = size >= SNAPSHOT_MIN_BYTES;
+        ConfigIndex cached = useSnapshot ? ConfigIndex.load(snapshot, size, modified) : null;
+        this.fromSnapshot = cached != null;
+        if (cached != null) {
+            this.index = cached;
+            this.source = null;
+            return;
+        }
 
-        try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                sb.append(line);
+        ByteBuffer contents = ByteBuffer.wrap(Files.readAllBytes(file));
+        if (contents.limit() != size) {
+            throw new IOException("Config file " + file + " changed while it was loaded");
+        }
+        this.index = scan(contents);
+        this.source = useSnapshot ? null : contents;
+        if (useSnapshot) {
+            try {
+                index.write(snapshot);
+            } catch (IOException e) {
+                // A read-only config directory only costs the next load a scan
             }
         }
+    }
 
-        JSONObject json = new JSONObject(sb.toString());
-
-        JSONArray devArray = json.getJSONArray("devices");
-        for (int i = 0; i < devArray.length(); i++) {
-            JSONObject obj = devArray.getJSONObject(i);
+    /**
+     * Scans the whole file once and builds the index.
+     */
+    private ConfigIndex scan(ByteBuffer contents) throws IOException {
+        JsonScanner scanner = new JsonScanner(contents);
+        ConfigIndex.Builder builder = new ConfigIndex.Builder();
+        int linksAt = -1;
 
-            String id = obj.getString("id");
-            String ip = obj.getString("ip");
-            int port = obj.getInt("port");
+        scanner.expect('{');
+        while (scanner.hasNext('}')) {
+            switch (scanner.readKey()) {
+                case "devices" -> {
+                    scanner.expect('[');
+                    while (scanner.hasNext(']')) {
+                        scanDevice(scanner, builder);
+                    }
+                }
+                // Links may come before devices, so they are resolved after the scan
+                case "links" -> linksAt = scanner.skipValue();
+                case "routingTables" -> {
+                    scanner.expect('{');
+                    while (scanner.hasNext('}')) {
+                        String routerId = scanner.readKey();
+                        int start = scanner.skipValue();
+                        builder.addRoutingTable(routerId, start, scanner.position());
+                    }
+                }
+                case "compileRoutes" -> {
+                    if (!(parseValue(scanner) instanceof Boolean compile)) {
+                        throw scanner.error("compileRoutes must be a boolean");
+                    }
+                    builder.compileRoutes = compile;
+                }
+                case "fibFile" -> {
+                    if (!(parseValue(scanner) instanceof String fibFile)) {
+                        throw scanner.error("fibFile must be a string");
+                    }
+                    builder.fibFile = fibFile;
+                }
+                default -> scanner.skipValue();
+            }
+        }
 
-            DeviceInfo device = new DeviceInfo(id, ip, port);
+        if (linksAt < 0) throw new IOException("Config has no links");
+        JsonScanner links = new JsonScanner(contents, linksAt);
+        links.expect('[');
+        while (links.hasNext(']')) {
+            links.expect('[');
+            String a = links.readString();
+            links.hasNext(']');
+            String b = links.readString();
+            // An optional third element is the link's MTU
+            int mtu = 0;
+            if (links.hasNext(']')) {
+                int start = links.skipValue();
+                try {
+                    mtu = Integer.parseInt(links.decode(start, links.position()));
+                } catch (NumberFormatException e) {
+                    throw links.error("link MTU must be a number");
+                }
+                while (links.hasNext(']')) {
+                    links.skipValue();
+                }
+            }
+            if (!builder.addLink(a, b, mtu)) {
+                throw links.error("link between unknown devices " + a + " and " + b);
+            }
+        }
+        return builder.build(size, modified);
+    }
 
-            if (obj.has("virtualIPs")) {
-                JSONArray vips = obj.getJSONArray("virtualIPs");
-                for (int j = 0; j < vips.length(); j++) {
-                    device.virtualIPs.add(vips.getString(j));
+    private static void scanDevice(JsonScanner scanner, ConfigIndex.Builder builder) throws IOException {
+        String id = null;
+        String type = null;
+        List<String> vips = new ArrayList<>();
+        scanner.expect('{');
+        int start = scanner.position() - 1;
+        while (scanner.hasNext('}')) {
+            switch (scanner.readKey()) {
+                case "id" -> id = scanner.readString();
+                case "type" -> type = scanner.readString();
+                case "virtualIPs" -> {
+                    scanner.expect('[');
+                    while (scanner.hasNext(']')) {
+                        vips.add(scanner.readString());
+                    }
                 }
+                default -> scanner.skipValue();
             }
+        }
+        if (id == null) throw scanner.error("device without an id");
+        builder.addDevice(id, type, vips.toArray(new String[0]), start, scanner.position());
+    }
 
-            if (obj.has("gateway")) {
-                device.gateway = obj.getString("gateway");
+    private static Object parseValue(JsonScanner scanner) throws IOException {
+        int start = scanner.skipValue();
+        try {
+            return new JSONArray("[" + scanner.decode(start, scanner.position()) + "]").get(0);
+        } catch (JSONException e) {
+            throw scanner.error(e.getMessage());
+        }
+    }
+
+    /**
+     * @return the JSON between two offsets of the file as it was loaded
+     * @throws UncheckedIOException if the file cannot be read or has changed since
+     */
+    private String read(int start, int end) {
+        if (source != null) {
+            return new JsonScanner(source).decode(start, end);
+        }
+        ByteBuffer json = ByteBuffer.allocate(end - start);
+        try (FileChannel channel = FileChannel.open(file)) {
+            while (json.hasRemaining()) {
+                if (channel.read(json, start + json.position()) < 0) break;
             }
+            // Checked after reading, so the bytes are known to come from the loaded version
+            if (json.hasRemaining() || channel.size() != size
+                    || Files.getLastModifiedTime(file).toMillis() != modified) {
+                throw new IOException("Config file " + file + " changed since it was loaded");
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new JsonScanner(json.flip()).decode(0, end - start);
+    }
+
+    /**
+     * @return the file this config was loaded from
+     */
+    public Path getPath() {
+        return file;
+    }
 
-            devices.put(id, device);
-            links.putIfAbsent(id, new ArrayList<>());
+    /**
+     * @return the current contents of the file this config was loaded from
+     */
+    public Config reload() throws IOException {
+        return new Config(file.toString());
+    }
+
+    /**
+     * @return whether the index was loaded from a snapshot instead of scanning the file
+     */
+    public boolean loadedFromSnapshot() {
+        return fromSnapshot;
+    }
+
+    /**
+     * @return the ids of all devices, in file order
+     */
+    public List<String> deviceIds() {
+        List<String> ids = new ArrayList<>(index.deviceCount());
+        for (int d = 0; d < index.deviceCount(); d++) {
+            ids.add(index.id(d));
         }
+        return ids;
+    }
 
+    public boolean hasDevice(String id) {
+        return index.find(id) >= 0;
+    }
 
-        JSONArray linkArray = json.getJSONArray("links");
-        for (int i = 0; i < linkArray.length(); i++) {
-            JSONArray pair = linkArray.getJSONArray(i);
-            String a = pair.getString(0);
-            String b = pair.getString(1);
+    /**
+     * @return the device, parsed on first use, or null if there is no such device
+     */
+    public DeviceInfo getDevice(String id) {
+        int d = index.find(id);
+        if (d < 0) return null;
+        return parsedDevices.computeIfAbsent(id, key -> parseDevice(new JSONObject(
+                read(index.jsonStart(d), index.jsonEnd(d)))));
+    }
+
+    private static DeviceInfo parseDevice(JSONObject obj) {
+        String id = obj.getString("id");
+        String ip = obj.getString("ip");
+        int port = obj.getInt("port");
+
+        DeviceInfo device = new DeviceInfo(id, ip, port);
 
-            links.get(a).add(b);
-            links.get(b).add(a);
+        if (obj.has("type")) {
+            device.type = obj.getString("type");
         }
 
-        if (json.has("routingTables")) {
-            JSONObject rtObj = json.getJSONObject("routingTables");
-            for (String routerId : rtObj.keySet()) {
-                JSONArray entries = rtObj.getJSONArray(routerId);
-                List<RoutingTableEntry> list = new ArrayList<>();
-                for (int i = 0; i < entries.length(); i++) {
-                    JSONObject entry = entries.getJSONObject(i);
-                    list.add(new RoutingTableEntry(entry.getString("subnet"), entry.getString("nextHop")));
-                }
-                routingTables.put(routerId, list);
+        if (obj.has("virtualIPs")) {
+            JSONArray vips = obj.getJSONArray("virtualIPs");
+            for (int j = 0; j < vips.length(); j++) {
+                device.virtualIPs.add(vips.getString(j));
             }
         }
+
+        if (obj.has("gateway")) {
+            device.gateway = obj.getString("gateway");
+        }
+
+        if (obj.has("workers")) {
+            device.workers = obj.getInt("workers");
+        }
+
+        if (obj.has("flowCacheSize")) {
+            device.flowCacheSize = obj.getInt("flowCacheSize");
+        }
+
+        if (obj.has("ingressQueueSize")) {
+            device.ingressQueueSize = obj.getInt("ingressQueueSize");
+        }
+
+        if (obj.has("dropPolicy")) {
+            device.dropPolicy = obj.getString("dropPolicy");
+        }
+
+        if (obj.has("receiveBuffer")) {
+            device.receiveBuffer = obj.getInt("receiveBuffer");
+        }
+
+        if (obj.has("sendBuffer")) {
+            device.sendBuffer = obj.getInt("sendBuffer");
+        }
+
+        if (obj.has("scheduler")) {
+            device.scheduler = obj.getString("scheduler");
+        }
+
+        if (obj.has("trafficClasses")) {
+            device.trafficClasses = obj.getInt("trafficClasses");
+        }
+
+        if (obj.has("outputQueueSize")) {
+            device.outputQueueSize = obj.getInt("outputQueueSize");
+        }
+
+        if (obj.has("shapeRate")) {
+            device.shapeRate = obj.getLong("shapeRate");
+        }
+
+        if (obj.has("shapeBurst")) {
+            device.shapeBurst = obj.getLong("shapeBurst");
+        }
+
+        if (obj.has("priority")) {
+            device.priority = obj.getInt("priority");
+        }
+
+        if (obj.has("macTableCapacity")) {
+            device.macTableCapacity = obj.getInt("macTableCapacity");
+        }
+
+        if (obj.has("macAgingSeconds")) {
+            device.macAgingSeconds = obj.getInt("macAgingSeconds");
+        }
+
+        if (obj.has("macTableBackend")) {
+            device.macTableBackend = obj.getString("macTableBackend");
+        }
+
+        if (obj.has("floodRateLimit")) {
+            device.floodRateLimit = obj.getLong("floodRateLimit");
+        }
+
+        if (obj.has("floodBurst")) {
+            device.floodBurst = obj.getLong("floodBurst");
+        }
+
+        if (obj.has("stormThreshold")) {
+            device.stormThreshold = obj.getLong("stormThreshold");
+        }
+
+        if (obj.has("logLevel")) {
+            device.logLevel = obj.getString("logLevel");
+        }
+
+        if (obj.has("logFile")) {
+            device.logFile = obj.getString("logFile");
+        }
+
+        if (obj.has("statsPort")) {
+            device.statsPort = obj.getInt("statsPort");
+        }
+
+        if (obj.has("statsFile")) {
+            device.statsFile = obj.getString("statsFile");
+        }
+
+        if (obj.has("statsIntervalSeconds")) {
+            device.statsIntervalSeconds = obj.getInt("statsIntervalSeconds");
+        }
+
+        if (obj.has("stateFile")) {
+            device.stateFile = obj.getString("stateFile");
+        }
+
+        if (obj.has("stateIntervalSeconds")) {
+            device.stateIntervalSeconds = obj.getInt("stateIntervalSeconds");
+        }
+
+        if (obj.has("distanceVector")) {
+            device.distanceVector = obj.getBoolean("distanceVector");
+        }
+
+        if (obj.has("advertiseIntervalSeconds")) {
+            device.advertiseIntervalSeconds = obj.getInt("advertiseIntervalSeconds");
+        }
+
+        if (obj.has("watchConfig")) {
+            device.watchConfig = obj.getBoolean("watchConfig");
+        }
+
+        if (obj.has("frameFormat")) {
+            device.frameFormat = obj.getString("frameFormat");
+        }
+
+        if (obj.has("jumbo")) {
+            device.jumbo = obj.getBoolean("jumbo");
+        }
+
+        if (obj.has("mtu")) {
+            device.mtu = obj.getInt("mtu");
+        }
+
+        if (obj.has("reassemblyBuffers")) {
+            device.reassemblyBuffers = obj.getInt("reassemblyBuffers");
+        }
+
+        if (obj.has("reassemblyTimeoutMillis")) {
+            device.reassemblyTimeoutMillis = obj.getInt("reassemblyTimeoutMillis");
+        }
+
+        if (obj.has("maxMessageBytes")) {
+            device.maxMessageBytes = obj.getInt("maxMessageBytes");
+        }
+
+        if (obj.has("reliable")) {
+            device.reliable = obj.getBoolean("reliable");
+        }
+
+        if (obj.has("reliableWindow")) {
+            device.reliableWindow = obj.getInt("reliableWindow");
+        }
+
+        if (obj.has("lossRate")) {
+            device.lossRate = obj.getDouble("lossRate");
+        }
+
+        if (obj.has("coalesce")) {
+            device.coalesce = obj.getBoolean("coalesce");
+        }
+
+        return device;
     }
 
     public String getIp(String id) {
-        return devices.get(id).ip;
+        return getDevice(id).ip;
     }
 
     public int getPort(String id) {
-        return devices.get(id).port;
+        return getDevice(id).port;
     }
 
     public List<String> getNeighbors(String id) {
-        return links.get(id);
+        int d = device(id);
+        List<String> neighbors = new ArrayList<>(index.neighborCount(d));
+        for (int i = 0; i < index.neighborCount(d); i++) {
+            neighbors.add(index.id(index.neighbor(d, i)));
+        }
+        return neighbors;
     }
 
     public String getVirtualIp(String id) {
-        DeviceInfo device = devices.get(id);
-        if (device.virtualIPs.isEmpty()) return null;
-        return device.virtualIPs.getFirst();
+        int d = device(id);
+        return index.virtualIpCount(d) == 0 ? null : index.virtualIp(d, 0);
+    }
+
+    /**
+     * @return all virtual IPs of the device, without parsing it
+     */
+    public List<String> getVirtualIps(String id) {
+        int d = device(id);
+        List<String> addresses = new ArrayList<>(index.virtualIpCount(d));
+        for (int i = 0; i < index.virtualIpCount(d); i++) {
+            addresses.add(index.virtualIp(d, i));
+        }
+        return addresses;
+    }
+
+    /**
+     * @return "host", "switch" or "router", or null if the device has no type
+     */
+    public String getType(String id) {
+        return index.type(device(id));
     }
 
     public String getGateway(String id) {
-        return devices.get(id).gateway;
+        return getDevice(id).gateway;
+    }
+
+    public FrameCodec.Format getFrameFormat(String id) {
+        return FrameCodec.Format.fromConfig(getDevice(id).frameFormat);
     }
 
+    /**
+     * @return the largest frame the device receives: {@link NetworkLayer#JUMBO_FRAME_SIZE} with
+     *         "jumbo", otherwise {@link NetworkLayer#MAX_FRAME_SIZE}
+     */
+    public int getFrameSize(String id) {
+        return getDevice(id).jumbo ? NetworkLayer.JUMBO_FRAME_SIZE : NetworkLayer.MAX_FRAME_SIZE;
+    }
+
+    /**
+     * @return the MTU of the link between the device and its neighbor: the link's own MTU if
+     *         the link has one, else the device's "mtu", else its frame size
+     */
+    public int getMtu(String id, String neighborId) {
+        int d = device(id);
+        int mtu = 0;
+        for (int i = 0; i < index.neighborCount(d) && mtu == 0; i++) {
+            if (index.id(index.neighbor(d, i)).equals(neighborId)) {
+                mtu = index.linkMtu(d, i);
+            }
+        }
+        if (mtu == 0) mtu = getDevice(id).mtu;
+        if (mtu == 0) return getFrameSize(id);
+        if (mtu < NetworkLayer.MIN_MTU || mtu > NetworkLayer.JUMBO_FRAME_SIZE) {
+            throw new IllegalArgumentException("MTU of " + id + " to " + neighborId + " must be between " +
+                    NetworkLayer.MIN_MTU + " and " + NetworkLayer.JUMBO_FRAME_SIZE + ", not " + mtu);
+        }
+        return mtu;
+    }
+
+    /**
+     * @return how many partly received messages a host keeps before evicting the oldest
+     */
+    public int getReassemblyBuffers(String id) {
+        return getDevice(id).reassemblyBuffers;
+    }
+
+    public int getReassemblyTimeoutMillis(String id) {
+        return getDevice(id).reassemblyTimeoutMillis;
+    }
+
+    public int getMaxMessageBytes(String id) {
+        return getDevice(id).maxMessageBytes;
+    }
+
+    /**
+     * @return whether the host sends its messages through the {@link ReliableTransport}
+     */
+    public boolean isReliable(String id) {
+        return getDevice(id).reliable;
+    }
+
+    public int getReliableWindow(String id) {
+        return getDevice(id).reliableWindow;
+    }
+
+    /**
+     * @return the fraction of frames the device drops on purpose when sending, for testing
+     */
+    public double getLossRate(String id) {
+        return getDevice(id).lossRate;
+    }
+
+    /**
+     * @return whether the host packs small messages to the same destination into shared frames
+     */
+    public boolean isCoalescing(String id) {
+        return getDevice(id).coalesce;
+    }
+
+    public int getWorkers(String id) {
+        return getDevice(id).workers;
+    }
+
+    /**
+     * @return frames queued between a device's receiving and forwarding threads, or 0 for the
+     *         default: switch workers queue 256 frames each, a switch without workers and routers
+     *         forward on the receiving thread
+     */
+    public int getIngressQueueSize(String id) {
+        return Math.max(0, getDevice(id).ingressQueueSize);
+    }
+
+    public ForwardQueue.DropPolicy getDropPolicy(String id) {
+        return ForwardQueue.DropPolicy.fromConfig(getDevice(id).dropPolicy);
+    }
+
+    /**
+     * @return the SO_RCVBUF of the device's sockets in bytes, or 0 for the system default
+     */
+    public int getReceiveBuffer(String id) {
+        return getDevice(id).receiveBuffer;
+    }
+
+    /**
+     * @return the SO_SNDBUF of the device's sockets in bytes, or 0 for the system default
+     */
+    public int getSendBuffer(String id) {
+        return getDevice(id).sendBuffer;
+    }
+
+    public int getMacTableCapacity(String id) {
+        return getDevice(id).macTableCapacity;
+    }
+
+    /**
+     * @return seconds after which a switch forgets a MAC it has not seen, or 0 for never
+     */
+    public int getMacAgingSeconds(String id) {
+        return getDevice(id).macAgingSeconds;
+    }
+
+    public MacTable.Backend getMacTableBackend(String id) {
+        return MacTable.Backend.fromConfig(getDevice(id).macTableBackend);
+    }
+
+    /**
+     * @return the limits on the frames a switch floods from each port; the burst defaults to
+     *         one second at the rate limit
+     */
+    public FloodControl.Limits getFloodLimits(String id) {
+        DeviceInfo device = getDevice(id);
+        long burst = device.floodBurst > 0 ? device.floodBurst : device.floodRateLimit;
+        return new FloodControl.Limits(device.floodRateLimit, burst, device.stormThreshold);
+    }
+
+    /**
+     * @return how a router queues the frames of each port, or null to send them from the
+     *         forwarding threads without queueing; the shaping burst defaults to a tenth of a
+     *         second at the shaping rate
+     */
+    public OutputQueue.Settings getOutputQueueSettings(String id) {
+        DeviceInfo device = getDevice(id);
+        OutputQueue.Scheduler scheduler = OutputQueue.Scheduler.fromConfig(device.scheduler);
+        if (scheduler == null) return null;
+        int classes = Math.clamp(device.trafficClasses, 1, FrameCodec.MAX_PRIORITY + 1);
+        long burst = device.shapeBurst > 0 ? device.shapeBurst : device.shapeRate / 10;
+        return new OutputQueue.Settings(scheduler, classes, Math.max(1, device.outputQueueSize), device.shapeRate,
+                Math.max(burst, NetworkLayer.MAX_FRAME_SIZE));
+    }
+
+    /**
+     * @return the priority a host marks its frames with, from 0 to {@link FrameCodec#MAX_PRIORITY}
+     */
+    public int getPriority(String id) {
+        return getDevice(id).priority;
+    }
+
+    /**
+     * @return where the device keeps the snapshot of its learned state, or null if it starts cold
+     */
+    public Path getStateFile(String id) {
+        String stateFile = getDevice(id).stateFile;
+        return stateFile == null ? null : Path.of(stateFile);
+    }
+
+    public int getStateIntervalSeconds(String id) {
+        return getDevice(id).stateIntervalSeconds;
+    }
+
+    public int getFlowCacheSize(String id) {
+        return getDevice(id).flowCacheSize;
+    }
+
+    public boolean isDistanceVector(String id) {
+        return getDevice(id).distanceVector;
+    }
+
+    public int getAdvertiseIntervalSeconds(String id) {
+        return getDevice(id).advertiseIntervalSeconds;
+    }
+
+    /**
+     * @return whether the device reloads its config when the file changes
+     */
+    public boolean isWatchConfig(String id) {
+        return getDevice(id).watchConfig;
+    }
+
+    public String getLogLevel(String id) {
+        return getDevice(id).logLevel;
+    }
+
+    public String getLogFile(String id) {
+        return getDevice(id).logFile;
+    }
+
+    /**
+     * Starts the metrics outputs configured for a device ("statsPort", "statsFile").
+     */
+    public void startMetrics(String id, Metrics metrics) throws IOException {
+        DeviceInfo device = getDevice(id);
+        metrics.startReporting(device.statsPort, device.statsFile, device.statsIntervalSeconds);
+    }
+
+    /**
+     * @return the routes configured for the router or, with "compileRoutes", computed from the
+     *         topology for routers without configured routes; null if there are none
+     */
     public List<RoutingTableEntry> getRoutingTable(String routerId) {
-        return routingTables.get(routerId);
+        int d = index.find(routerId);
+        if (d >= 0 && index.routingTableStart(d) >= 0) {
+            return parsedRoutingTables.computeIfAbsent(routerId, key -> parseRoutingTable(new JSONArray(
+                    read(index.routingTableStart(d), index.routingTableEnd(d)))));
+        }
+        if (!index.compileRoutes()) return null;
+        return compiledRoutes().routes(routerId);
+    }
+
+    private static List<RoutingTableEntry> parseRoutingTable(JSONArray entries) {
+        List<RoutingTableEntry> list = new ArrayList<>();
+        for (int i = 0; i < entries.length(); i++) {
+            JSONObject entry = entries.getJSONObject(i);
+            String prefix = entry.has("prefix") ? entry.getString("prefix") : entry.getString("subnet");
+            list.add(new RoutingTableEntry(prefix, entry.getString("nextHop")));
+        }
+        return list;
+    }
+
+    /**
+     * @return the routes of every router computed from the devices and links, compiled on first use
+     */
+    public synchronized TopologyCompiler.Result compiledRoutes() {
+        if (compiledRoutes == null) {
+            compiledRoutes = TopologyCompiler.compile(this);
+        }
+        return compiledRoutes;
+    }
+
+    /**
+     * @return the precompiled FIB file routers load their routes from, or null
+     */
+    public String getFibFile() {
+        return index.fibFile();
+    }
+
+    /**
+     * @throws NullPointerException if there is no such device, like the lookups of a parsed config
+     */
+    private int device(String id) {
+        int d = index.find(id);
+        if (d < 0) throw new NullPointerException("No device " + id);
+        return d;
     }
 }
\ No newline at end of file
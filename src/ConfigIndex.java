@@ -0,0 +1,403 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The index {@link Config} builds by scanning a config file once: for every device its id,
+ * type, virtual IPs, neighbors and the byte ranges of its JSON object and routing table.
+ * <p>
+ * The index is laid out flat in a buffer with no object per device, so the same bytes serve
+ * as the snapshot file: loading a snapshot is mapping it, and lookups read the mapped bytes.
+ * <pre>
+ * header   magic, source size, source modification time, flags, fibFile ref,
+ *          device count, hash table capacity, section offsets, index length
+ * devices  per device: id ref, type ref, first virtual IP, virtual IP count, JSON start/end,
+ *          first neighbor, neighbor count, routing table start/end (-1 if none)
+ * vips     string refs
+ * links    neighbor device indices, grouped by device in link order
+ * mtus     MTU of the link to each of those neighbors (0 = not configured)
+ * table    open-addressing hash of ids to device index + 1 (0 = empty)
+ * strings  UTF-8 bytes
+ * </pre>
+ * A string ref is an offset into the strings section and a length; a length of -1 is null.
+ */
+final class ConfigIndex {
+    private static final int MAGIC = 0x43464734; // "CFG4"
+    private static final int HEADER = 64;
+    private static final int RECORD = 12 * 4;
+
+    private static final int SOURCE_SIZE = 4;
+    private static final int SOURCE_MODIFIED = 12;
+    private static final int FLAGS = 20;
+    private static final int FIB_FILE = 24;
+    private static final int DEVICE_COUNT = 32;
+    private static final int TABLE_CAPACITY = 36;
+    private static final int VIPS_AT = 40;
+    private static final int LINKS_AT = 44;
+    private static final int TABLE_AT = 48;
+    private static final int STRINGS_AT = 52;
+    private static final int MTUS_AT = 56;
+    private static final int LENGTH = 60;
+
+    private static final int FLAG_COMPILE_ROUTES = 1;
+
+    private final ByteBuffer buf;
+    private final int deviceCount;
+    private final int tableMask;
+    private final int vipsAt;
+    private final int linksAt;
+    private final int mtusAt;
+    private final int tableAt;
+    private final int stringsAt;
+
+    private ConfigIndex(ByteBuffer buf) {
+        this.buf = buf;
+        this.deviceCount = buf.getInt(DEVICE_COUNT);
+        this.tableMask = buf.getInt(TABLE_CAPACITY) - 1;
+        this.vipsAt = buf.getInt(VIPS_AT);
+        this.linksAt = buf.getInt(LINKS_AT);
+        this.mtusAt = buf.getInt(MTUS_AT);
+        this.tableAt = buf.getInt(TABLE_AT);
+        this.stringsAt = buf.getInt(STRINGS_AT);
+    }
+
+    /**
+     * Collects the scanned devices and builds the index.
+     */
+    static final class Builder {
+        private final List<String> ids = new ArrayList<>();
+        private final List<String> types = new ArrayList<>();
+        private final List<String[]> virtualIps = new ArrayList<>();
+        private final List<int[]> ranges = new ArrayList<>();
+        private final Map<String, Integer> indexById = new HashMap<>();
+        private final Map<String, int[]> routingTables = new HashMap<>();
+        private int[] linkPairs = new int[64];
+        private int[] linkMtus = new int[32];
+        private int linkEnds;
+        boolean compileRoutes;
+        String fibFile;
+
+        /**
+         * Adds a device; a later device with the same id replaces the earlier one.
+         */
+        void addDevice(String id, String type, String[] vips, int start, int end) {
+            Integer existing = indexById.putIfAbsent(id, ids.size());
+            if (existing != null) {
+                types.set(existing, type);
+                virtualIps.set(existing, vips);
+                ranges.set(existing, new int[]{start, end});
+                return;
+            }
+            ids.add(id);
+            types.add(type);
+            virtualIps.add(vips);
+            ranges.add(new int[]{start, end});
+        }
+
+        /**
+         * @param mtu the link's MTU, or 0 if not configured
+         * @return false if either end is not a device added before
+         */
+        boolean addLink(String a, String b, int mtu) {
+            Integer ia = indexById.get(a);
+            Integer ib = indexById.get(b);
+            if (ia == null || ib == null) return false;
+            if (linkEnds + 2 > linkPairs.length) {
+                linkPairs = Arrays.copyOf(linkPairs, linkPairs.length * 2);
+                linkMtus = Arrays.copyOf(linkMtus, linkPairs.length / 2);
+            }
+            linkMtus[linkEnds / 2] = mtu;
+            linkPairs[linkEnds++] = ia;
+            linkPairs[linkEnds++] = ib;
+            return true;
+        }
+
+        void addRoutingTable(String routerId, int start, int end) {
+            routingTables.put(routerId, new int[]{start, end});
+        }
+
+        ConfigIndex build(long sourceSize, long sourceModified) {
+            int count = ids.size();
+            int capacity = Integer.highestOneBit(Math.max(4, count * 2 - 1)) << 1;
+
+            // Neighbors grouped by device, each group in link order
+            int[] first = new int[count + 1];
+            for (int i = 0; i < linkEnds; i++) {
+                first[linkPairs[i] + 1]++;
+            }
+            for (int d = 0; d < count; d++) {
+                first[d + 1] += first[d];
+            }
+            int[] neighbors = new int[linkEnds];
+            int[] mtus = new int[linkEnds];
+            int[] fill = Arrays.copyOf(first, count);
+            for (int i = 0; i < linkEnds; i += 2) {
+                mtus[fill[linkPairs[i]]] = linkMtus[i / 2];
+                neighbors[fill[linkPairs[i]]++] = linkPairs[i + 1];
+                mtus[fill[linkPairs[i + 1]]] = linkMtus[i / 2];
+                neighbors[fill[linkPairs[i + 1]]++] = linkPairs[i];
+            }
+
+            StringPool strings = new StringPool();
+            int vipCount = 0;
+            for (String[] vips : virtualIps) {
+                vipCount += vips.length;
+            }
+            int vipsAt = HEADER + count * RECORD;
+            int linksAt = vipsAt + vipCount * 8;
+            int mtusAt = linksAt + linkEnds * 4;
+            int tableAt = mtusAt + linkEnds * 4;
+            int stringsAt = tableAt + capacity * 4;
+
+            ByteBuffer records = ByteBuffer.allocate(stringsAt);
+            records.putInt(0, MAGIC);
+            records.putLong(SOURCE_SIZE, sourceSize);
+            records.putLong(SOURCE_MODIFIED, sourceModified);
+            records.putInt(FLAGS, compileRoutes ? FLAG_COMPILE_ROUTES : 0);
+            strings.putRef(records, FIB_FILE, fibFile);
+            records.putInt(DEVICE_COUNT, count);
+            records.putInt(TABLE_CAPACITY, capacity);
+            records.putInt(VIPS_AT, vipsAt);
+            records.putInt(LINKS_AT, linksAt);
+            records.putInt(MTUS_AT, mtusAt);
+            records.putInt(TABLE_AT, tableAt);
+            records.putInt(STRINGS_AT, stringsAt);
+
+            int vip = 0;
+            for (int d = 0; d < count; d++) {
+                int at = HEADER + d * RECORD;
+                String id = ids.get(d);
+                int[] routes = routingTables.getOrDefault(id, new int[]{-1, -1});
+                strings.putRef(records, at, id);
+                strings.putRef(records, at + 8, types.get(d));
+                records.putInt(at + 16, vip);
+                records.putInt(at + 20, virtualIps.get(d).length);
+                records.putInt(at + 24, ranges.get(d)[0]);
+                records.putInt(at + 28, ranges.get(d)[1]);
+                records.putInt(at + 32, first[d]);
+                records.putInt(at + 36, first[d + 1] - first[d]);
+                records.putInt(at + 40, routes[0]);
+                records.putInt(at + 44, routes[1]);
+                for (String address : virtualIps.get(d)) {
+                    strings.putRef(records, vipsAt + 8 * vip++, address);
+                }
+                int slot = spread(id.hashCode()) & (capacity - 1);
+                while (records.getInt(tableAt + 4 * slot) != 0) {
+                    slot = (slot + 1) & (capacity - 1);
+                }
+                records.putInt(tableAt + 4 * slot, d + 1);
+            }
+            for (int i = 0; i < neighbors.length; i++) {
+                records.putInt(linksAt + 4 * i, neighbors[i]);
+                records.putInt(mtusAt + 4 * i, mtus[i]);
+            }
+
+            byte[] pool = strings.toByteArray();
+            records.putInt(LENGTH, stringsAt + pool.length);
+            ByteBuffer index = ByteBuffer.allocate(stringsAt + pool.length);
+            index.put(records.array()).put(pool).flip();
+            return new ConfigIndex(index);
+        }
+    }
+
+    /**
+     * Strings of the index, each stored once.
+     */
+    private static final class StringPool {
+        private final Map<String, Integer> offsets = new HashMap<>();
+        private byte[] bytes = new byte[4096];
+        private int size;
+
+        void putRef(ByteBuffer dst, int at, String s) {
+            if (s == null) {
+                dst.putInt(at, 0).putInt(at + 4, -1);
+                return;
+            }
+            byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            Integer offset = offsets.get(s);
+            if (offset == null) {
+                offset = size;
+                offsets.put(s, offset);
+                if (size + utf8.length > bytes.length) {
+                    bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + utf8.length));
+                }
+                System.arraycopy(utf8, 0, bytes, size, utf8.length);
+                size += utf8.length;
+            }
+            dst.putInt(at, offset).putInt(at + 4, utf8.length);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+    }
+
+    /**
+     * Maps a snapshot written by {@link #write}.
+     * @return the index, or null if the snapshot is missing, unreadable, incomplete or of
+     *         another version of the source file
+     */
+    static ConfigIndex load(Path snapshot, long sourceSize, long sourceModified) {
+        if (!Files.exists(snapshot)) return null;
+        try (FileChannel channel = FileChannel.open(snapshot)) {
+            if (channel.size() < HEADER) return null;
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (mapped.getInt(0) != MAGIC || mapped.getLong(SOURCE_SIZE) != sourceSize ||
+                    mapped.getLong(SOURCE_MODIFIED) != sourceModified || !complete(mapped, channel.size())) {
+                return null;
+            }
+            return new ConfigIndex(mapped);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return whether the sections of a snapshot lie in order within its length, which is
+     *         {@code size}; a snapshot cut short fails this
+     */
+    private static boolean complete(ByteBuffer index, long size) {
+        long count = index.getInt(DEVICE_COUNT);
+        int capacity = index.getInt(TABLE_CAPACITY);
+        int vipsAt = index.getInt(VIPS_AT);
+        int linksAt = index.getInt(LINKS_AT);
+        int mtusAt = index.getInt(MTUS_AT);
+        int tableAt = index.getInt(TABLE_AT);
+        int stringsAt = index.getInt(STRINGS_AT);
+        return index.getInt(LENGTH) == size && count >= 0 && Integer.bitCount(capacity) == 1 &&
+                HEADER + count * RECORD <= vipsAt && vipsAt <= linksAt && linksAt <= mtusAt &&
+                mtusAt - linksAt == tableAt - mtusAt && tableAt + 4L * capacity == stringsAt &&
+                stringsAt <= size;
+    }
+
+    /**
+     * Writes the index as a snapshot, replacing any previous one atomically. The temporary file
+     * has a name of its own, so devices starting together can write their snapshots at once.
+     */
+    void write(Path snapshot) throws IOException {
+        Path tmp = Files.createTempFile(snapshot.toAbsolutePath().getParent(), snapshot.getFileName() + ".",
+                ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                out.write(buf.array(), 0, buf.limit());
+            }
+            Files.move(tmp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    int deviceCount() {
+        return deviceCount;
+    }
+
+    boolean compileRoutes() {
+        return (buf.getInt(FLAGS) & FLAG_COMPILE_ROUTES) != 0;
+    }
+
+    String fibFile() {
+        return string(FIB_FILE);
+    }
+
+    /**
+     * @return the index of the device, or -1 if there is none with this id
+     */
+    int find(String id) {
+        int slot = spread(id.hashCode()) & tableMask;
+        for (int d; (d = buf.getInt(tableAt + 4 * slot)) != 0; slot = (slot + 1) & tableMask) {
+            int at = HEADER + (d - 1) * RECORD;
+            if (matches(buf.getInt(at), buf.getInt(at + 4), id)) return d - 1;
+        }
+        return -1;
+    }
+
+    String id(int d) {
+        return string(HEADER + d * RECORD);
+    }
+
+    String type(int d) {
+        return string(HEADER + d * RECORD + 8);
+    }
+
+    int virtualIpCount(int d) {
+        return buf.getInt(HEADER + d * RECORD + 20);
+    }
+
+    String virtualIp(int d, int i) {
+        return string(vipsAt + 8 * (buf.getInt(HEADER + d * RECORD + 16) + i));
+    }
+
+    int jsonStart(int d) {
+        return buf.getInt(HEADER + d * RECORD + 24);
+    }
+
+    int jsonEnd(int d) {
+        return buf.getInt(HEADER + d * RECORD + 28);
+    }
+
+    int neighborCount(int d) {
+        return buf.getInt(HEADER + d * RECORD + 36);
+    }
+
+    int neighbor(int d, int i) {
+        return buf.getInt(linksAt + 4 * (buf.getInt(HEADER + d * RECORD + 32) + i));
+    }
+
+    /**
+     * @return the MTU of the link to {@code neighbor(d, i)}, or 0 if not configured
+     */
+    int linkMtu(int d, int i) {
+        return buf.getInt(mtusAt + 4 * (buf.getInt(HEADER + d * RECORD + 32) + i));
+    }
+
+    /**
+     * @return the start of the device's routing table in the source, or -1 if it has none
+     */
+    int routingTableStart(int d) {
+        return buf.getInt(HEADER + d * RECORD + 40);
+    }
+
+    int routingTableEnd(int d) {
+        return buf.getInt(HEADER + d * RECORD + 44);
+    }
+
+    private String string(int refAt) {
+        int length = buf.getInt(refAt + 4);
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        buf.get(stringsAt + buf.getInt(refAt), bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Compares a stored string with {@code s} without decoding it, unless it is not ASCII.
+     */
+    private boolean matches(int offset, int length, String s) {
+        int at = stringsAt + offset;
+        if (length < s.length()) return false;
+        for (int i = 0; i < length; i++) {
+            byte b = buf.get(at + i);
+            if (b < 0) {
+                byte[] bytes = new byte[length];
+                buf.get(at, bytes);
+                return new String(bytes, StandardCharsets.UTF_8).equals(s);
+            }
+            if (i >= s.length() || s.charAt(i) != b) return false;
+        }
+        return length == s.length();
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,108 @@
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Reloads config files when they change and hands the new config to the devices using them.
+ * <p>
+ * One thread watches every config file of the process. A change is parsed once and passed to
+ * every listener of that file, so the devices of a {@link TopologyRunner} share one reload.
+ * Changes are debounced, since editors and deploy tools write a file in several steps; a
+ * file that does not parse is reported and the devices keep running on their current config.
+ */
+public final class ConfigWatcher {
+    private static final long DEBOUNCE_MILLIS = 200;
+
+    private static final Log log = Log.get("config");
+    private static ConfigWatcher instance;
+
+    private final WatchService watchService;
+    private final Map<Path, List<Consumer<Config>>> listeners = new ConcurrentHashMap<>();
+    private final Map<Path, WatchKey> directories = new ConcurrentHashMap<>();
+
+    private ConfigWatcher() throws IOException {
+        this.watchService = FileSystems.getDefault().newWatchService();
+        Thread watcher = new Thread(this::run, "config-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * Calls {@code listener} on the watcher thread with the new config every time the file
+     * changes.
+     */
+    public static synchronized void watch(Path file, Consumer<Config> listener) throws IOException {
+        if (instance == null) {
+            instance = new ConfigWatcher();
+        }
+        instance.add(file.toAbsolutePath().normalize(), listener);
+    }
+
+    private void add(Path file, Consumer<Config> listener) throws IOException {
+        Path directory = file.getParent();
+        if (!directories.containsKey(directory)) {
+            // Deploys usually replace the file by renaming over it, which is a create
+            directories.put(directory, directory.register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY));
+        }
+        listeners.computeIfAbsent(file, f -> new CopyOnWriteArrayList<>()).add(listener);
+    }
+
+    @SuppressWarnings("InfiniteLoopStatement")
+    private void run() {
+        while (true) {
+            try {
+                WatchKey key = watchService.take();
+                Thread.sleep(DEBOUNCE_MILLIS);
+                Set<Path> changed = new HashSet<>();
+                do {
+                    Path directory = (Path) key.watchable();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.context() instanceof Path name) {
+                            changed.add(directory.resolve(name));
+                        }
+                    }
+                    key.reset();
+                } while ((key = watchService.poll()) != null);
+
+                for (Path file : changed) {
+                    List<Consumer<Config>> fileListeners = listeners.get(file);
+                    if (fileListeners != null) {
+                        reload(file, fileListeners);
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void reload(Path file, List<Consumer<Config>> fileListeners) {
+        Config config;
+        try {
+            config = new Config(file.toString());
+        } catch (IOException | RuntimeException e) {
+            log.error("Not reloading {}: {}", file, e.getMessage());
+            return;
+        }
+        log.info("{} changed, reloading {} device(s)", file, fileListeners.size());
+        for (Consumer<Config> listener : fileListeners) {
+            try {
+                listener.accept(config);
+            } catch (RuntimeException e) {
+                log.error("Reload of {} failed: {}", file, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,453 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distance-vector routing between neighbor routers (RIP-style, hop count metric).
+ * <p>
+ * Each router advertises the prefixes it can reach with their cost. Advertisements are
+ * control frames (FLAGS {@link FrameCodec#FLAG_ROUTING}) addressed to the neighbor router,
+ * with a payload of {@code prefix=cost} entries separated by commas, split over as many frames
+ * as needed. The full table is sent every advertise interval; changes are sent as
+ * incremental triggered updates, held back for {@link #TRIGGER_DELAY_NANOS} so that a burst
+ * of changes goes out as one batch.
+ * <p>
+ * Routes learned from a neighbor are advertised back to it as unreachable (split horizon
+ * with poison reverse). A neighbor that stays silent for three intervals is considered down
+ * and every route through it becomes unreachable. Routes restored from an earlier run are used
+ * right away but withdrawn unless their next hop confirms them within three intervals.
+ * <p>
+ * All state is owned by one thread; received advertisements are queued to it. The routes
+ * are published as an immutable snapshot for the router to build its FIB from.
+ */
+public class DistanceVector implements Runnable {
+    public static final int INFINITY = 16;
+
+    private static final long TRIGGER_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long CONVERGENCE_QUIET_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int MAX_PAYLOAD = NetworkLayer.MAX_FRAME_SIZE - 64;
+
+    /**
+     * A route as seen by this router. {@code nextHop} is the neighbor router id, or null for a
+     * directly connected prefix.
+     */
+    public record Route(String nextHop, int cost) {}
+
+    private record Advertisement(String from, String payload) {}
+
+    private record Reconfiguration(Map<String, InetSocketAddress> neighbors, Set<String> connected) {}
+
+    private final String routerId;
+    private Map<String, InetSocketAddress> neighbors;
+    private final NetworkLayer networkLayer;
+    private final Runnable onChange;
+    private final Log log;
+    private final long intervalNanos;
+
+    private final LinkedBlockingQueue<Advertisement> inbox = new LinkedBlockingQueue<>();
+    private volatile Reconfiguration pendingReconfiguration;
+    private final Map<String, Entry> table = new HashMap<>();
+    private final Map<String, Long> lastHeard = new HashMap<>();
+    private final Set<String> downNeighbors = new HashSet<>();
+    private final Set<String> changed = new HashSet<>();
+    private volatile Map<String, Route> routes = Map.of();
+    private int unconfirmed;
+
+    private long triggerAt = -1;
+    private boolean fullUpdatePending;
+    private boolean converging = true;
+    private long convergenceStart;
+    private long lastChange;
+    private volatile long lastConvergenceMillis = -1;
+    private final LongAdder updatesSent = new LongAdder();
+    private final LongAdder updatesReceived = new LongAdder();
+
+    private static final class Entry {
+        String nextHop;
+        int cost;
+        long changedAt;
+        // Restored from an earlier run and not yet advertised by the next hop
+        boolean restored;
+
+        Entry(String nextHop, int cost, long changedAt) {
+            this.nextHop = nextHop;
+            this.cost = cost;
+            this.changedAt = changedAt;
+        }
+    }
+
+    /**
+     * @param neighbors  neighbor router ids and their physical addresses
+     * @param connected  prefixes this router delivers to directly
+     * @param onChange   called on the routing thread after {@link #routes()} changed
+     */
+    public DistanceVector(String routerId, Map<String, InetSocketAddress> neighbors, Set<String> connected,
+                          NetworkLayer networkLayer, Runnable onChange, Metrics metrics, Log log,
+                          int intervalSeconds) {
+        this.routerId = routerId;
+        this.neighbors = neighbors;
+        this.networkLayer = networkLayer;
+        this.onChange = onChange;
+        this.log = log;
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(intervalSeconds);
+
+        long now = System.nanoTime();
+        for (String prefix : connected) {
+            table.put(prefix, new Entry(null, 0, now));
+        }
+        publish();
+
+        metrics.gauge("dv_routes", () -> routes.size());
+        metrics.gauge("dv_updates_sent", updatesSent::sum);
+        metrics.gauge("dv_updates_received", updatesReceived::sum);
+        metrics.gauge("dv_convergence_millis", () -> lastConvergenceMillis);
+    }
+
+    /**
+     * @return the current routes, including connected ones, without unreachable prefixes
+     */
+    public Map<String, Route> routes() {
+        return routes;
+    }
+
+    /**
+     * Adds routes learned in an earlier run, for prefixes with no route yet and through current
+     * neighbors. Must be called before the routing thread starts.
+     * @return the number of routes added
+     */
+    public int restore(Map<String, Route> learned) {
+        long now = System.nanoTime();
+        int added = 0;
+        for (Map.Entry<String, Route> e : learned.entrySet()) {
+            Route route = e.getValue();
+            if (route.nextHop() == null || !neighbors.containsKey(route.nextHop()) || route.cost() >= INFINITY
+                    || table.containsKey(e.getKey())) continue;
+            Entry entry = new Entry(route.nextHop(), route.cost(), now);
+            entry.restored = true;
+            table.put(e.getKey(), entry);
+            added++;
+        }
+        unconfirmed += added;
+        publish();
+        return added;
+    }
+
+    /**
+     * Replaces the neighbors and connected prefixes after a config reload. Applied on the
+     * routing thread: routes through removed neighbors and removed prefixes are withdrawn, and
+     * new neighbors get a full update.
+     */
+    public void reconfigure(Map<String, InetSocketAddress> neighbors, Set<String> connected) {
+        pendingReconfiguration = new Reconfiguration(Map.copyOf(neighbors), Set.copyOf(connected));
+        // Wake the routing thread
+        inbox.offer(new Advertisement(null, ""));
+    }
+
+    /**
+     * Queues an advertisement received from a neighbor. Called by the forwarding threads.
+     */
+    public void receive(String from, String payload) {
+        inbox.offer(new Advertisement(from, payload));
+    }
+
+    @Override
+    @SuppressWarnings("InfiniteLoopStatement")
+    public void run() {
+        long now = System.nanoTime();
+        convergenceStart = now;
+        lastChange = now;
+        for (String neighbor : neighbors.keySet()) {
+            lastHeard.put(neighbor, now);
+        }
+        long nextPeriodic = now;
+
+        while (true) {
+            long wake = nextPeriodic;
+            if (triggerAt >= 0 && triggerAt - wake < 0) wake = triggerAt;
+            if (converging && lastChange + CONVERGENCE_QUIET_NANOS - wake < 0) {
+                wake = lastChange + CONVERGENCE_QUIET_NANOS;
+            }
+
+            try {
+                Advertisement ad = inbox.poll(Math.max(0, wake - System.nanoTime()), TimeUnit.NANOSECONDS);
+                while (ad != null) {
+                    apply(ad, System.nanoTime());
+                    ad = inbox.poll();
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            now = System.nanoTime();
+            Reconfiguration reconfiguration = pendingReconfiguration;
+            if (reconfiguration != null) {
+                pendingReconfiguration = null;
+                applyReconfiguration(reconfiguration, now);
+            }
+            checkNeighbors(now);
+            if (unconfirmed > 0) {
+                withdrawUnconfirmed(now);
+            }
+
+            if (now - nextPeriodic >= 0) {
+                sendFullUpdate(now);
+                nextPeriodic = now + intervalNanos;
+            } else if (triggerAt >= 0 && now - triggerAt >= 0) {
+                sendTriggeredUpdate();
+            }
+
+            if (converging && now - lastChange >= CONVERGENCE_QUIET_NANOS) {
+                converging = false;
+                lastConvergenceMillis = TimeUnit.NANOSECONDS.toMillis(lastChange - convergenceStart);
+                log.info("Routing converged in {} ms with {} route(s)", lastConvergenceMillis, routes.size());
+            }
+        }
+    }
+
+    private void applyReconfiguration(Reconfiguration reconfiguration, long now) {
+        for (String neighbor : neighbors.keySet()) {
+            if (!reconfiguration.neighbors.containsKey(neighbor)) {
+                withdrawVia(neighbor, now);
+                lastHeard.remove(neighbor);
+                downNeighbors.remove(neighbor);
+            }
+        }
+        for (String neighbor : reconfiguration.neighbors.keySet()) {
+            if (lastHeard.putIfAbsent(neighbor, now) == null) {
+                fullUpdatePending = true;
+                scheduleTrigger(now);
+            }
+        }
+        neighbors = reconfiguration.neighbors;
+
+        for (Map.Entry<String, Entry> e : table.entrySet()) {
+            Entry entry = e.getValue();
+            if (entry.nextHop == null && entry.cost == 0 && !reconfiguration.connected.contains(e.getKey())) {
+                entry.cost = INFINITY;
+                entry.changedAt = now;
+                markChanged(e.getKey(), now);
+            }
+        }
+        for (String prefix : reconfiguration.connected) {
+            Entry entry = table.get(prefix);
+            if (entry == null) {
+                table.put(prefix, new Entry(null, 0, now));
+                markChanged(prefix, now);
+            } else if (entry.nextHop != null || entry.cost != 0) {
+                entry.nextHop = null;
+                entry.cost = 0;
+                entry.changedAt = now;
+                markChanged(prefix, now);
+            }
+        }
+        log.info("Distance-vector neighbors now {}, advertising {}", neighbors.keySet(), reconfiguration.connected);
+    }
+
+    private void apply(Advertisement ad, long now) {
+        if (ad.from == null) return;
+        if (!neighbors.containsKey(ad.from)) {
+            log.debug("Ignoring routing update from non-neighbor {}", ad.from);
+            return;
+        }
+        updatesReceived.increment();
+        lastHeard.put(ad.from, now);
+        if (downNeighbors.remove(ad.from)) {
+            log.info("Neighbor {} is up", ad.from);
+            // Let it learn everything we know right away
+            fullUpdatePending = true;
+            scheduleTrigger(now);
+        }
+
+        if (ad.payload.isEmpty()) return;
+        for (String item : ad.payload.split(",")) {
+            int eq = item.lastIndexOf('=');
+            if (eq <= 0) continue;
+            String prefix = item.substring(0, eq);
+            int cost;
+            try {
+                cost = Math.min(INFINITY, Integer.parseInt(item.substring(eq + 1)) + 1);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            update(prefix, ad.from, cost, now);
+        }
+    }
+
+    private void update(String prefix, String from, int cost, long now) {
+        Entry entry = table.get(prefix);
+        if (entry == null) {
+            if (cost >= INFINITY) return;
+            table.put(prefix, new Entry(from, cost, now));
+            markChanged(prefix, now);
+        } else if (from.equals(entry.nextHop)) {
+            confirm(entry);
+            // The current next hop is authoritative, even if the route got worse
+            if (entry.cost != cost) {
+                entry.cost = cost;
+                entry.changedAt = now;
+                markChanged(prefix, now);
+            }
+        } else if (cost < entry.cost) {
+            confirm(entry);
+            entry.nextHop = from;
+            entry.cost = cost;
+            entry.changedAt = now;
+            markChanged(prefix, now);
+        }
+    }
+
+    private void confirm(Entry entry) {
+        if (entry.restored) {
+            entry.restored = false;
+            unconfirmed--;
+        }
+    }
+
+    /**
+     * Withdraws the restored routes that their next hop has not advertised in three intervals,
+     * e.g. because it no longer reaches the prefix.
+     */
+    private void withdrawUnconfirmed(long now) {
+        int remaining = 0;
+        for (Map.Entry<String, Entry> e : table.entrySet()) {
+            Entry entry = e.getValue();
+            if (!entry.restored) continue;
+            if (entry.cost >= INFINITY) {
+                // Already withdrawn with its neighbor
+                entry.restored = false;
+            } else if (now - entry.changedAt >= 3 * intervalNanos) {
+                entry.restored = false;
+                entry.cost = INFINITY;
+                entry.changedAt = now;
+                markChanged(e.getKey(), now);
+            } else {
+                remaining++;
+            }
+        }
+        unconfirmed = remaining;
+    }
+
+    private void checkNeighbors(long now) {
+        for (Map.Entry<String, Long> heard : lastHeard.entrySet()) {
+            String neighbor = heard.getKey();
+            if (downNeighbors.contains(neighbor) || now - heard.getValue() < 3 * intervalNanos) continue;
+            downNeighbors.add(neighbor);
+            log.warn("Neighbor {} timed out, withdrawing its routes", neighbor);
+            withdrawVia(neighbor, now);
+        }
+    }
+
+    private void withdrawVia(String neighbor, long now) {
+        for (Map.Entry<String, Entry> e : table.entrySet()) {
+            Entry entry = e.getValue();
+            if (neighbor.equals(entry.nextHop) && entry.cost < INFINITY) {
+                entry.cost = INFINITY;
+                entry.changedAt = now;
+                markChanged(e.getKey(), now);
+            }
+        }
+    }
+
+    private void markChanged(String prefix, long now) {
+        changed.add(prefix);
+        if (!converging) {
+            converging = true;
+            convergenceStart = now;
+        }
+        lastChange = now;
+        scheduleTrigger(now);
+    }
+
+    private void scheduleTrigger(long now) {
+        if (triggerAt < 0) {
+            triggerAt = now + TRIGGER_DELAY_NANOS;
+        }
+    }
+
+    private void sendTriggeredUpdate() {
+        triggerAt = -1;
+        if (fullUpdatePending) {
+            sendFullUpdate(System.nanoTime());
+            return;
+        }
+        publishIfChanged();
+        for (String neighbor : neighbors.keySet()) {
+            if (!downNeighbors.contains(neighbor)) {
+                advertise(neighbor, changed);
+            }
+        }
+        changed.clear();
+    }
+
+    private void sendFullUpdate(long now) {
+        triggerAt = -1;
+        fullUpdatePending = false;
+        publishIfChanged();
+        changed.clear();
+        // Withdrawn routes were advertised as unreachable for a while; forget them
+        table.values().removeIf(entry -> entry.cost >= INFINITY && now - entry.changedAt > 2 * intervalNanos);
+        for (String neighbor : neighbors.keySet()) {
+            advertise(neighbor, table.keySet());
+        }
+    }
+
+    private void publishIfChanged() {
+        if (!changed.isEmpty()) {
+            publish();
+            onChange.run();
+        }
+    }
+
+    private void publish() {
+        Map<String, Route> snapshot = new HashMap<>();
+        table.forEach((prefix, entry) -> {
+            if (entry.cost < INFINITY) {
+                snapshot.put(prefix, new Route(entry.nextHop, entry.cost));
+            }
+        });
+        routes = Map.copyOf(snapshot);
+    }
+
+    /**
+     * Sends the given prefixes to one neighbor, as many frames as needed. An empty set still
+     * sends one frame, which keeps the neighbor from timing us out.
+     */
+    private void advertise(String neighbor, Set<String> prefixes) {
+        List<String> payloads = new ArrayList<>();
+        StringBuilder sb = new StringBuilder();
+        for (String prefix : prefixes) {
+            Entry entry = table.get(prefix);
+            if (entry == null) continue;
+            int cost = neighbor.equals(entry.nextHop) ? INFINITY : entry.cost;
+            String item = prefix + "=" + cost;
+            if (!sb.isEmpty() && sb.length() + 1 + item.length() > MAX_PAYLOAD) {
+                payloads.add(sb.toString());
+                sb.setLength(0);
+            }
+            if (!sb.isEmpty()) sb.append(',');
+            sb.append(item);
+        }
+        payloads.add(sb.toString());
+
+        InetSocketAddress address = neighbors.get(neighbor);
+        for (String payload : payloads) {
+            try {
+                ByteBuffer frame = FrameCodec.encode(FrameCodec.Format.BINARY, FrameCodec.FLAG_ROUTING,
+                        routerId, neighbor, "", "", payload);
+                networkLayer.send(frame, address);
+                updatesSent.increment();
+            } catch (IOException | IllegalArgumentException e) {
+                log.debug("Failed to send routing update to {}: {}", neighbor, e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,178 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.BiConsumer;
+
+/**
+ * Forwarding table with longest-prefix match over dotted virtual addresses.
+ * <p>
+ * Prefixes are matched on whole labels: {@code campus1.bldg2} matches {@code campus1.bldg2.C}
+ * but not {@code campus1.bldg20.C}. The prefix {@code "*"} is the default route.
+ * <p>
+ * The table is a trie with one level per label. Each node finds its children with an
+ * open-addressing hash of the label bytes, so a lookup walks the address once and allocates
+ * nothing. A Fib is built once and then only read, so it can be shared between threads.
+ *
+ * @param <V> the route stored for each prefix
+ */
+public final class Fib<V> {
+    public static final String DEFAULT_ROUTE = "*";
+
+    private static final byte DOT = '.';
+
+    private final Node<V> root = new Node<>(new byte[0]);
+    private int size;
+
+    private static final class Node<V> {
+        final byte[] label;
+        V value;
+        byte[][] keys = new byte[4][];
+        int[] hashes = new int[4];
+        Node<V>[] children = newChildren(4);
+        int count;
+
+        Node(byte[] label) {
+            this.label = label;
+        }
+
+        Node<V> find(ByteBuffer buf, int off, int len, int hash) {
+            int mask = keys.length - 1;
+            for (int i = hash & mask; keys[i] != null; i = (i + 1) & mask) {
+                if (hashes[i] == hash && matches(keys[i], buf, off, len)) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        Node<V> findOrAdd(byte[] label) {
+            int hash = hash(ByteBuffer.wrap(label), 0, label.length);
+            Node<V> existing = find(ByteBuffer.wrap(label), 0, label.length, hash);
+            if (existing != null) return existing;
+
+            if ((count + 1) * 2 > keys.length) {
+                resize();
+            }
+            Node<V> child = new Node<>(label);
+            put(label, hash, child);
+            count++;
+            return child;
+        }
+
+        private void put(byte[] label, int hash, Node<V> child) {
+            int mask = keys.length - 1;
+            int i = hash & mask;
+            while (keys[i] != null) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = label;
+            hashes[i] = hash;
+            children[i] = child;
+        }
+
+        private void resize() {
+            byte[][] oldKeys = keys;
+            int[] oldHashes = hashes;
+            Node<V>[] oldChildren = children;
+            keys = new byte[oldKeys.length * 2][];
+            hashes = new int[oldKeys.length * 2];
+            children = newChildren(oldKeys.length * 2);
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) {
+                    put(oldKeys[i], oldHashes[i], oldChildren[i]);
+                }
+            }
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private static <V> Node<V>[] newChildren(int n) {
+            return (Node<V>[]) new Node[n];
+        }
+    }
+
+    /**
+     * Adds or replaces the route for a prefix.
+     */
+    public void insert(String prefix, V value) {
+        Node<V> node = root;
+        if (!DEFAULT_ROUTE.equals(prefix)) {
+            for (String label : prefix.split("\\.")) {
+                if (label.isEmpty()) {
+                    throw new IllegalArgumentException("Empty label in prefix: " + prefix);
+                }
+                node = node.findOrAdd(label.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        if (node.value == null) size++;
+        node.value = value;
+    }
+
+    /**
+     * Longest-prefix match for the address stored in {@code buf[off, off + len)}.
+     * @return the route of the longest matching prefix, the default route, or null
+     */
+    public V lookup(ByteBuffer buf, int off, int len) {
+        Node<V> node = root;
+        V best = root.value;
+        int end = off + len;
+        int p = off;
+        while (p < end) {
+            int labelEnd = p;
+            int h = 1;
+            byte b;
+            while (labelEnd < end && (b = buf.get(labelEnd)) != DOT) {
+                h = 31 * h + b;
+                labelEnd++;
+            }
+            node = node.find(buf, p, labelEnd - p, h);
+            if (node == null) break;
+            if (node.value != null) best = node.value;
+            p = labelEnd + 1;
+        }
+        return best;
+    }
+
+    public V lookup(String address) {
+        byte[] bytes = address.getBytes(StandardCharsets.UTF_8);
+        return lookup(ByteBuffer.wrap(bytes), 0, bytes.length);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Visits every route with its prefix, parents before children.
+     */
+    public void forEach(BiConsumer<String, V> action) {
+        visit(root, null, action);
+    }
+
+    private void visit(Node<V> node, String prefix, BiConsumer<String, V> action) {
+        if (node.value != null) {
+            action.accept(prefix == null ? DEFAULT_ROUTE : prefix, node.value);
+        }
+        for (int i = 0; i < node.keys.length; i++) {
+            Node<V> child = node.children[i];
+            if (child != null) {
+                String label = new String(child.label, StandardCharsets.UTF_8);
+                visit(child, prefix == null ? label : prefix + "." + label, action);
+            }
+        }
+    }
+
+    private static int hash(ByteBuffer buf, int off, int len) {
+        int h = 1;
+        for (int i = 0; i < len; i++) {
+            h = 31 * h + buf.get(off + i);
+        }
+        return h;
+    }
+
+    private static boolean matches(byte[] key, ByteBuffer buf, int off, int len) {
+        if (key.length != len) return false;
+        for (int i = 0; i < len; i++) {
+            if (key[i] != buf.get(off + i)) return false;
+        }
+        return true;
+    }
+}
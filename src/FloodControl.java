@@ -0,0 +1,111 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Storm control for the frames a switch floods from one ingress port.
+ * <p>
+ * Two limits apply, both in frames per second and both off when 0:
+ * <ul>
+ *   <li>the rate limit is a token bucket: flooded frames beyond the rate, after a burst, are
+ *       dropped one by one;</li>
+ *   <li>the storm threshold is measured over one-second windows: a port whose frames to flood
+ *       exceed it in a window is suppressed, and everything it would flood is dropped, until a
+ *       window in which it sends fewer than half the threshold.</li>
+ * </ul>
+ * Frames to known destinations are never limited. Shared by the workers of a switch, so the
+ * state is guarded by the instance's lock; only flooded frames take it.
+ */
+final class FloodControl {
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * The configured limits, shared by every port of a switch and replaced on reload.
+     * @param burst frames that may be flooded at once after an idle period
+     */
+    record Limits(long ratePerSecond, long burst, long stormThreshold) {}
+
+    enum Verdict { FLOOD, RATE_LIMITED, SUPPRESSED }
+
+    private final String port;
+    private final Log log;
+    private final LongAdder storms;
+
+    // Guarded by this; the bucket starts full
+    private double tokens = Double.POSITIVE_INFINITY;
+    private long refilledAt;
+    private long windowStart;
+    private long windowFrames;
+    private boolean suppressed;
+
+    /**
+     * @param storms counts the storms of every port of the switch, including removed ones
+     */
+    FloodControl(String port, Log log, LongAdder storms) {
+        this.port = port;
+        this.log = log;
+        this.storms = storms;
+        this.refilledAt = System.nanoTime();
+        this.windowStart = refilledAt;
+    }
+
+    /**
+     * Decides whether a frame arriving on this port may be flooded.
+     */
+    Verdict admit(Limits limits, long nowNanos) {
+        if (limits.ratePerSecond() <= 0 && limits.stormThreshold() <= 0) {
+            return Verdict.FLOOD;
+        }
+        synchronized (this) {
+            if (limits.stormThreshold() > 0 && stormed(limits.stormThreshold(), nowNanos)) {
+                return Verdict.SUPPRESSED;
+            }
+            if (limits.ratePerSecond() > 0) {
+                long burst = Math.max(1, limits.burst());
+                tokens = Math.min(burst, tokens + (nowNanos - refilledAt) * limits.ratePerSecond() / 1e9);
+                refilledAt = nowNanos;
+                if (tokens < 1) {
+                    return Verdict.RATE_LIMITED;
+                }
+                tokens--;
+            }
+            return Verdict.FLOOD;
+        }
+    }
+
+    /**
+     * Counts the frame in the current window and, when the window is over, enters or leaves
+     * suppression according to its rate.
+     * @return whether the port is suppressed
+     */
+    private boolean stormed(long threshold, long nowNanos) {
+        windowFrames++;
+        long elapsed = nowNanos - windowStart;
+        if (elapsed >= WINDOW_NANOS) {
+            double rate = windowFrames * 1e9 / elapsed;
+            if (!suppressed && rate > threshold) {
+                suppressed = true;
+                storms.increment();
+                log.warn("Flood storm on port {}: {} frames/s, suppressing flooding from it", port, Math.round(rate));
+            } else if (suppressed && rate < threshold / 2.0) {
+                suppressed = false;
+                log.info("Flood storm on port {} is over: {} frames/s", port, Math.round(rate));
+            }
+            windowStart = nowNanos;
+            windowFrames = 0;
+        } else if (!suppressed && windowFrames > threshold) {
+            // Do not let a storm run for the rest of the window
+            suppressed = true;
+            storms.increment();
+            log.warn("Flood storm on port {}: over {} frames/s, suppressing flooding from it", port, threshold);
+        }
+        return suppressed;
+    }
+
+    /**
+     * @return whether the port is suppressed; a port that has sent nothing since its last window
+     *         would leave suppression with its next frame, so it no longer counts
+     */
+    synchronized boolean isSuppressed() {
+        return suppressed && System.nanoTime() - windowStart < 2 * WINDOW_NANOS;
+    }
+}
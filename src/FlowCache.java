@@ -0,0 +1,145 @@
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of per-flow forwarding decisions keyed by (srcIP, destIP).
+ * <p>
+ * Lookups go through a reusable probe key that points into the frame buffer, so a hit does not
+ * allocate. The cache is tied to the routing table instance it was filled from: passing a
+ * different table to {@link #validate(Object)} drops every entry. Not thread-safe; each
+ * forwarding thread owns its own cache.
+ *
+ * @param <V> the cached forwarding decision
+ */
+public class FlowCache<V> {
+    private final LinkedHashMap<FlowKey, V> entries;
+    private final FlowKey probe = new FlowKey();
+    private Object generation;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    public FlowCache(int capacity) {
+        this.entries = new LinkedHashMap<>(capacity * 4 / 3 + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<FlowKey, V> eldest) {
+                if (size() > capacity) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Clears the cache if it was filled from a different routing table than {@code table}.
+     */
+    public void validate(Object table) {
+        if (table != generation) {
+            if (!entries.isEmpty()) {
+                entries.clear();
+                invalidations++;
+            }
+            generation = table;
+        }
+    }
+
+    public V lookup(FrameCodec.View view) {
+        V value = entries.get(probe.set(view));
+        if (value == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return value;
+    }
+
+    /**
+     * Caches a decision for the flow of the parsed frame.
+     */
+    public void put(FrameCodec.View view, V value) {
+        entries.put(probe.set(view).copy(), value);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long hits() {
+        return hits;
+    }
+
+    public long misses() {
+        return misses;
+    }
+
+    public long evictions() {
+        return evictions;
+    }
+
+    public String stats() {
+        return String.format("flowCache size=%d hits=%d misses=%d evictions=%d invalidations=%d",
+                entries.size(), hits, misses, evictions, invalidations);
+    }
+
+    /**
+     * The (srcIP, destIP) pair of a frame. Either points into a frame buffer (probe) or owns a copy.
+     */
+    private static final class FlowKey {
+        private ByteBuffer buf;
+        private int srcOff;
+        private int srcLen;
+        private int destOff;
+        private int destLen;
+        private int hash;
+
+        FlowKey set(FrameCodec.View view) {
+            buf = view.buffer();
+            srcOff = view.offset(FrameCodec.SRC_IP);
+            srcLen = view.length(FrameCodec.SRC_IP);
+            destOff = view.offset(FrameCodec.DEST_IP);
+            destLen = view.length(FrameCodec.DEST_IP);
+            hash = view.fieldHash(FrameCodec.SRC_IP) * 31 + view.fieldHash(FrameCodec.DEST_IP);
+            return this;
+        }
+
+        FlowKey copy() {
+            byte[] bytes = new byte[srcLen + destLen];
+            buf.get(srcOff, bytes, 0, srcLen);
+            buf.get(destOff, bytes, srcLen, destLen);
+            FlowKey key = new FlowKey();
+            key.buf = ByteBuffer.wrap(bytes);
+            key.srcOff = 0;
+            key.srcLen = srcLen;
+            key.destOff = srcLen;
+            key.destLen = destLen;
+            key.hash = hash;
+            return key;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof FlowKey other)) return false;
+            return hash == other.hash && srcLen == other.srcLen && destLen == other.destLen &&
+                    regionEquals(buf, srcOff, other.buf, other.srcOff, srcLen) &&
+                    regionEquals(buf, destOff, other.buf, other.destOff, destLen);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        private static boolean regionEquals(ByteBuffer a, int aOff, ByteBuffer b, int bOff, int len) {
+            for (int i = 0; i < len; i++) {
+                if (a.get(aOff + i) != b.get(bOff + i)) return false;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The bounded stage between the thread that receives frames and a thread that forwards them.
+ * Taking frames off the socket quickly and dropping them here under overload, by a chosen
+ * {@link DropPolicy}, makes the loss visible and controllable instead of leaving it to the
+ * kernel's socket buffer.
+ * <p>
+ * Frames are handed over by swapping buffers with preallocated slots, so the hand-off does not
+ * allocate. There is one receiving thread per queue; only it calls {@link #offer}.
+ */
+final class ForwardQueue {
+    private static final double RED_WEIGHT = 1.0 / 64;
+    private static final double RED_MAX_PROBABILITY = 0.1;
+
+    /**
+     * What a full or filling queue drops.
+     */
+    enum DropPolicy {
+        /** The arriving frame, once the queue is full. */
+        TAIL,
+        /** The oldest queued frame, once the queue is full, so the queue holds the freshest. */
+        HEAD,
+        /**
+         * Random early detection: once the average depth passes a quarter of the capacity,
+         * arriving frames are dropped with a probability that grows to 10% at three quarters and
+         * to 100% beyond, so senders see loss before the queue is full; tail drop when full.
+         */
+        RED;
+
+        static DropPolicy fromConfig(String value) {
+            if (value == null) return TAIL;
+            return DropPolicy.valueOf(value.trim().toUpperCase());
+        }
+    }
+
+    static final class Slot {
+        ByteBuffer frame;
+        InetSocketAddress sender;
+
+        Slot(ByteBuffer frame) {
+            this.frame = frame;
+        }
+    }
+
+    private final DropPolicy policy;
+    private final int capacity;
+    private final ArrayBlockingQueue<Slot> free;
+    private final ArrayBlockingQueue<Slot> ready;
+    private final Metrics metrics;
+    // Owned by the receiving thread
+    private double averageDepth;
+
+    ForwardQueue(int capacity, DropPolicy policy, NetworkLayer networkLayer, Metrics metrics) {
+        this.policy = policy;
+        this.capacity = capacity;
+        this.free = new ArrayBlockingQueue<>(capacity);
+        this.ready = new ArrayBlockingQueue<>(capacity);
+        this.metrics = metrics;
+        for (int i = 0; i < capacity; i++) {
+            free.offer(new Slot(networkLayer.acquireBuffer()));
+        }
+    }
+
+    /**
+     * Takes frame {@code i} of the receive batch, leaving a spare buffer in its place, or drops
+     * a frame as the policy says.
+     * @return false if the arriving frame was dropped
+     */
+    boolean offer(FrameBatch batch, int i) {
+        if (policy == DropPolicy.RED && earlyDrop()) {
+            metrics.drop(Metrics.Drop.EARLY_DROP);
+            return false;
+        }
+        Slot slot = free.poll();
+        if (slot == null && policy == DropPolicy.HEAD) {
+            slot = ready.poll();
+            if (slot != null) {
+                metrics.drop(Metrics.Drop.QUEUE_FULL);
+            }
+        }
+        if (slot == null) {
+            metrics.drop(Metrics.Drop.QUEUE_FULL);
+            return false;
+        }
+        slot.sender = batch.address(i);
+        slot.frame = batch.exchange(i, slot.frame);
+        ready.offer(slot);
+        return true;
+    }
+
+    private boolean earlyDrop() {
+        averageDepth += (ready.size() - averageDepth) * RED_WEIGHT;
+        double min = capacity / 4.0;
+        double max = capacity * 3 / 4.0;
+        if (averageDepth < min) return false;
+        if (averageDepth >= max) return true;
+        double probability = RED_MAX_PROBABILITY * (averageDepth - min) / (max - min);
+        return ThreadLocalRandom.current().nextDouble() < probability;
+    }
+
+    /**
+     * Waits for at least one frame, then takes every queued frame up to the array's length.
+     * The slots must be given back with {@link #release} once their frames are handled.
+     * @return the number of slots taken
+     */
+    int take(Slot[] taken) throws InterruptedException {
+        int n = 0;
+        taken[n++] = ready.take();
+        Slot slot;
+        while (n < taken.length && (slot = ready.poll()) != null) {
+            taken[n++] = slot;
+        }
+        return n;
+    }
+
+    void release(Slot[] taken, int n) {
+        for (int i = 0; i < n; i++) {
+            taken[i].sender = null;
+            free.offer(taken[i]);
+        }
+    }
+
+    int depth() {
+        return ready.size();
+    }
+}
@@ -0,0 +1,79 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Splits messages that do not fit in one frame of a link's MTU into fragments, which the
+ * destination host puts back together with a {@link Reassembler}.
+ * <p>
+ * A fragment is a binary frame with {@link FrameCodec#FLAG_FRAGMENT} set whose payload starts with
+ * <pre>
+ *   message id(4) | fragment index(2) | fragment count(2)
+ * </pre>
+ * followed by its part of the message. Switches and routers forward fragments like any other
+ * frame. A message that fits in one frame is sent as a plain frame, so hosts that do not
+ * reassemble still receive it.
+ */
+final class Fragmenter {
+    static final int HEADER = 8;
+    static final int MAX_FRAGMENTS = 0xFFFF;
+
+    private final int mtu;
+    // Starts at random so a restarted host does not reuse the ids of its last messages
+    private final AtomicInteger nextId = new AtomicInteger(ThreadLocalRandom.current().nextInt());
+
+    Fragmenter(int mtu) {
+        this.mtu = mtu;
+    }
+
+    int mtu() {
+        return mtu;
+    }
+
+    /**
+     * @param flags FLAGS bits every frame of the message carries
+     * @return the frames that carry the message, in order
+     * @throws IllegalArgumentException if the message needs fragmenting and the format is
+     *                                  LEGACY, or it needs more than {@link #MAX_FRAGMENTS}
+     */
+    List<ByteBuffer> fragment(FrameCodec.Format format, byte flags, String srcMac, String destMac, String srcIp,
+                              String destIp, byte[] message) {
+        int headerLength = FrameCodec.encode(format, flags, srcMac, destMac, srcIp, destIp, new byte[0]).remaining();
+        if (headerLength + message.length <= mtu) {
+            return List.of(FrameCodec.encode(format, flags, srcMac, destMac, srcIp, destIp, message));
+        }
+        if (format == FrameCodec.Format.LEGACY) {
+            throw new IllegalArgumentException("Message of " + message.length + " bytes exceeds the MTU of " +
+                    mtu + " and legacy frames cannot be fragmented");
+        }
+
+        ByteBuffer header = FrameCodec.encode(format, (byte) (flags | FrameCodec.FLAG_FRAGMENT), srcMac, destMac,
+                srcIp, destIp, new byte[0]);
+        int chunk = mtu - headerLength - HEADER;
+        if (chunk <= 0) {
+            throw new IllegalArgumentException("Frame header of " + headerLength + " bytes leaves no room in the MTU of " + mtu);
+        }
+        int count = (message.length + chunk - 1) / chunk;
+        if (count > MAX_FRAGMENTS) {
+            throw new IllegalArgumentException("Message of " + message.length + " bytes needs more than " +
+                    MAX_FRAGMENTS + " fragments");
+        }
+
+        int id = nextId.getAndIncrement();
+        List<ByteBuffer> fragments = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int from = i * chunk;
+            int length = Math.min(chunk, message.length - from);
+            ByteBuffer fragment = ByteBuffer.allocate(headerLength + HEADER + length);
+            fragment.put(header.duplicate())
+                    .putInt(id)
+                    .putShort((short) i)
+                    .putShort((short) count)
+                    .put(message, from, length);
+            fragments.add(fragment.flip());
+        }
+        return fragments;
+    }
+}
@@ -0,0 +1,103 @@
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * A reusable array of frame slots for {@link NetworkLayer#receiveBatch} and
+ * {@link NetworkLayer#sendBatch}.
+ * <p>
+ * A receive batch owns one pooled buffer per slot and {@code address(i)} is the sender of
+ * frame {@code i}. A send batch only holds references to frames that live elsewhere (usually
+ * in the receive batch) together with their destinations, so it must be flushed before those
+ * buffers are reused.
+ */
+public class FrameBatch {
+    private final ByteBuffer[] frames;
+    private final InetSocketAddress[] addresses;
+    private final boolean owned;
+    private int size;
+
+    /**
+     * Creates an empty send batch.
+     */
+    public FrameBatch(int capacity) {
+        this.frames = new ByteBuffer[capacity];
+        this.addresses = new InetSocketAddress[capacity];
+        this.owned = false;
+    }
+
+    FrameBatch(BufferPool pool, int capacity) {
+        this.frames = new ByteBuffer[capacity];
+        this.addresses = new InetSocketAddress[capacity];
+        this.owned = true;
+        for (int i = 0; i < capacity; i++) {
+            frames[i] = pool.acquire();
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return frames.length;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public ByteBuffer frame(int i) {
+        return frames[i];
+    }
+
+    public InetSocketAddress address(int i) {
+        return addresses[i];
+    }
+
+    /**
+     * Queues a frame on a send batch.
+     * @return false if the batch is full and must be flushed first
+     */
+    public boolean add(ByteBuffer frame, InetSocketAddress dest) {
+        if (owned) throw new IllegalStateException("Cannot add to a receive batch");
+        if (size == frames.length) return false;
+        frames[size] = frame;
+        addresses[size] = dest;
+        size++;
+        return true;
+    }
+
+    public void clear() {
+        if (!owned) {
+            for (int i = 0; i < size; i++) {
+                frames[i] = null;
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            addresses[i] = null;
+        }
+        size = 0;
+    }
+
+    /**
+     * Swaps the buffer of a receive batch slot, handing the received frame to the caller.
+     * @return the frame that was in the slot
+     */
+    ByteBuffer exchange(int i, ByteBuffer replacement) {
+        ByteBuffer frame = frames[i];
+        frames[i] = replacement;
+        return frame;
+    }
+
+    void setReceived(int i, InetSocketAddress sender) {
+        addresses[i] = sender;
+        size = i + 1;
+    }
+
+    void release(BufferPool pool) {
+        if (!owned) return;
+        for (ByteBuffer frame : frames) {
+            pool.release(frame);
+        }
+    }
+}
@@ -0,0 +1,378 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Wire format shared by Host, Switch and Router.
+ * <p>
+ * Binary frames are laid out as
+ * <pre>
+ *   MAGIC(1) FLAGS(1) | len srcMAC | len destMAC | len srcIP | len destIP | payload ...
+ * </pre>
+ * where every {@code len} is a single unsigned byte and the payload runs to the end of the
+ * datagram. {@link #MAGIC} is never a valid leading byte in UTF-8, so a frame that does not start
+ * with it can be read as a legacy {@code "srcMAC:destMAC:srcIP:destIP:payload"} text frame.
+ * <p>
+ * Parsing fills a reusable {@link View} with field offsets into the receive buffer, so switches
+ * and routers can inspect and rewrite headers without copying or decoding the payload.
+ */
+public final class FrameCodec {
+    public static final byte MAGIC = (byte) 0xFA;
+
+    public static final int SRC_MAC = 0;
+    public static final int DEST_MAC = 1;
+    public static final int SRC_IP = 2;
+    public static final int DEST_IP = 3;
+    public static final int PAYLOAD = 4;
+
+    public static final int MAX_FIELD_LENGTH = 255;
+
+    /** FLAGS bit of router-to-router control frames, which are never forwarded. */
+    public static final byte FLAG_ROUTING = 0x01;
+    /** FLAGS bit of a fragment of a larger message; see {@link Fragmenter}. */
+    public static final byte FLAG_FRAGMENT = 0x02;
+    /** FLAGS bit of a segment of the {@link ReliableTransport}. */
+    public static final byte FLAG_RELIABLE = 0x04;
+    /** FLAGS bit of a frame carrying several small messages; see {@link Outbox}. */
+    public static final byte FLAG_BATCH = 0x08;
+    /** FLAGS bit of a frame whose messages are requests or responses; see {@link Requests}. */
+    public static final byte FLAG_REQUEST = 0x10;
+    /**
+     * The top three FLAGS bits are the frame's priority, from 0 (best effort) to
+     * {@link #MAX_PRIORITY}, which routers with output queues use to pick its traffic class.
+     */
+    public static final int PRIORITY_SHIFT = 5;
+    public static final int MAX_PRIORITY = 7;
+
+    private static final int PREAMBLE = 2;
+    private static final int HEADER_FIELDS = 4;
+    private static final byte SEPARATOR = ':';
+
+    /**
+     * How a device reads and writes frames.
+     * BINARY only accepts binary frames, COMPAT accepts both and sends binary,
+     * LEGACY accepts both and sends text so that old devices can still read our output.
+     */
+    public enum Format {
+        BINARY, COMPAT, LEGACY;
+
+        public boolean acceptsLegacy() {
+            return this != BINARY;
+        }
+
+        public static Format fromConfig(String value) {
+            if (value == null) return COMPAT;
+            return Format.valueOf(value.trim().toUpperCase());
+        }
+    }
+
+    /**
+     * Decoded copy of a frame, for callers that want Strings (e.g. Host).
+     */
+    public record Frame(String srcMac, String destMac, String srcIp, String destIp, String payload) {}
+
+    /**
+     * Offsets of the header fields of a frame sitting in a buffer. Reused between frames.
+     */
+    public static final class View {
+        private ByteBuffer buf;
+        private int start;
+        private int end;
+        private boolean legacy;
+        private byte flags;
+        private final int[] off = new int[PAYLOAD + 1];
+        private final int[] len = new int[PAYLOAD + 1];
+
+        public ByteBuffer buffer() {
+            return buf;
+        }
+
+        public boolean isLegacy() {
+            return legacy;
+        }
+
+        public byte flags() {
+            return flags;
+        }
+
+        public int priority() {
+            return (flags & 0xFF) >>> PRIORITY_SHIFT;
+        }
+
+        public int offset(int field) {
+            return off[field];
+        }
+
+        public int length(int field) {
+            return len[field];
+        }
+
+        public int frameLength() {
+            return end - start;
+        }
+
+        public String field(int field) {
+            byte[] bytes = new byte[len[field]];
+            buf.get(off[field], bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        public boolean fieldEquals(int field, byte[] value) {
+            if (len[field] != value.length) return false;
+            int p = off[field];
+            for (int i = 0; i < value.length; i++) {
+                if (buf.get(p + i) != value[i]) return false;
+            }
+            return true;
+        }
+
+        public int fieldHash(int field) {
+            int h = 1;
+            int p = off[field];
+            for (int i = 0; i < len[field]; i++) {
+                h = 31 * h + buf.get(p + i);
+            }
+            return h;
+        }
+
+        @Override
+        public String toString() {
+            return field(SRC_MAC) + ":" + field(DEST_MAC) + ":" + field(SRC_IP) + ":" +
+                    field(DEST_IP) + ":" + field(PAYLOAD);
+        }
+    }
+
+    private FrameCodec() {}
+
+    /**
+     * Parses the frame between the buffer's position and limit into {@code view}.
+     *
+     * @return false if the frame is malformed, or is a legacy text frame and legacy is not accepted
+     */
+    public static boolean parse(ByteBuffer buf, View view, boolean acceptLegacy) {
+        int start = buf.position();
+        int end = buf.limit();
+        view.buf = buf;
+        view.start = start;
+        view.end = end;
+
+        if (end - start >= PREAMBLE && buf.get(start) == MAGIC) {
+            int p = start + PREAMBLE;
+            for (int f = 0; f < HEADER_FIELDS; f++) {
+                if (p >= end) return false;
+                int l = buf.get(p++) & 0xFF;
+                if (p + l > end) return false;
+                view.off[f] = p;
+                view.len[f] = l;
+                p += l;
+            }
+            view.off[PAYLOAD] = p;
+            view.len[PAYLOAD] = end - p;
+            view.flags = buf.get(start + 1);
+            view.legacy = false;
+            return true;
+        }
+
+        if (!acceptLegacy) return false;
+
+        int p = start;
+        for (int f = 0; f < HEADER_FIELDS; f++) {
+            int sep = indexOf(buf, SEPARATOR, p, end);
+            if (sep < 0) return false;
+            view.off[f] = p;
+            view.len[f] = sep - p;
+            p = sep + 1;
+        }
+        view.off[PAYLOAD] = p;
+        view.len[PAYLOAD] = end - p;
+        view.flags = 0;
+        view.legacy = true;
+        return true;
+    }
+
+    /**
+     * Sets the priority bits of a frame built by {@link #encode}, in place. Legacy frames have no
+     * flags and are left at the default priority.
+     */
+    public static void setPriority(ByteBuffer frame, int priority) {
+        if (priority < 0 || priority > MAX_PRIORITY) {
+            throw new IllegalArgumentException("Priority must be 0-" + MAX_PRIORITY + ": " + priority);
+        }
+        int at = frame.position();
+        if (frame.remaining() < PREAMBLE || frame.get(at) != MAGIC) return;
+        int flags = frame.get(at + 1) & ~(MAX_PRIORITY << PRIORITY_SHIFT);
+        frame.put(at + 1, (byte) (flags | priority << PRIORITY_SHIFT));
+    }
+
+    public static Frame decode(View view) {
+        return new Frame(view.field(SRC_MAC), view.field(DEST_MAC), view.field(SRC_IP),
+                view.field(DEST_IP), view.field(PAYLOAD));
+    }
+
+    /**
+     * Builds a new frame in the given format. Only used where frames originate (Host);
+     * forwarding devices rewrite received frames in place instead.
+     */
+    public static ByteBuffer encode(Format format, String srcMac, String destMac,
+                                    String srcIp, String destIp, String payload) {
+        return encode(format, (byte) 0, srcMac, destMac, srcIp, destIp, payload);
+    }
+
+    /**
+     * Builds a frame with the given FLAGS byte. Legacy text frames have no flags, so they are
+     * only allowed with {@code flags == 0}.
+     */
+    public static ByteBuffer encode(Format format, byte flags, String srcMac, String destMac,
+                                    String srcIp, String destIp, String payload) {
+        return encode(format, flags, srcMac, destMac, srcIp, destIp, payload.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static ByteBuffer encode(Format format, byte flags, String srcMac, String destMac,
+                                    String srcIp, String destIp, byte[] body) {
+        if (format == Format.LEGACY && flags != 0) {
+            throw new IllegalArgumentException("Legacy frames cannot carry flags");
+        }
+        byte[][] fields = {
+                srcMac.getBytes(StandardCharsets.UTF_8),
+                destMac.getBytes(StandardCharsets.UTF_8),
+                srcIp.getBytes(StandardCharsets.UTF_8),
+                destIp.getBytes(StandardCharsets.UTF_8)
+        };
+
+        int size = body.length + (format == Format.LEGACY ? 0 : PREAMBLE);
+        for (byte[] field : fields) {
+            if (field.length > MAX_FIELD_LENGTH) {
+                throw new IllegalArgumentException("Header field longer than " + MAX_FIELD_LENGTH + " bytes");
+            }
+            size += field.length + 1;
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        if (format == Format.LEGACY) {
+            for (byte[] field : fields) {
+                buf.put(field).put(SEPARATOR);
+            }
+        } else {
+            buf.put(MAGIC).put(flags);
+            for (byte[] field : fields) {
+                buf.put((byte) field.length).put(field);
+            }
+        }
+        buf.put(body);
+        return buf.flip();
+    }
+
+    /**
+     * Replaces the source and destination MAC of the parsed frame in place, shifting the rest of
+     * the frame if the new header has a different length. The buffer's limit is moved to the new
+     * end of the frame and {@code view} is updated to match.
+     *
+     * @return false if the rewritten frame would not fit in the buffer
+     */
+    public static boolean rewriteMacs(View view, byte[] srcMac, byte[] destMac) {
+        return rewriteMacs(view, srcMac, destMac, destMac.length);
+    }
+
+    /**
+     * Same as {@link #rewriteMacs(View, byte[], byte[])} with the destination MAC taken from the
+     * first {@code destLength} bytes of {@code destMac}, so callers can pass a scratch array.
+     */
+    public static boolean rewriteMacs(View view, byte[] srcMac, byte[] destMac, int destLength) {
+        if (srcMac.length > MAX_FIELD_LENGTH || destLength > MAX_FIELD_LENGTH) return false;
+
+        ByteBuffer buf = view.buf;
+        int headStart = view.legacy ? view.start : view.start + PREAMBLE;
+        int restFrom = view.legacy ? view.off[SRC_IP] : view.off[SRC_IP] - 1;
+        int newRestFrom = headStart + srcMac.length + destLength + 2;
+        int delta = newRestFrom - restFrom;
+        int newEnd = view.end + delta;
+        if (newEnd > buf.capacity()) return false;
+
+        if (delta > 0) buf.limit(newEnd);
+        shift(buf, restFrom, view.end, delta);
+        if (delta < 0) buf.limit(newEnd);
+
+        int p = headStart;
+        if (view.legacy) {
+            view.off[SRC_MAC] = p;
+            buf.put(p, srcMac);
+            p += srcMac.length;
+            buf.put(p++, SEPARATOR);
+            view.off[DEST_MAC] = p;
+            buf.put(p, destMac, 0, destLength);
+            p += destLength;
+            buf.put(p, SEPARATOR);
+        } else {
+            buf.put(p++, (byte) srcMac.length);
+            view.off[SRC_MAC] = p;
+            buf.put(p, srcMac);
+            p += srcMac.length;
+            buf.put(p++, (byte) destLength);
+            view.off[DEST_MAC] = p;
+            buf.put(p, destMac, 0, destLength);
+        }
+        view.len[SRC_MAC] = srcMac.length;
+        view.len[DEST_MAC] = destLength;
+        for (int f = SRC_IP; f <= PAYLOAD; f++) {
+            view.off[f] += delta;
+        }
+        view.end = newEnd;
+        return true;
+    }
+
+    /**
+     * @return a copy of the frame's header, everything before the payload
+     */
+    public static byte[] copyHeader(View view) {
+        byte[] header = new byte[view.off[PAYLOAD] - view.start];
+        view.buf.get(view.start, header);
+        return header;
+    }
+
+    /**
+     * Overwrites the header of a binary frame with a header previously taken from
+     * {@link #copyHeader}, keeping this frame's flags and payload. The payload is shifted in
+     * place if the header length differs, and {@code view} is re-parsed.
+     *
+     * @return false if the frame would not fit in the buffer
+     */
+    public static boolean replaceHeader(View view, byte[] header) {
+        ByteBuffer buf = view.buf;
+        byte flags = view.flags;
+        int payloadFrom = view.off[PAYLOAD];
+        int delta = view.start + header.length - payloadFrom;
+        int newEnd = view.end + delta;
+        if (view.legacy || newEnd > buf.capacity()) return false;
+
+        if (delta > 0) buf.limit(newEnd);
+        shift(buf, payloadFrom, view.end, delta);
+        if (delta < 0) buf.limit(newEnd);
+
+        buf.put(view.start, header);
+        buf.put(view.start + 1, flags);
+        buf.position(view.start);
+        return parse(buf, view, false);
+    }
+
+    private static void shift(ByteBuffer buf, int from, int to, int delta) {
+        if (delta == 0 || from == to) return;
+        if (buf.hasArray()) {
+            int base = buf.arrayOffset();
+            System.arraycopy(buf.array(), base + from, buf.array(), base + from + delta, to - from);
+        } else if (delta > 0) {
+            for (int i = to - 1; i >= from; i--) {
+                buf.put(i + delta, buf.get(i));
+            }
+        } else {
+            for (int i = from; i < to; i++) {
+                buf.put(i + delta, buf.get(i));
+            }
+        }
+    }
+
+    private static int indexOf(ByteBuffer buf, byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buf.get(i) == b) return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,133 @@
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * {@link MacTable} backed by a {@link ConcurrentHashMap}. A known MAC's port and last-seen time
+ * are volatile fields updated in place, and the time is only written once per tick, so
+ * re-learning a MAC neither allocates nor dirties a shared cache line on every frame.
+ * <p>
+ * New MACs are added under a lock, which keeps the capacity exact. Eviction samples entries with
+ * an iterator that carries on where the previous eviction stopped, so successive evictions look
+ * at different parts of the table.
+ */
+final class HeapMacTable<P> extends MacTable<P> {
+    private final ConcurrentHashMap<MacKey, Entry<P>> entries = new ConcurrentHashMap<>();
+    private final Object insertLock = new Object();
+    // Guarded by insertLock
+    private Iterator<Map.Entry<MacKey, Entry<P>>> evictionCursor;
+
+    private static final class Entry<P> {
+        volatile P port;
+        volatile int seen;
+
+        Entry(P port, int seen) {
+            this.port = port;
+            this.seen = seen;
+        }
+    }
+
+    HeapMacTable(int capacity, int agingSeconds) {
+        super(capacity, agingSeconds);
+    }
+
+    @Override
+    public boolean learn(MacKey mac, P port) {
+        Entry<P> entry = entries.get(mac);
+        if (entry != null) {
+            refresh(entry, port);
+            return false;
+        }
+        synchronized (insertLock) {
+            entry = entries.get(mac);
+            if (entry != null) {
+                refresh(entry, port);
+                return false;
+            }
+            if (entries.size() >= capacity) {
+                evictOne();
+            }
+            entries.put(mac.copy(), new Entry<>(port, clock));
+        }
+        learned.increment();
+        return true;
+    }
+
+    @Override
+    public boolean restore(MacKey mac, P port, int idleSeconds) {
+        synchronized (insertLock) {
+            if (entries.size() >= capacity) return false;
+            return entries.putIfAbsent(mac.copy(), new Entry<>(port, clock - idleSeconds)) == null;
+        }
+    }
+
+    private void refresh(Entry<P> entry, P port) {
+        if (entry.port != port && !port.equals(entry.port)) {
+            entry.port = port;
+            moves.increment();
+        }
+        int now = clock;
+        if (entry.seen != now) {
+            entry.seen = now;
+        }
+    }
+
+    private void evictOne() {
+        Map.Entry<MacKey, Entry<P>> oldest = null;
+        int now = clock;
+        for (int i = 0; i < EVICTION_SAMPLES; i++) {
+            if (evictionCursor == null || !evictionCursor.hasNext()) {
+                evictionCursor = entries.entrySet().iterator();
+                if (!evictionCursor.hasNext()) break;
+            }
+            Map.Entry<MacKey, Entry<P>> candidate = evictionCursor.next();
+            if (oldest == null || now - candidate.getValue().seen > now - oldest.getValue().seen) {
+                oldest = candidate;
+            }
+        }
+        if (oldest != null && entries.remove(oldest.getKey(), oldest.getValue())) {
+            evictions.increment();
+        }
+    }
+
+    @Override
+    public P lookup(MacKey mac) {
+        Entry<P> entry = entries.get(mac);
+        if (entry == null || isExpired(entry.seen, clock)) return null;
+        return entry.port;
+    }
+
+    @Override
+    public int removeIf(Predicate<P> stale) {
+        int removed = 0;
+        for (Map.Entry<MacKey, Entry<P>> e : entries.entrySet()) {
+            if (stale.test(e.getValue().port) && entries.remove(e.getKey(), e.getValue())) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    protected int expire(int now) {
+        int removed = 0;
+        for (Map.Entry<MacKey, Entry<P>> e : entries.entrySet()) {
+            if (isExpired(e.getValue().seen, now) && entries.remove(e.getKey(), e.getValue())) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public void forEachEntry(EntryVisitor<P> visitor) {
+        int now = clock;
+        entries.forEach((mac, entry) -> visitor.visit(mac, entry.port, now - entry.seen));
+    }
+}
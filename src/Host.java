@@ -1,33 +1,107 @@
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.Scanner;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+
+/**
+ * End device of the network. Run standalone it reads destinations and messages from stdin, or
+ * plays a traffic profile; embedded in another program it is driven through its public methods:
+ * <pre>
+ * Host host = new Host("A");
+ * host.initialize(new Config("config.json"));
+ * host.onMessage((sourceIP, message) -> ...);
+ * host.start();
+ * host.send("subnet3.C", bytes).join();
+ * byte[] answer = host.request("subnet3.C", bytes, Duration.ofSeconds(1)).get();
+ * </pre>
+ * Sends are queued and never block the caller; messages are sent in order by one thread.
+ */
+public class Host implements AutoCloseable {
+    private static final int TRAFFIC_REPORT_SECONDS = 5;
+
+    /**
+     * A message received by the host, as published by {@link #messages()}.
+     */
+    public record Message(String sourceIP, byte[] payload) {}
 
-public class Host {
     private final String hostID;
     private final String mac;
+    private final byte[] macBytes;
     private String switchIP;
     private int switchPort;
+    private InetSocketAddress switchAddress;
 
     private String srcIP;
     private String gatewayMac;
 
     private NetworkLayer networkLayer;
+    private FrameCodec.Format frameFormat;
+    private final Metrics metrics;
+    private Metrics.PortCounters uplink;
+    private Fragmenter fragmenter;
+    private Reassembler reassembler;
+    private ReliableTransport transport;
+    private boolean reliable;
+    private int priority;
+    private Outbox outbox;
+    private final Requests requests = new Requests();
+    private volatile BiConsumer<String, byte[]> handler;
+    private volatile BiFunction<String, byte[], CompletionStage<byte[]>> responder;
+    private volatile SubmissionPublisher<Message> publisher;
+    private final TrafficStats trafficStats;
+    private boolean virtualThreads;
+    private Thread receiverThread;
+    private Thread outboxThread;
+    private volatile boolean closed;
+    private final Log log;
 
-    private Host(String hostID) {
+    public Host(String hostID) {
         this.mac = hostID;
+        this.macBytes = hostID.getBytes(StandardCharsets.UTF_8);
         this.hostID = hostID;
+        this.log = Log.get(hostID);
+        this.metrics = new Metrics(hostID);
+        this.trafficStats = new TrafficStats(log);
     }
 
-    @SuppressWarnings("SameParameterValue")
-    private void initialize(String configFile) throws IOException {
+    /**
+     * @param profileFile traffic profile to play instead of reading messages from stdin, or null
+     */
+    private void initialize(String configFile, String profileFile) throws IOException {
         //load config
         Config config = new Config(configFile);
+        Log.configure(config.getLogLevel(hostID), config.getLogFile(hostID));
+        initialize(config, null);
+        start(profileFile, true);
+    }
 
+    /**
+     * Sets the host up from a loaded config, to be started with {@link #start()}.
+     */
+    public void initialize(Config config) throws IOException {
+        initialize(config, null);
+    }
+
+    /**
+     * Sets the host up from a loaded config. With a fabric the host runs inside a
+     * {@link TopologyRunner}: it reaches other local devices through memory and uses virtual threads.
+     */
+    void initialize(Config config, LocalFabric fabric) throws IOException {
         String myIp = config.getIp(hostID);
         int myPort = config.getPort(hostID);
 
         this.srcIP = config.getVirtualIp(hostID);
+        this.frameFormat = config.getFrameFormat(hostID);
         String gateway = config.getGateway(hostID);
         
         if (gateway != null && gateway.contains(".")) {
@@ -39,50 +113,347 @@ public class Host {
         String switchId = config.getNeighbors(hostID).getFirst();
         switchIP = config.getIp(switchId);
         switchPort = config.getPort(switchId);
+        switchAddress = new InetSocketAddress(switchIP, switchPort);
+
+        networkLayer = fabric == null
+                ? new NetworkLayer(myPort, false, config.getFrameSize(hostID)) : fabric.open(hostID, false);
+        virtualThreads = fabric != null;
+        uplink = metrics.port(switchIP + ":" + switchPort);
+        networkLayer.setLossRate(config.getLossRate(hostID));
+        networkLayer.setSocketBuffers(config.getReceiveBuffer(hostID), config.getSendBuffer(hostID));
+        fragmenter = new Fragmenter(config.getMtu(hostID, switchId));
+        reassembler = new Reassembler(config.getReassemblyBuffers(hostID), config.getReassemblyTimeoutMillis(hostID),
+                config.getMaxMessageBytes(hostID), metrics);
+        metrics.gauge("rx_oversized_frames", networkLayer::oversizedFrames);
+        metrics.gauge("reassembly_pending", reassembler::pending);
+        metrics.gauge("reassembly_fragments", reassembler::fragments);
+        metrics.gauge("reassembly_messages", reassembler::messages);
+        metrics.gauge("reassembly_timeouts", reassembler::timeouts);
+        metrics.gauge("reassembly_evictions", reassembler::evictions);
+        metrics.gauge("reassembly_oversized", reassembler::oversized);
+        reliable = config.isReliable(hostID);
+        priority = config.getPriority(hostID);
+        transport = new ReliableTransport(hostID, new ReliableTransport.Link() {
+            @Override
+            public int maxPayload(String destIP) {
+                return fragmenter.mtu() - FrameCodec.encode(frameFormat, FrameCodec.FLAG_RELIABLE, mac,
+                        targetMacFor(destIP), srcIP, destIP, new byte[0]).remaining();
+            }
 
-        networkLayer = new NetworkLayer(myPort);
+            @Override
+            public void send(String destIP, byte[] payload, byte flags) throws IOException {
+                sendFrame(FrameCodec.encode(frameFormat, (byte) (flags | FrameCodec.FLAG_RELIABLE), mac,
+                        targetMacFor(destIP), srcIP, destIP, payload));
+            }
+        }, config.getReliableWindow(hostID), config.getMaxMessageBytes(hostID), this::deliver, log);
+        metrics.gauge("reliable_segments_sent", transport::segmentsSent);
+        metrics.gauge("reliable_retransmits", transport::retransmits);
+        metrics.gauge("reliable_fast_retransmits", transport::fastRetransmits);
+        metrics.gauge("reliable_timeouts", transport::timeouts);
+        metrics.gauge("reliable_bytes_acked", transport::bytesAcked);
+        metrics.gauge("reliable_bytes_delivered", transport::bytesDelivered);
+        metrics.gauge("reliable_failures", transport::failures);
+        metrics.gauge("injected_losses", networkLayer::injectedLosses);
+        metrics.gauge("kernel_rx_drops", networkLayer::kernelDrops);
+        metrics.gauge("inbox_drops", networkLayer::inboxDrops);
+        outbox = new Outbox(new Outbox.Transmitter() {
+            @Override
+            public void send(String destIP, byte[] message, byte flags) throws IOException {
+                if (reliable) {
+                    transport.send(destIP, message, flags);
+                } else {
+                    transmit(destIP, message, flags);
+                }
+            }
 
-        System.out.println("Host " + hostID + " initialized on " +
-                myIp + " : " + myPort);
-        System.out.println("Virtual IP: " + srcIP);
-        System.out.println("Gateway MAC: " + gatewayMac);
+            @Override
+            public void sendBatch(String destIP, byte[] payload, int length, byte flags) throws IOException {
+                sendFrame(FrameCodec.encode(frameFormat, (byte) (flags | FrameCodec.FLAG_BATCH), mac,
+                        targetMacFor(destIP), srcIP, destIP, Arrays.copyOf(payload, length)));
+            }
 
-        try (ExecutorService executor = Executors.newFixedThreadPool(2)) {
-            executor.submit(this::sender);
-            executor.submit(this::receiver);
+            @Override
+            public int batchRoom(String destIP) {
+                // The reliable transport sends whole windows already; legacy frames have no flags
+                if (reliable || frameFormat == FrameCodec.Format.LEGACY) return 0;
+                return fragmenter.mtu() - FrameCodec.encode(frameFormat, FrameCodec.FLAG_BATCH, mac,
+                        targetMacFor(destIP), srcIP, destIP, new byte[0]).remaining();
+            }
+        }, metrics);
+        outbox.setCoalescing(config.isCoalescing(hostID));
+        metrics.gauge("outbox_queued", outbox::queued);
+        metrics.gauge("outbox_messages", outbox::messages);
+        metrics.gauge("outbox_batches", outbox::batches);
+        metrics.gauge("outbox_coalesced", outbox::coalesced);
+        metrics.gauge("requests_pending", requests::pending);
+        metrics.gauge("requests_sent", requests::sent);
+        metrics.gauge("requests_answered", requests::answered);
+        metrics.gauge("requests_timeouts", requests::timeouts);
+        metrics.gauge("requests_late", requests::late);
+        config.startMetrics(hostID, metrics);
+
+        log.info("Host {} initialized on {}:{}", hostID, myIp, myPort);
+        log.info("Virtual IP: {}, gateway MAC: {}, MTU: {}", srcIP, gatewayMac, fragmenter.mtu());
+        if (reliable) {
+            log.info("Sending reliably with a window of {} segments", config.getReliableWindow(hostID));
+        }
+        if (outbox.isCoalescing()) {
+            log.info("Coalescing small messages");
+        }
+    }
+
+    /**
+     * Runs the receiver and a sender until the process exits. Received messages are printed
+     * unless a handler was registered.
+     *
+     * @param profileFile traffic profile to play, or null
+     * @param interactive without a profile, read destinations and messages from stdin
+     */
+    void start(String profileFile, boolean interactive) throws IOException {
+        if (handler == null) {
+            handler = this::print;
+        }
+        Runnable sender = interactive ? this::sender : null;
+        if (profileFile != null) {
+            sender = new TrafficGenerator(profileFile, networkLayer, switchAddress,
+                    (destIP, payload) -> {
+                        ByteBuffer frame = FrameCodec.encode(frameFormat, mac, targetMacFor(destIP), srcIP, destIP, payload);
+                        FrameCodec.setPriority(frame, priority);
+                        return frame;
+                    },
+                    uplink, fragmenter.mtu(), transport, log);
+        }
+        start();
+
+        if (sender != null) {
+            sender.run();
+        }
+        try {
+            receiverThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Starts receiving and sending in the background. Register handlers first, or messages
+     * arriving before they are may be missed.
+     */
+    public synchronized void start() {
+        if (receiverThread != null) {
+            throw new IllegalStateException("Host " + hostID + " already started");
+        }
+        trafficStats.startReporting(TRAFFIC_REPORT_SECONDS);
+        Thread.Builder builder = virtualThreads ? Thread.ofVirtual() : Thread.ofPlatform().daemon();
+        outboxThread = builder.name(hostID + "-send").start(outbox::run);
+        receiverThread = builder.name(hostID + "-receive").start(this::receiver);
+    }
+
+    /**
+     * Queues a message of any size for sending, in fragments or reliably as configured.
+     * @return a future completed once the message has left the host, or failed if it could not
+     *         be sent or the send queue is full
+     */
+    public CompletableFuture<Void> send(String destIP, byte[] message) {
+        return outbox.submit(destIP, message);
+    }
+
+    /**
+     * Sends a request to a host that registered a responder with {@link #onRequest}.
+     * @return a future completed with the response, or failed if the request could not be sent,
+     *         the responder failed, or no response came within {@code timeout}
+     *         ({@link java.util.concurrent.TimeoutException})
+     */
+    public CompletableFuture<byte[]> request(String destIP, byte[] message, Duration timeout) {
+        CompletableFuture<byte[]> response = new CompletableFuture<>();
+        long id = requests.start(response, timeout);
+        byte[] request = Requests.encode(Requests.Kind.REQUEST, id, message);
+        outbox.submit(destIP, request, FrameCodec.FLAG_REQUEST).whenComplete((sent, e) -> {
+            if (e != null) {
+                response.completeExceptionally(e);
+            }
+        });
+        return response;
+    }
+
+    /**
+     * Calls {@code handler} with the source IP and contents of every message received, on the
+     * receiving thread, so it must not block. Replaces the previous handler.
+     */
+    public void onMessage(BiConsumer<String, byte[]> handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Answers requests with {@code responder}, which is called on the receiving thread and so
+     * should hand slow work off and return a future of the response. Requests fail at the
+     * requester while no responder is registered.
+     */
+    public void onRequest(BiFunction<String, byte[], CompletionStage<byte[]>> responder) {
+        this.responder = responder;
+    }
+
+    /**
+     * @return a publisher of the messages received from now on. Messages are dropped, and
+     *         counted as slow_consumer drops, for subscribers whose buffer is full.
+     */
+    public synchronized Flow.Publisher<Message> messages() {
+        if (publisher == null) {
+            publisher = new SubmissionPublisher<>();
+        }
+        return publisher;
+    }
+
+    /**
+     * Turns coalescing of small messages into shared frames on or off; see {@link Outbox}.
+     */
+    public void setCoalescing(boolean coalescing) {
+        outbox.setCoalescing(coalescing);
+    }
+
+    public String getVirtualIp() {
+        return srcIP;
+    }
+
+    /**
+     * Stops the host. Messages still queued fail, and subscribers are completed.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (outboxThread != null) {
+            outboxThread.interrupt();
+            receiverThread.interrupt();
+        }
+        networkLayer.close();
+        if (publisher != null) {
+            publisher.close();
         }
     }
 
     //sender
-    @SuppressWarnings("InfiniteLoopStatement")
     private void sender() {
         Scanner scanner = new Scanner(System.in);
-        while (true) {
+        while (!closed) {
             System.out.println("Virtual destination IP: ");
+            if (!scanner.hasNextLine()) return;
             String destIP = scanner.nextLine();
 
             System.out.print("Message: ");
+            if (!scanner.hasNextLine()) return;
             String message = scanner.nextLine();
 
-            String targetMac;
-            if (extractSubnet(srcIP).equals(extractSubnet(destIP))) {
-                targetMac = extractHostId(destIP);
-            } else {
-                targetMac = gatewayMac;
+            try {
+                send(destIP, message.getBytes(StandardCharsets.UTF_8)).join();
+            } catch (CompletionException e) {
+                System.out.println("Host " + hostID + " Failed to send frame");
             }
+        }
+    }
+
+    /**
+     * Sends a message of any size, in fragments if it does not fit in one frame of the uplink.
+     */
+    private void transmit(String destIP, byte[] message, byte flags) throws IOException {
+        for (ByteBuffer frame : fragmenter.fragment(frameFormat, flags, mac, targetMacFor(destIP), srcIP, destIP, message)) {
+            sendFrame(frame);
+        }
+    }
+
+    /**
+     * Sends a frame of this host to the switch, marked with the host's priority.
+     */
+    private void sendFrame(ByteBuffer frame) throws IOException {
+        FrameCodec.setPriority(frame, priority);
+        uplink.tx(frame.remaining());
+        networkLayer.send(frame, switchAddress);
+    }
 
-            String frame = mac + ":" + targetMac + ":" + srcIP + ":" + destIP + ":" + message;
+    /**
+     * Receives the messages of the reliable transport. Traffic generator payloads are only
+     * counted, by the transport's reports.
+     */
+    private void deliver(String sourceIP, byte[] message, byte flags) {
+        if (!TrafficGenerator.isGenerated(message)) {
+            dispatch(sourceIP, message, flags);
+        }
+    }
 
+    /**
+     * Hands a received message to the request tracker if its frame was marked with
+     * {@link FrameCodec#FLAG_REQUEST}, and to the handler and the subscribers otherwise.
+     */
+    private void dispatch(String sourceIP, byte[] message, byte flags) {
+        if ((flags & FrameCodec.FLAG_REQUEST) != 0) {
+            Requests.Kind kind = Requests.kind(message);
+            if (kind == null) {
+                metrics.drop(Metrics.Drop.INVALID_FRAME);
+            } else if (kind == Requests.Kind.REQUEST) {
+                answer(sourceIP, message);
+            } else {
+                requests.complete(sourceIP, message);
+            }
+            return;
+        }
+
+        BiConsumer<String, byte[]> handler = this.handler;
+        if (handler != null) {
             try {
-                networkLayer.send(frame, switchIP, switchPort);
-            } catch (IOException e) {
-                System.out.println("Host " + hostID + " Failed to send frame");
+                handler.accept(sourceIP, message);
+            } catch (RuntimeException e) {
+                log.error("Message handler failed", e);
             }
         }
+        SubmissionPublisher<Message> publisher = this.publisher;
+        if (publisher != null) {
+            publisher.offer(new Message(sourceIP, message), (subscriber, dropped) -> {
+                metrics.drop(Metrics.Drop.SLOW_CONSUMER);
+                return false;
+            });
+        }
+    }
+
+    private void answer(String sourceIP, byte[] request) {
+        long id = Requests.id(request);
+        BiFunction<String, byte[], CompletionStage<byte[]>> responder = this.responder;
+        CompletionStage<byte[]> response;
+        try {
+            response = responder != null
+                    ? responder.apply(sourceIP, Requests.body(request))
+                    : CompletableFuture.failedFuture(new IllegalStateException("Host " + hostID + " has no responder"));
+        } catch (RuntimeException e) {
+            response = CompletableFuture.failedFuture(e);
+        }
+        response.whenComplete((body, e) -> {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            byte[] answer = cause == null
+                    ? Requests.encode(Requests.Kind.RESPONSE, id, body)
+                    : Requests.encode(Requests.Kind.ERROR, id, String.valueOf(cause.getMessage()).getBytes(StandardCharsets.UTF_8));
+            // The outbox counts the drop; the requester only sees a timeout, so say why here
+            outbox.submit(sourceIP, answer, FrameCodec.FLAG_REQUEST).whenComplete((sent, error) -> {
+                if (error != null) {
+                    log.warn("Failed to answer request {} of {}: {}", id, sourceIP, error.getMessage());
+                }
+            });
+        });
+    }
+
+    private void print(String sourceIP, byte[] message) {
+        System.out.println("Message from " + sourceIP + ": " + new String(message, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Hosts on our subnet are addressed directly, everything else goes to the gateway.
+     */
+    private String targetMacFor(String destIP) {
+        if (extractSubnet(srcIP).equals(extractSubnet(destIP))) {
+            return extractHostId(destIP);
+        }
+        return gatewayMac;
     }
 
     private String extractSubnet(String virtualIP) {
-        int dotIndex = virtualIP.indexOf('.');
+        int dotIndex = virtualIP.lastIndexOf('.');
         if (dotIndex > 0) {
             return virtualIP.substring(0, dotIndex);
         }
@@ -98,48 +469,74 @@ public class Host {
     }
 
     //receiver
-    @SuppressWarnings("InfiniteLoopStatement")
     private void receiver() {
-        while (true) {
+        ByteBuffer buffer = networkLayer.acquireBuffer();
+        FrameCodec.View view = new FrameCodec.View();
+        while (!closed) {
             try {
-                NetworkLayer.Data data = networkLayer.receive();
-                String[] parts = data.frame().split(":", 5);
-                if (parts.length < 5){
+                networkLayer.receive(buffer.clear());
+                uplink.rx(buffer.remaining());
+                if (!FrameCodec.parse(buffer, view, frameFormat.acceptsLegacy())) {
+                    metrics.drop(Metrics.Drop.INVALID_FRAME);
                     continue;
                 }
 
-                String destMac = parts[1];
-                String srcIP = parts[2];
-                String message = parts[4];
-
-                if (destMac.equals(mac)) {
-                    System.out.println("Message from " + srcIP + ": " + message);
-                } else {
-                    System.out.println("Debug: MAC address mismatch - received " + destMac + " Mac: " + mac + ". (Flooded frame)");
+                if (!view.fieldEquals(FrameCodec.DEST_MAC, macBytes)) {
+                    log.debug("MAC address mismatch - received {} Mac: {}. (Flooded frame)",
+                            view.field(FrameCodec.DEST_MAC), mac);
+                    metrics.drop(Metrics.Drop.NOT_FOR_ME);
+                    continue;
+                }
+                if ((view.flags() & FrameCodec.FLAG_RELIABLE) != 0) {
+                    transport.receive(view);
+                    continue;
+                }
+                if ((view.flags() & FrameCodec.FLAG_FRAGMENT) != 0) {
+                    byte[] message = reassembler.add(view, System.nanoTime());
+                    if (message != null) {
+                        dispatch(view.field(FrameCodec.SRC_IP), message, view.flags());
+                    }
+                    continue;
                 }
+                if ((view.flags() & FrameCodec.FLAG_BATCH) != 0) {
+                    byte flags = view.flags();
+                    if (!Outbox.split(view, (sourceIP, message) -> dispatch(sourceIP, message, flags))) {
+                        metrics.drop(Metrics.Drop.INVALID_FRAME);
+                    }
+                    continue;
+                }
+                if (trafficStats.record(view)) {
+                    continue;
+                }
+
+                byte[] message = new byte[view.length(FrameCodec.PAYLOAD)];
+                buffer.get(view.offset(FrameCodec.PAYLOAD), message);
+                dispatch(view.field(FrameCodec.SRC_IP), message, view.flags());
             } catch (IOException e) {
-                System.out.println("Receive error");
+                if (closed) return;
+                log.error("Receive error: {}", e.getMessage());
             }
         }
     }
 
     public static void main(String[] args) {
         if (args.length < 1) {
-            System.out.println("Usage: java Host <hostID> [configFile]");
+            System.out.println("Usage: java Host <hostID> [configFile] [trafficProfile]");
             return;
         }
 
         String hostId = args[0];
         String configFile = (args.length > 1) ? args[1] : "resources/config.json";
+        String profileFile = (args.length > 2) ? args[2] : null;
 
         Host host = new Host(hostId);
         try {
-            host.initialize(configFile);
+            host.initialize(configFile, profileFile);
         } catch (IOException e) {
             if (args.length > 1) {
                 System.out.println("Failed to load config from " + configFile + ", trying default resource...");
                 try {
-                    host.initialize("resources/config.json");
+                    host.initialize("resources/config.json", profileFile);
                     return;
                 } catch (IOException ex) {
                     throw new RuntimeException("Failed to load default config", ex);
@@ -0,0 +1,172 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONException;
+import org.json.JSONTokener;
+
+/**
+ * Forward-only JSON lexer over UTF-8 bytes, for finding the structure of a large document
+ * without building it. Values are either read as strings or skipped; the byte range of a
+ * skipped value can be handed to org.json later if it turns out to be needed.
+ * <p>
+ * Structural characters are ASCII, so the bytes are scanned directly and only strings that
+ * are read get decoded. Commas are not checked strictly.
+ */
+final class JsonScanner {
+    private final ByteBuffer buf;
+    private final int limit;
+    private int pos;
+
+    JsonScanner(ByteBuffer buf) {
+        this(buf, 0);
+    }
+
+    /**
+     * @param start absolute position to start scanning at
+     */
+    JsonScanner(ByteBuffer buf, int start) {
+        this.buf = buf;
+        this.limit = buf.limit();
+        this.pos = start;
+    }
+
+    int position() {
+        return pos;
+    }
+
+    /**
+     * Skips whitespace and consumes {@code c}.
+     */
+    void expect(char c) throws IOException {
+        if (peek() != c) {
+            throw error("expected '" + c + "'");
+        }
+        pos++;
+    }
+
+    /**
+     * Call after the opening bracket of an object or array and after each element.
+     * @return true if another element follows, false after consuming the closing bracket
+     */
+    boolean hasNext(char close) throws IOException {
+        int c = peek();
+        if (c == ',') {
+            pos++;
+            c = peek();
+        }
+        if (c == close) {
+            pos++;
+            return false;
+        }
+        if (c < 0) throw error("unexpected end of input");
+        return true;
+    }
+
+    /**
+     * Reads an object key and its colon.
+     */
+    String readKey() throws IOException {
+        String key = readString();
+        expect(':');
+        return key;
+    }
+
+    String readString() throws IOException {
+        if (peek() != '"') throw error("expected a string");
+        int start = pos;
+        boolean escaped = skipString();
+        if (!escaped) {
+            return decode(start + 1, pos - 1);
+        }
+        try {
+            return (String) new JSONTokener(decode(start, pos)).nextValue();
+        } catch (JSONException e) {
+            throw error(e.getMessage());
+        }
+    }
+
+    /**
+     * Skips one value of any type.
+     * @return the position where the value starts
+     */
+    int skipValue() throws IOException {
+        int c = peek();
+        int start = pos;
+        if (c == '"') {
+            skipString();
+        } else if (c == '{' || c == '[') {
+            int depth = 0;
+            while (pos < limit) {
+                byte b = buf.get(pos);
+                if (b == '"') {
+                    skipString();
+                    continue;
+                }
+                pos++;
+                if (b == '{' || b == '[') {
+                    depth++;
+                } else if ((b == '}' || b == ']') && --depth == 0) {
+                    return start;
+                }
+            }
+            throw error("unexpected end of input");
+        } else if (c < 0) {
+            throw error("unexpected end of input");
+        } else {
+            while (pos < limit) {
+                byte b = buf.get(pos);
+                if (b == ',' || b == '}' || b == ']' || isWhitespace(b)) break;
+                pos++;
+            }
+            if (pos == start) throw error("expected a value");
+        }
+        return start;
+    }
+
+    /**
+     * @return the text of the range, for org.json to parse
+     */
+    String decode(int start, int end) {
+        byte[] bytes = new byte[end - start];
+        buf.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    IOException error(String message) {
+        return new IOException("Malformed JSON at byte " + pos + ": " + message);
+    }
+
+    /**
+     * Skips whitespace.
+     * @return the next byte, or -1 at the end of input
+     */
+    private int peek() {
+        while (pos < limit && isWhitespace(buf.get(pos))) {
+            pos++;
+        }
+        return pos < limit ? buf.get(pos) : -1;
+    }
+
+    /**
+     * Skips a string starting at the current position, including its quotes.
+     * @return whether it contained escapes
+     */
+    private boolean skipString() throws IOException {
+        boolean escaped = false;
+        pos++;
+        while (pos < limit) {
+            byte b = buf.get(pos++);
+            if (b == '"') return escaped;
+            if (b == '\\') {
+                escaped = true;
+                pos++;
+            }
+        }
+        throw error("unterminated string");
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+}
@@ -0,0 +1,128 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Connects the devices that run in one process (see {@link TopologyRunner}) through memory.
+ * <p>
+ * Every local device registers its configured ip:port. A {@link NetworkLayer} opened through
+ * the fabric delivers frames to another local device by copying them into that device's
+ * bounded inbox, which drops when full like a socket receive buffer. Frames for devices that
+ * are not local still go over UDP, so a layer only opens a socket if the device has a remote
+ * neighbor.
+ */
+public class LocalFabric {
+    static final int INBOX_CAPACITY = 1024;
+    private static final int DATAGRAM_POOL_SIZE = 16384;
+
+    private final Config config;
+    private final Set<String> localDevices;
+    // Several layers share an address when a router shards its receive path
+    private final ConcurrentHashMap<InetSocketAddress, NetworkLayer[]> endpoints = new ConcurrentHashMap<>();
+    private final ArrayBlockingQueue<Datagram> datagramPool = new ArrayBlockingQueue<>(DATAGRAM_POOL_SIZE);
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * A frame in flight between two local devices.
+     */
+    static final class Datagram {
+        // Grown for jumbo frames; most datagrams stay at the default size
+        byte[] data = new byte[NetworkLayer.BUFFER_CAPACITY];
+        int length;
+        InetSocketAddress sender;
+    }
+
+    public LocalFabric(Config config, Set<String> localDevices) {
+        this.config = config;
+        this.localDevices = localDevices;
+    }
+
+    /**
+     * Opens the network layer of a local device on its configured address.
+     * @param reusePort whether several layers of this device will share the address
+     */
+    public NetworkLayer open(String deviceId, boolean reusePort) throws IOException {
+        InetSocketAddress address = new InetSocketAddress(config.getIp(deviceId), config.getPort(deviceId));
+        NetworkLayer layer = new NetworkLayer(address, this, hasRemoteNeighbor(deviceId), reusePort,
+                config.getFrameSize(deviceId));
+        endpoints.merge(address, new NetworkLayer[]{layer}, (existing, added) -> {
+            NetworkLayer[] all = Arrays.copyOf(existing, existing.length + 1);
+            all[existing.length] = added[0];
+            return all;
+        });
+        return layer;
+    }
+
+    /**
+     * @return whether the device is linked to a device outside this process, and so needs a socket
+     */
+    public boolean hasRemoteNeighbor(String deviceId) {
+        for (String neighbor : config.getNeighbors(deviceId)) {
+            if (!localDevices.contains(neighbor)) return true;
+        }
+        return false;
+    }
+
+    void close(InetSocketAddress address, NetworkLayer layer) {
+        endpoints.computeIfPresent(address, (key, existing) -> {
+            NetworkLayer[] rest = Arrays.stream(existing).filter(l -> l != layer).toArray(NetworkLayer[]::new);
+            return rest.length == 0 ? null : rest;
+        });
+    }
+
+    /**
+     * @return the local layer that receives frames sent to {@code dest} by {@code sender},
+     *         or null if no local device has that address
+     */
+    NetworkLayer endpoint(InetSocketAddress dest, InetSocketAddress sender) {
+        NetworkLayer[] layers = endpoints.get(dest);
+        if (layers == null) return null;
+        if (layers.length == 1) return layers[0];
+        // Keep each sender on one shard so its frames stay in order
+        return layers[Math.floorMod(sender.hashCode(), layers.length)];
+    }
+
+    /**
+     * @return a datagram with room for {@code length} bytes
+     */
+    Datagram acquire(int length) {
+        Datagram datagram = datagramPool.poll();
+        if (datagram == null) {
+            datagram = new Datagram();
+        }
+        if (datagram.data.length < length) {
+            datagram.data = new byte[length];
+        }
+        return datagram;
+    }
+
+    void release(Datagram datagram) {
+        datagram.sender = null;
+        datagramPool.offer(datagram);
+    }
+
+    void countDelivered() {
+        delivered.increment();
+    }
+
+    void countDropped() {
+        dropped.increment();
+    }
+
+    public long delivered() {
+        return delivered.sum();
+    }
+
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    public int endpointCount() {
+        return endpoints.size();
+    }
+}
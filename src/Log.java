@@ -0,0 +1,228 @@
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Leveled logging that keeps console/file I/O off the forwarding threads.
+ * <p>
+ * Messages use {@code {}} placeholders and fixed-arity overloads, so a call below the current
+ * level returns after one volatile read without building a String or an argument array.
+ * Enabled messages are rendered on the calling thread (frame buffers are reused, so arguments
+ * cannot be formatted later) and handed to a background writer through a lock-free bounded ring.
+ * If the ring is full the message is dropped and counted rather than blocking forwarding.
+ * A Throwable passed after the arguments of the placeholders is logged with its stack trace.
+ * <p>
+ * Output goes to stdout (WARN and ERROR to stderr) unless a log file is configured.
+ */
+public final class Log {
+    public enum Level { ERROR, WARN, INFO, DEBUG, TRACE }
+
+    private static final int RING_SIZE = 8192;
+    private static final int MASK = RING_SIZE - 1;
+
+    private static volatile Level threshold = Level.INFO;
+    private static volatile Writer fileOut;
+
+    private static final String[] messages = new String[RING_SIZE];
+    private static final Level[] levels = new Level[RING_SIZE];
+    private static final AtomicLongArray sequences = new AtomicLongArray(RING_SIZE);
+    private static final AtomicLong tail = new AtomicLong();
+    private static long head; // guarded by Log.class, only the draining thread moves it
+    private static final LongAdder dropped = new LongAdder();
+    private static final Thread writer = new Thread(Log::writerLoop, "log-writer");
+    // Set while the writer is parked on an empty ring, so producers only unpark it then
+    private static volatile boolean waiting;
+
+    static {
+        for (int i = 0; i < RING_SIZE; i++) {
+            sequences.set(i, i);
+        }
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::drain, "log-flush"));
+    }
+
+    private final String prefix;
+
+    private Log(String name) {
+        this.prefix = "[" + name + "] ";
+    }
+
+    /**
+     * @return a logger whose messages are prefixed with {@code [name]}
+     */
+    public static Log get(String name) {
+        return new Log(name);
+    }
+
+    /**
+     * Sets the global level and output. A null level keeps INFO; a null file logs to the console.
+     */
+    public static synchronized void configure(String level, String file) throws IOException {
+        threshold = level == null ? Level.INFO : Level.valueOf(level.trim().toUpperCase());
+        Writer previous = fileOut;
+        fileOut = file == null ? null : new BufferedWriter(new FileWriter(file, true));
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.ordinal() <= threshold.ordinal();
+    }
+
+    public static long droppedMessages() {
+        return dropped.sum();
+    }
+
+    public void error(String fmt) { log(Level.ERROR, fmt, null, null, null, null); }
+    public void error(String fmt, Object a) { log(Level.ERROR, fmt, a, null, null, null); }
+    public void error(String fmt, Object a, Object b) { log(Level.ERROR, fmt, a, b, null, null); }
+    public void error(String fmt, Object a, Object b, Object c) { log(Level.ERROR, fmt, a, b, c, null); }
+
+    public void warn(String fmt) { log(Level.WARN, fmt, null, null, null, null); }
+    public void warn(String fmt, Object a) { log(Level.WARN, fmt, a, null, null, null); }
+    public void warn(String fmt, Object a, Object b) { log(Level.WARN, fmt, a, b, null, null); }
+    public void warn(String fmt, Object a, Object b, Object c) { log(Level.WARN, fmt, a, b, c, null); }
+
+    public void info(String fmt) { log(Level.INFO, fmt, null, null, null, null); }
+    public void info(String fmt, Object a) { log(Level.INFO, fmt, a, null, null, null); }
+    public void info(String fmt, Object a, Object b) { log(Level.INFO, fmt, a, b, null, null); }
+    public void info(String fmt, Object a, Object b, Object c) { log(Level.INFO, fmt, a, b, c, null); }
+
+    public void debug(String fmt) { log(Level.DEBUG, fmt, null, null, null, null); }
+    public void debug(String fmt, Object a) { log(Level.DEBUG, fmt, a, null, null, null); }
+    public void debug(String fmt, Object a, Object b) { log(Level.DEBUG, fmt, a, b, null, null); }
+    public void debug(String fmt, Object a, Object b, Object c) { log(Level.DEBUG, fmt, a, b, c, null); }
+    public void debug(String fmt, Object a, Object b, Object c, Object d) { log(Level.DEBUG, fmt, a, b, c, d); }
+
+    private void log(Level level, String fmt, Object a, Object b, Object c, Object d) {
+        if (level.ordinal() > threshold.ordinal()) return;
+        enqueue(level, render(fmt, a, b, c, d));
+    }
+
+    private String render(String fmt, Object a, Object b, Object c, Object d) {
+        StringBuilder sb = new StringBuilder(prefix.length() + fmt.length() + 32).append(prefix);
+        int argIndex = 0;
+        int from = 0;
+        int at;
+        while ((at = fmt.indexOf("{}", from)) >= 0) {
+            sb.append(fmt, from, at);
+            Object arg = switch (argIndex++) {
+                case 0 -> a;
+                case 1 -> b;
+                case 2 -> c;
+                case 3 -> d;
+                default -> "{}";
+            };
+            if (arg instanceof InetSocketAddress address) {
+                sb.append(address.getHostString()).append(':').append(address.getPort());
+            } else {
+                sb.append(arg);
+            }
+            from = at + 2;
+        }
+        sb.append(fmt, from, fmt.length());
+        Object last = d != null ? d : c != null ? c : b != null ? b : a;
+        int lastIndex = d != null ? 3 : c != null ? 2 : b != null ? 1 : 0;
+        if (last instanceof Throwable t && lastIndex >= argIndex) {
+            StringWriter trace = new StringWriter();
+            t.printStackTrace(new PrintWriter(trace));
+            sb.append(System.lineSeparator()).append(trace.toString().stripTrailing());
+        }
+        return sb.toString();
+    }
+
+    private static void enqueue(Level level, String message) {
+        long pos = tail.get();
+        while (true) {
+            int idx = (int) (pos & MASK);
+            long diff = sequences.get(idx) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    messages[idx] = message;
+                    levels[idx] = level;
+                    sequences.set(idx, pos + 1);
+                    if (waiting) {
+                        LockSupport.unpark(writer);
+                    }
+                    return;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                dropped.increment();
+                return;
+            } else {
+                pos = tail.get();
+            }
+        }
+    }
+
+    @SuppressWarnings("InfiniteLoopStatement")
+    private static void writerLoop() {
+        while (true) {
+            if (drain() > 0) continue;
+            // Announce the park before checking the ring again: a message published after the
+            // check sees the flag and unparks, one published before it is drained here
+            waiting = true;
+            if (drain() == 0) {
+                LockSupport.park();
+            }
+            waiting = false;
+        }
+    }
+
+    /**
+     * Writes out everything that is in the ring.
+     * @return the number of messages written
+     */
+    private static synchronized int drain() {
+        int written = 0;
+        Writer out = fileOut;
+        while (true) {
+            int idx = (int) (head & MASK);
+            if (sequences.get(idx) != head + 1) break;
+            String message = messages[idx];
+            Level level = levels[idx];
+            messages[idx] = null;
+            sequences.set(idx, head + RING_SIZE);
+            head++;
+            write(out, level, message);
+            written++;
+        }
+        if (written > 0) {
+            try {
+                if (out != null) out.flush();
+            } catch (IOException e) {
+                System.err.println("Log file write failed: " + e.getMessage());
+            }
+            System.out.flush();
+        }
+        return written;
+    }
+
+    private static void write(Writer out, Level level, String message) {
+        if (out == null) {
+            PrintStream console = level.ordinal() <= Level.WARN.ordinal() ? System.err : System.out;
+            console.println(message);
+            return;
+        }
+        try {
+            out.write(level.name());
+            out.write(' ');
+            out.write(message);
+            out.write(System.lineSeparator());
+        } catch (IOException e) {
+            System.err.println("Log file write failed: " + e.getMessage());
+        }
+    }
+}
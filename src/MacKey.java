@@ -0,0 +1,77 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A MAC address as a hash key over raw bytes.
+ * <p>
+ * A key can either own a copy of the bytes or act as a probe that points straight into a frame
+ * buffer, so table lookups on the forwarding path do not have to build a String per frame.
+ * Probes are mutable and must not be stored; use {@link #copy()} for that.
+ */
+public final class MacKey {
+    private ByteBuffer buf;
+    private int off;
+    private int len;
+    private int hash;
+
+    public static MacKey of(String mac) {
+        byte[] bytes = mac.getBytes(StandardCharsets.UTF_8);
+        return new MacKey().set(ByteBuffer.wrap(bytes), 0, bytes.length);
+    }
+
+    /**
+     * Points this key at a header field of a parsed frame.
+     */
+    public MacKey set(FrameCodec.View view, int field) {
+        return set(view.buffer(), view.offset(field), view.length(field));
+    }
+
+    public MacKey set(ByteBuffer buf, int off, int len) {
+        this.buf = buf;
+        this.off = off;
+        this.len = len;
+        int h = 1;
+        for (int i = 0; i < len; i++) {
+            h = 31 * h + buf.get(off + i);
+        }
+        this.hash = h;
+        return this;
+    }
+
+    public MacKey copy() {
+        byte[] bytes = new byte[len];
+        buf.get(off, bytes);
+        return new MacKey().set(ByteBuffer.wrap(bytes), 0, len);
+    }
+
+    public int length() {
+        return len;
+    }
+
+    public byte byteAt(int i) {
+        return buf.get(off + i);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) return true;
+        if (!(obj instanceof MacKey other)) return false;
+        if (len != other.len || hash != other.hash) return false;
+        for (int i = 0; i < len; i++) {
+            if (buf.get(off + i) != other.buf.get(other.off + i)) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        byte[] bytes = new byte[len];
+        buf.get(off, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,178 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+/**
+ * MAC learning table that is safe to share between forwarding workers.
+ * <p>
+ * Lookups and re-learning an already known MAC do not allocate and take no lock; only the first
+ * sighting of a MAC changes the table's structure. The table holds at most {@code capacity}
+ * MACs: learning a new one when it is full evicts the least recently seen of a small sample.
+ * MACs not seen for {@code agingSeconds} are treated as unknown and removed by the next sweep,
+ * so a host that moved or a burst of spoofed MACs does not occupy the table for good.
+ * <p>
+ * Time is kept in whole seconds by {@link #tick}, which the owning device calls about once a
+ * second; a table that is never ticked does not age.
+ *
+ * @param <P> the port type of the owning device
+ */
+public abstract class MacTable<P> {
+    public static final int DEFAULT_CAPACITY = 65536;
+    public static final int DEFAULT_AGING_SECONDS = 300;
+
+    /** Entries compared when choosing one to evict. */
+    static final int EVICTION_SAMPLES = 16;
+
+    /**
+     * Where the entries live. HEAP keeps them in a concurrent hash map; OFFHEAP keeps them in
+     * direct memory, for tables of millions of MACs that should not add to GC work.
+     */
+    public enum Backend {
+        HEAP, OFFHEAP;
+
+        public static Backend fromConfig(String value) {
+            if (value == null) return HEAP;
+            return Backend.valueOf(value.trim().toUpperCase());
+        }
+    }
+
+    /**
+     * Receives the entries of a table.
+     */
+    @FunctionalInterface
+    public interface EntryVisitor<P> {
+        /**
+         * @param idleSeconds seconds since the MAC was last seen, as of the last tick
+         */
+        void visit(MacKey mac, P port, int idleSeconds);
+    }
+
+    protected final int capacity;
+    protected final int agingSeconds;
+    private final long startNanos = System.nanoTime();
+    private final int sweepSeconds;
+    private int lastSweep;
+    private long learnedAtTick;
+
+    // Seconds since the table was created, as of the last tick
+    protected volatile int clock;
+    private volatile long learnRate;
+
+    protected final LongAdder learned = new LongAdder();
+    protected final LongAdder moves = new LongAdder();
+    protected final LongAdder evictions = new LongAdder();
+    protected final LongAdder expirations = new LongAdder();
+
+    protected MacTable(int capacity, int agingSeconds) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("MAC table capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.agingSeconds = Math.max(0, agingSeconds);
+        this.sweepSeconds = Math.max(1, this.agingSeconds / 4);
+    }
+
+    /**
+     * @param agingSeconds how long an unseen MAC is kept, or 0 to keep MACs until evicted
+     */
+    public static <P> MacTable<P> create(Backend backend, int capacity, int agingSeconds) {
+        return switch (backend) {
+            case HEAP -> new HeapMacTable<>(capacity, agingSeconds);
+            case OFFHEAP -> new OffHeapMacTable<>(capacity, agingSeconds);
+        };
+    }
+
+    /**
+     * Records that {@code mac} was seen on {@code port}. The key may be a probe; it is copied
+     * only when the MAC is new.
+     * @return true if the MAC was not in the table before
+     */
+    public abstract boolean learn(MacKey mac, P port);
+
+    /**
+     * @return the port the MAC was last seen on, or null if unknown or aged out
+     */
+    public abstract P lookup(MacKey mac);
+
+    /**
+     * Forgets every MAC whose port matches, e.g. ports that no longer exist after a reload.
+     * @return the number of MACs removed
+     */
+    public abstract int removeIf(Predicate<P> stale);
+
+    /**
+     * Adds a MAC from an earlier run as last seen {@code idleSeconds} ago. Unlike
+     * {@link #learn} it never evicts and does not count as learned.
+     * @return false if the MAC is already known or there is no room for it
+     */
+    public abstract boolean restore(MacKey mac, P port, int idleSeconds);
+
+    public abstract int size();
+
+    public abstract void forEachEntry(EntryVisitor<P> visitor);
+
+    public void forEach(BiConsumer<MacKey, P> action) {
+        forEachEntry((mac, port, idleSeconds) -> action.accept(mac, port));
+    }
+
+    /**
+     * Removes the MACs last seen before {@code now - agingSeconds}.
+     * @return the number removed
+     */
+    protected abstract int expire(int now);
+
+    /**
+     * Advances the table's clock, updates the learn rate and sweeps out aged MACs every quarter
+     * of the aging time. Called by one thread.
+     */
+    public void tick(long nowNanos) {
+        int now = (int) TimeUnit.NANOSECONDS.toSeconds(nowNanos - startNanos);
+        if (now == clock) return;
+        long total = learned.sum();
+        learnRate = (total - learnedAtTick) / (now - clock);
+        learnedAtTick = total;
+        clock = now;
+        if (agingSeconds > 0 && now - lastSweep >= sweepSeconds) {
+            lastSweep = now;
+            expirations.add(expire(now));
+        }
+    }
+
+    protected final boolean isExpired(int seen, int now) {
+        return agingSeconds > 0 && now - seen > agingSeconds;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public int agingSeconds() {
+        return agingSeconds;
+    }
+
+    /** @return MACs learned since the table was created */
+    public long learned() {
+        return learned.sum();
+    }
+
+    /** @return MACs seen again on a different port than before */
+    public long moves() {
+        return moves.sum();
+    }
+
+    /** @return MACs removed to make room for new ones */
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    /** @return MACs removed because they were not seen within the aging time */
+    public long expirations() {
+        return expirations.sum();
+    }
+
+    /** @return MACs learned per second over the last tick */
+    public long learnRate() {
+        return learnRate;
+    }
+}
@@ -0,0 +1,314 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Per-device counters, gauges and a latency histogram.
+ * <p>
+ * Every counter is a {@link LongAdder}, so forwarding threads update them without locks or
+ * contention. A snapshot renders everything as {@code name{labels} value} lines and can be served
+ * on a local HTTP port and/or appended to a file periodically. The HTTP port also runs the
+ * device's registered commands, such as {@code /reload}.
+ */
+public class Metrics {
+    public enum Drop {
+        INVALID_FRAME, NOT_FOR_ME, NO_ROUTE, SEND_FAILURE, QUEUE_FULL, SLOW_CONSUMER, FLOOD_RATE_LIMITED, STORM_SUPPRESSED,
+        EARLY_DROP;
+
+        final String label = name().toLowerCase();
+    }
+
+    private final String deviceId;
+    private final Map<String, PortCounters> ports = new ConcurrentSkipListMap<>();
+    private final Map<String, QueueCounters> queues = new ConcurrentSkipListMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+    private final Map<String, Callable<String>> commands = new ConcurrentSkipListMap<>();
+    private final LongAdder[] drops = new LongAdder[Drop.values().length];
+    private final LongAdder unicast = new LongAdder();
+    private final LongAdder flooded = new LongAdder();
+    private final Histogram handleTime = new Histogram();
+
+    public Metrics(String deviceId) {
+        this.deviceId = deviceId;
+        for (int i = 0; i < drops.length; i++) {
+            drops[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @return the counters for a virtual port, created on first use
+     */
+    public PortCounters port(String name) {
+        return ports.computeIfAbsent(name, k -> new PortCounters());
+    }
+
+    /**
+     * @return the per-class counters of a port's output queues, created on first use
+     */
+    public QueueCounters queue(String port, int classes) {
+        return queues.computeIfAbsent(port, k -> new QueueCounters(classes));
+    }
+
+    public void drop(Drop reason) {
+        drops[reason.ordinal()].increment();
+    }
+
+    public void drop(Drop reason, int count) {
+        drops[reason.ordinal()].add(count);
+    }
+
+    public void unicast() {
+        unicast.increment();
+    }
+
+    public void flooded() {
+        flooded.increment();
+    }
+
+    /**
+     * Records how long one call to handleFrame took.
+     */
+    public void handleTime(long nanos) {
+        handleTime.record(nanos);
+    }
+
+    /**
+     * Registers a value that is read when a snapshot is taken.
+     */
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Registers a command that the HTTP endpoint runs when {@code /name} is requested, answering
+     * with its result. Must be registered before {@link #startReporting}.
+     */
+    public void command(String name, Callable<String> action) {
+        commands.put(name, action);
+    }
+
+    public long dropped(Drop reason) {
+        return drops[reason.ordinal()].sum();
+    }
+
+    public String snapshot() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("# device ").append(deviceId).append(" at ").append(Instant.now()).append('\n');
+        ports.forEach((name, c) -> {
+            line(sb, "port_rx_frames", "port", name, c.rxFrames.sum());
+            line(sb, "port_rx_bytes", "port", name, c.rxBytes.sum());
+            line(sb, "port_tx_frames", "port", name, c.txFrames.sum());
+            line(sb, "port_tx_bytes", "port", name, c.txBytes.sum());
+        });
+        queues.forEach((port, q) -> {
+            for (int c = 0; c < q.dropped.length; c++) {
+                String labels = "port=\"" + port + "\",class=\"" + c + "\"";
+                line(sb, "queue_depth", labels, q.enqueued[c].sum() - q.dequeued[c].sum());
+                line(sb, "queue_tx_frames", labels, q.dequeued[c].sum());
+                line(sb, "queue_drops", labels, q.dropped[c].sum());
+            }
+        });
+        for (Drop reason : Drop.values()) {
+            line(sb, "drops", "reason", reason.label, drops[reason.ordinal()].sum());
+        }
+        line(sb, "forwarded", "mode", "unicast", unicast.sum());
+        line(sb, "forwarded", "mode", "flood", flooded.sum());
+        gauges.forEach((name, value) -> sb.append(name).append(' ').append(value.getAsLong()).append('\n'));
+        handleTime.render(sb, "handle_frame_nanos");
+        return sb.toString();
+    }
+
+    private static void line(StringBuilder sb, String name, String label, String value, long count) {
+        line(sb, name, label + "=\"" + value + "\"", count);
+    }
+
+    private static void line(StringBuilder sb, String name, String labels, long count) {
+        sb.append(name).append('{').append(labels).append("} ").append(count).append('\n');
+    }
+
+    /**
+     * Starts the optional reporting outputs.
+     *
+     * @param httpPort        serve snapshots on http://127.0.0.1:port/ if greater than zero
+     * @param file            append a snapshot to this file every {@code intervalSeconds} if not null
+     * @param intervalSeconds period of the file dump
+     */
+    public void startReporting(int httpPort, String file, int intervalSeconds) throws IOException {
+        if (httpPort > 0) {
+            HttpServer server = HttpServer.create(
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), httpPort), 0);
+            server.createContext("/", exchange -> respond(exchange, 200, snapshot()));
+            commands.forEach((name, action) -> server.createContext("/" + name, exchange -> {
+                String result;
+                int status = 200;
+                try {
+                    result = action.call();
+                } catch (Exception e) {
+                    result = name + " failed: " + e.getMessage();
+                    status = 500;
+                }
+                respond(exchange, status, result + "\n");
+            }));
+            server.setExecutor(Executors.newSingleThreadExecutor(r -> daemon(r, "metrics-http")));
+            server.start();
+        }
+
+        if (file != null) {
+            ScheduledExecutorService scheduler =
+                    Executors.newSingleThreadScheduledExecutor(r -> daemon(r, "metrics-dump"));
+            scheduler.scheduleAtFixedRate(() -> {
+                try (Writer out = new FileWriter(file, true)) {
+                    out.write(snapshot());
+                    out.write('\n');
+                } catch (IOException e) {
+                    System.err.println("Failed to write metrics to " + file + ": " + e.getMessage());
+                }
+            }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String text) throws IOException {
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static Thread daemon(Runnable r, String name) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+    }
+
+    public static final class PortCounters {
+        private final LongAdder rxFrames = new LongAdder();
+        private final LongAdder rxBytes = new LongAdder();
+        private final LongAdder txFrames = new LongAdder();
+        private final LongAdder txBytes = new LongAdder();
+
+        public void rx(int bytes) {
+            rxFrames.increment();
+            rxBytes.add(bytes);
+        }
+
+        public void tx(int bytes) {
+            txFrames.increment();
+            txBytes.add(bytes);
+        }
+    }
+
+    /**
+     * Frames through the output queues of a port, per traffic class. The depth is what was
+     * queued but not yet taken by the sender.
+     */
+    public static final class QueueCounters {
+        private final LongAdder[] enqueued;
+        private final LongAdder[] dequeued;
+        private final LongAdder[] dropped;
+
+        QueueCounters(int classes) {
+            enqueued = adders(classes);
+            dequeued = adders(classes);
+            dropped = adders(classes);
+        }
+
+        private static LongAdder[] adders(int n) {
+            LongAdder[] adders = new LongAdder[n];
+            for (int i = 0; i < n; i++) {
+                adders[i] = new LongAdder();
+            }
+            return adders;
+        }
+
+        public void enqueued(int trafficClass) {
+            enqueued[trafficClass].increment();
+        }
+
+        public void dequeued(int trafficClass) {
+            dequeued[trafficClass].increment();
+        }
+
+        public void dropped(int trafficClass) {
+            dropped[trafficClass].increment();
+        }
+    }
+
+    /**
+     * Log2-bucketed histogram: bucket {@code i} counts values in [2^i, 2^(i+1)).
+     * Percentiles are reported as the upper bound of the bucket they fall in.
+     */
+    public static final class Histogram {
+        private static final int BUCKETS = 64;
+        private static final double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999};
+
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+
+        public Histogram() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void record(long value) {
+            if (value < 1) value = 1;
+            buckets[63 - Long.numberOfLeadingZeros(value)].increment();
+            count.increment();
+            sum.add(value);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        /**
+         * @return the upper bound of the bucket containing the given percentile, or 0 if empty
+         */
+        public long percentile(double p) {
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
+            }
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(p * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return i == 62 ? Long.MAX_VALUE : (1L << (i + 1)) - 1;
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+
+        void render(StringBuilder sb, String name) {
+            long n = count.sum();
+            sb.append(name).append("_count ").append(n).append('\n');
+            sb.append(name).append("_sum ").append(sum.sum()).append('\n');
+            for (double p : PERCENTILES) {
+                sb.append(name).append("{quantile=\"").append(p).append("\"} ").append(percentile(p)).append('\n');
+            }
+        }
+    }
+}
@@ -1,14 +1,63 @@
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.net.SocketException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class NetworkLayer {
-    private final DatagramSocket socket;
+    public static final int MAX_FRAME_SIZE = 1024;
+    /** Frame size of a layer in jumbo mode. */
+    public static final int JUMBO_FRAME_SIZE = 9000;
+    /** Smallest MTU a link may be configured with. */
+    public static final int MIN_MTU = 256;
+    /**
+     * How much longer than the frame size a received frame may be. Forwarding rewrites the
+     * MACs and longer MACs grow the frame, so like a link-layer header they are not counted
+     * against the MTU.
+     */
+    public static final int MAC_HEADROOM = 2 * FrameCodec.MAX_FIELD_LENGTH;
+    public static final int BUFFER_CAPACITY = bufferCapacity(MAX_FRAME_SIZE);
+    private static final int POOL_SIZE = 64;
+
+    // Null for an in-process layer whose device has no remote neighbors
+    private final DatagramChannel channel;
+    private final BufferPool bufferPool;
+    private final Map<String, InetSocketAddress> resolved = new ConcurrentHashMap<>();
+    // The channel is non-blocking so batches can be drained; these selectors provide the blocking waits
+    private final Selector readSelector;
+    private final Selector writeSelector;
+    private final ReentrantLock writeWait = new ReentrantLock();
+    private final int frameSize;
+    private final LongAdder oversized = new LongAdder();
+    private volatile double lossRate;
+    private final LongAdder injectedLosses = new LongAdder();
+    private final LongAdder inboxDrops = new LongAdder();
+
+    // Set when the layer belongs to a device running in a LocalFabric
+    private final LocalFabric fabric;
+    private final InetSocketAddress localAddress;
+    private final ArrayBlockingQueue<LocalFabric.Datagram> inbox;
+
+    // Batch statistics, updated only by the receiving thread
+    private long batchCount;
+    private long batchedFrames;
+    private int maxBatch;
 
     /**
      * Inner class to hold received data AND the physical source (needed for Switch learning)
@@ -18,34 +67,440 @@ public class NetworkLayer {
      */
     public record Data(String frame, String srcIp, int srcPort) {}
 
-    public NetworkLayer(int port) throws SocketException {
-        this.socket = new DatagramSocket(port);
+    /**
+     * Thrown by {@link #sendBatch} when some frames of the batch could not be sent.
+     */
+    public static class BatchSendException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int failed;
+
+        BatchSendException(int failed, int total, IOException cause) {
+            super(failed + " of " + total + " frames failed to send - " + cause.getMessage(), cause);
+            this.failed = failed;
+        }
+
+        public int failed() {
+            return failed;
+        }
     }
 
-    public void send(String message, String destIp, int destPort) throws IOException {
-        byte[] buffer = message.getBytes();
-        InetAddress address = InetAddress.getByName(destIp);
-        DatagramPacket packet = new DatagramPacket(buffer, buffer.length, address, destPort);
+    public NetworkLayer(int port) throws IOException {
+        this(port, false);
+    }
 
-        socket.send(packet);
+    /**
+     * @param reusePort bind with SO_REUSEPORT so several layers can share the port and have the
+     *                  kernel load-balance incoming datagrams between them
+     */
+    public NetworkLayer(int port, boolean reusePort) throws IOException {
+        this(port, reusePort, MAX_FRAME_SIZE);
     }
 
-    public Data receive() throws IOException {
-        byte[] buffer = new byte[1024];
-        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+    /**
+     * @param frameSize the largest frame received, e.g. {@link #JUMBO_FRAME_SIZE}; datagrams
+     *                  longer than it and {@link #MAC_HEADROOM} are dropped and counted in
+     *                  {@link #oversizedFrames()}
+     */
+    public NetworkLayer(int port, boolean reusePort, int frameSize) throws IOException {
+        this(null, null, port, true, reusePort, frameSize);
+    }
+
+    /**
+     * A layer registered in a {@link LocalFabric} under {@code address}.
+     * @param udp also open a socket on the address's port, for frames to and from remote devices
+     */
+    NetworkLayer(InetSocketAddress address, LocalFabric fabric, boolean udp, boolean reusePort,
+                 int frameSize) throws IOException {
+        this(address, fabric, address.getPort(), udp, reusePort, frameSize);
+    }
+
+    private NetworkLayer(InetSocketAddress address, LocalFabric fabric, int port, boolean udp,
+                         boolean reusePort, int frameSize) throws IOException {
+        this.fabric = fabric;
+        this.localAddress = address;
+        this.frameSize = frameSize;
+        this.inbox = fabric == null ? null : new ArrayBlockingQueue<>(LocalFabric.INBOX_CAPACITY);
+        int capacity = bufferCapacity(frameSize);
+        this.bufferPool = udp ? new BufferPool(POOL_SIZE, capacity) : BufferPool.heap(POOL_SIZE, capacity);
+        if (!udp) {
+            this.channel = null;
+            this.readSelector = null;
+            this.writeSelector = null;
+            return;
+        }
+
+        this.channel = DatagramChannel.open();
+        if (reusePort) {
+            if (!channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                channel.close();
+                throw new IOException("SO_REUSEPORT is not supported on this platform");
+            }
+            channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        channel.bind(new InetSocketAddress(port));
+        channel.configureBlocking(false);
+        this.readSelector = Selector.open();
+        this.writeSelector = Selector.open();
+        channel.register(readSelector, SelectionKey.OP_READ);
+        channel.register(writeSelector, SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Pooled buffers hold the longest frame accepted and leave room beyond it, both for a
+     * router to grow the header in place when rewriting MACs and to tell longer datagrams apart.
+     */
+    static int bufferCapacity(int frameSize) {
+        return frameSize + 2 * MAC_HEADROOM;
+    }
+
+    /**
+     * @return the largest frame this layer receives
+     */
+    public int frameSize() {
+        return frameSize;
+    }
+
+    /**
+     * @return how many received datagrams were dropped for being too long
+     */
+    public long oversizedFrames() {
+        return oversized.sum();
+    }
+
+    /**
+     * Makes {@link #send} drop the given fraction of frames at random, as a lossy link would.
+     * For testing only.
+     */
+    public void setLossRate(double lossRate) {
+        this.lossRate = lossRate;
+    }
+
+    /**
+     * @return how many frames were dropped by {@link #setLossRate}
+     */
+    public long injectedLosses() {
+        return injectedLosses.sum();
+    }
+
+    /**
+     * Sets SO_RCVBUF and SO_SNDBUF of the socket, each unless 0. The kernel may round or cap the
+     * sizes (Linux caps them at net.core.rmem_max and wmem_max), see {@link #socketBuffers()}.
+     */
+    public void setSocketBuffers(int receiveBytes, int sendBytes) throws IOException {
+        if (channel == null) return;
+        if (receiveBytes > 0) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBytes);
+        }
+        if (sendBytes > 0) {
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBytes);
+        }
+    }
+
+    /**
+     * @return the socket's receive and send buffer sizes as the kernel applied them, for logging
+     */
+    public String socketBuffers() throws IOException {
+        if (channel == null) return "none";
+        return "SO_RCVBUF=" + channel.getOption(StandardSocketOptions.SO_RCVBUF) +
+                " SO_SNDBUF=" + channel.getOption(StandardSocketOptions.SO_SNDBUF);
+    }
+
+    /**
+     * @return datagrams to this layer's port that the kernel dropped because the socket's receive
+     *         buffer was full, from /proc/net/udp and udp6, or 0 where they are not available.
+     *         Every socket sharing the port with SO_REUSEPORT is counted. Unlike the device's own
+     *         drops these never reach it.
+     */
+    public long kernelDrops() {
+        if (channel == null) return 0;
+        try {
+            int port = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+            return udpDrops(Path.of("/proc/net/udp"), port) + udpDrops(Path.of("/proc/net/udp6"), port);
+        } catch (IOException | RuntimeException e) {
+            // Not Linux, or the socket is closed
+            return 0;
+        }
+    }
+
+    /**
+     * @return frames from other devices of a {@link LocalFabric} dropped because this layer's
+     *         inbox was full, the in-process counterpart of {@link #kernelDrops()}
+     */
+    public long inboxDrops() {
+        return inboxDrops.sum();
+    }
+
+    /**
+     * Adds up the drops column of the sockets bound to {@code port} in a /proc/net/udp table,
+     * whose lines are {@code sl local_address:port ... drops} with the port in hex.
+     */
+    private static long udpDrops(Path table, int port) throws IOException {
+        if (!Files.exists(table)) return 0;
+        List<String> lines = Files.readAllLines(table);
+        long drops = 0;
+        for (int i = 1; i < lines.size(); i++) {
+            String[] fields = lines.get(i).trim().split("\\s+");
+            if (fields.length < 13) continue;
+            String local = fields[1];
+            if (Integer.parseInt(local.substring(local.lastIndexOf(':') + 1), 16) == port) {
+                drops += Long.parseLong(fields[fields.length - 1]);
+            }
+        }
+        return drops;
+    }
+
+    public ByteBuffer acquireBuffer() {
+        return bufferPool.acquire();
+    }
+
+    public void releaseBuffer(ByteBuffer buf) {
+        bufferPool.release(buf);
+    }
 
-        socket.receive(packet);
+    /**
+     * Sends the bytes between the frame's position and limit. The position is restored afterwards
+     * so the same frame can be sent to several ports.
+     */
+    public void send(ByteBuffer frame, InetSocketAddress dest) throws IOException {
+        if (lossRate > 0 && ThreadLocalRandom.current().nextDouble() < lossRate) {
+            injectedLosses.increment();
+            return;
+        }
+        if (fabric != null) {
+            NetworkLayer peer = fabric.endpoint(dest, localAddress);
+            if (peer != null) {
+                peer.deliver(frame, localAddress);
+                return;
+            }
+            if (channel == null) {
+                throw new IOException("No in-process device at " + dest.getHostString() + ":" + dest.getPort());
+            }
+        }
+        int start = frame.position();
+        try {
+            while (channel.send(frame, dest) == 0) {
+                awaitWritable();
+            }
+        } finally {
+            frame.position(start);
+        }
+    }
+
+    /**
+     * Receives one datagram into the buffer, starting at its position. Anything beyond the
+     * buffer's limit is truncated, so a buffer of this layer should be passed cleared: then
+     * datagrams that are too long are dropped instead. On return the buffer's limit
+     * marks the end of the frame.
+     * @return the physical sender of the datagram
+     */
+    public InetSocketAddress receive(ByteBuffer dst) throws IOException {
+        int start = dst.position();
+        InetSocketAddress sender;
+        do {
+            sender = poll(dst, true);
+        } while (sender == null);
+        dst.limit(dst.position()).position(start);
+        return sender;
+    }
+
+    /**
+     * Receives one datagram into {@code dst} from the local inbox or the socket, whichever has
+     * one. With {@code block}, waits until something may have arrived first.
+     * @return the sender, or null if nothing was received
+     */
+    private InetSocketAddress poll(ByteBuffer dst, boolean block) throws IOException {
+        int start = dst.position();
+        InetSocketAddress sender = receiveAny(dst, block);
+        if (sender != null && dst.position() - start > frameSize + MAC_HEADROOM) {
+            dst.position(start);
+            oversized.increment();
+            return null;
+        }
+        return sender;
+    }
+
+    private InetSocketAddress receiveAny(ByteBuffer dst, boolean block) throws IOException {
+        if (inbox != null) {
+            LocalFabric.Datagram datagram;
+            try {
+                datagram = block && channel == null ? inbox.take() : inbox.poll();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while receiving");
+            }
+            if (datagram != null) {
+                InetSocketAddress sender = datagram.sender;
+                // Truncate like a datagram socket does
+                dst.put(datagram.data, 0, Math.min(datagram.length, dst.remaining()));
+                fabric.release(datagram);
+                return sender;
+            }
+            if (channel == null) return null;
+        }
+        InetSocketAddress sender = (InetSocketAddress) channel.receive(dst);
+        if (sender == null && block) {
+            awaitReady(readSelector);
+        }
+        return sender;
+    }
+
+    /**
+     * Called by another layer in the same fabric: queues a copy of the frame for this layer.
+     * The frame is dropped if the inbox is full.
+     */
+    private void deliver(ByteBuffer frame, InetSocketAddress sender) throws IOException {
+        if (frame.remaining() > bufferCapacity(JUMBO_FRAME_SIZE)) {
+            throw new IOException("Frame of " + frame.remaining() + " bytes is too large");
+        }
+        LocalFabric.Datagram datagram = fabric.acquire(frame.remaining());
+        datagram.length = frame.remaining();
+        frame.get(frame.position(), datagram.data, 0, datagram.length);
+        datagram.sender = sender;
+        if (!inbox.offer(datagram)) {
+            fabric.release(datagram);
+            fabric.countDropped();
+            inboxDrops.increment();
+            return;
+        }
+        fabric.countDelivered();
+        if (channel != null) {
+            readSelector.wakeup();
+        }
+    }
 
-        String msg = new String(packet.getData(), 0, packet.getLength());
-        String senderIp = packet.getAddress().getHostAddress();
-        int senderPort = packet.getPort();
+    /**
+     * Creates a receive batch whose slots own buffers from this layer's pool.
+     */
+    public FrameBatch newReceiveBatch(int capacity) {
+        return new FrameBatch(bufferPool, capacity);
+    }
 
-        return new Data(msg, senderIp, senderPort);
+    public void releaseBatch(FrameBatch batch) {
+        batch.release(bufferPool);
+    }
+
+    /**
+     * Blocks until at least one datagram arrives, then drains every datagram that is already
+     * queued on the socket without blocking again, up to the batch capacity.
+     * Datagrams that are too long are dropped.
+     * @return the number of frames received
+     */
+    public int receiveBatch(FrameBatch batch) throws IOException {
+        batch.clear();
+        int n = 0;
+        while (n < batch.capacity()) {
+            ByteBuffer dst = batch.frame(n);
+            dst.clear();
+            InetSocketAddress sender = poll(dst, n == 0);
+            if (sender == null) {
+                if (n > 0) break;
+                continue;
+            }
+            dst.flip();
+            batch.setReceived(n++, sender);
+        }
+
+        batchCount++;
+        batchedFrames += n;
+        if (n > maxBatch) maxBatch = n;
+        return n;
+    }
+
+    /**
+     * Sends every frame in the batch, then clears it. A failed frame does not stop the rest.
+     * @throws BatchSendException after the whole batch was attempted, if any frame failed
+     */
+    public void sendBatch(FrameBatch batch) throws BatchSendException {
+        IOException failure = null;
+        int failed = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            try {
+                send(batch.frame(i), batch.address(i));
+            } catch (IOException e) {
+                failed++;
+                failure = e;
+            }
+        }
+        int total = batch.size();
+        batch.clear();
+        if (failure != null) {
+            throw new BatchSendException(failed, total, failure);
+        }
+    }
+
+    public long batchCount() {
+        return batchCount;
+    }
+
+    public long batchedFrames() {
+        return batchedFrames;
+    }
+
+    public int maxBatch() {
+        return maxBatch;
+    }
+
+    public String batchStats() {
+        double average = batchCount == 0 ? 0 : (double) batchedFrames / batchCount;
+        return String.format("batches=%d frames=%d avgBatch=%.2f maxBatch=%d",
+                batchCount, batchedFrames, average, maxBatch);
+    }
+
+    private static void awaitReady(Selector selector) throws IOException {
+        selector.select();
+        selector.selectedKeys().clear();
+    }
+
+    /**
+     * Waits until the channel can take a datagram. Several threads may send on one layer, such
+     * as a router's forwarding, routing and output queue threads, and a selector's selected-key
+     * set is not thread-safe, so they wait one at a time.
+     */
+    private void awaitWritable() throws IOException {
+        writeWait.lock();
+        try {
+            awaitReady(writeSelector);
+        } finally {
+            writeWait.unlock();
+        }
+    }
+
+    /**
+     * String adapter kept for existing callers. Addresses are resolved once and cached.
+     */
+    public void send(String message, String destIp, int destPort) throws IOException {
+        InetSocketAddress address = resolved.computeIfAbsent(destIp + ":" + destPort,
+                k -> new InetSocketAddress(destIp, destPort));
+        send(ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)), address);
+    }
+
+    public Data receive() throws IOException {
+        ByteBuffer buffer = bufferPool.acquire();
+        try {
+            InetSocketAddress sender = receive(buffer);
+
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            String msg = new String(bytes, StandardCharsets.UTF_8);
+
+            return new Data(msg, sender.getAddress().getHostAddress(), sender.getPort());
+        } finally {
+            bufferPool.release(buffer);
+        }
     }
 
     public void close() {
-        if (!socket.isClosed()) {
-            socket.close();
+        if (fabric != null) {
+            fabric.close(localAddress, this);
+        }
+        if (channel == null) return;
+        try {
+            channel.close();
+            readSelector.close();
+            writeSelector.close();
+        } catch (IOException e) {
+            System.err.println("Error closing channel: " + e.getMessage());
         }
     }
 
@@ -0,0 +1,423 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Predicate;
+
+/**
+ * {@link MacTable} whose entries live in direct memory, so a table of millions of MACs is a few
+ * large buffers rather than millions of objects for the collector to trace.
+ * <p>
+ * The table is split into segments, each an open-addressing hash table with linear probing and
+ * its own {@link StampedLock}. A slot is
+ * <pre>
+ *   hash(4) | last seen(4) | port(2) | key length(1) | unused(1) | key(20)
+ * </pre>
+ * where the port is an index into a small on-heap array of ports, plus one so that 0 marks an
+ * empty slot. Removal shifts later entries of the probe sequence back instead of leaving
+ * tombstones. Lookups and re-learning a known MAC in the same tick are optimistic reads that
+ * take no lock and write nothing; anything else takes the segment's write lock.
+ * <p>
+ * Each segment holds its share of the capacity, so a segment that hashing fills early starts
+ * evicting, from the probe window of the new MAC, before the whole table is full. MACs longer
+ * than a slot's key are kept in a small {@link HeapMacTable} instead.
+ */
+final class OffHeapMacTable<P> extends MacTable<P> {
+    static final int SLOT = 32;
+    static final int KEY_BYTES = 20;
+    private static final int HASH = 0;
+    private static final int SEEN = 4;
+    private static final int PORT = 8;
+    private static final int KEY_LENGTH = 10;
+    private static final int KEY = 12;
+
+    private static final int MAX_SEGMENTS = 64;
+    private static final int MAX_PORTS = 0xFFFF;
+    private static final double MAX_LOAD = 0.75;
+
+    private final Segment[] segments;
+    private final int segmentShift;
+    private final HeapMacTable<P> overflow;
+
+    private final Map<P, Integer> portIndex = new ConcurrentHashMap<>();
+    private volatile Object[] ports = new Object[16];
+    private int portCount;
+
+    private static final class Segment {
+        final ByteBuffer slots;
+        final int mask;
+        final int limit;
+        final StampedLock lock = new StampedLock();
+        final LongAdder moves;
+        final LongAdder evictions;
+        volatile int size;
+
+        Segment(int limit, LongAdder moves, LongAdder evictions) {
+            int tableSize = Integer.highestOneBit(Math.max(4, (int) Math.ceil(limit / MAX_LOAD)) - 1) << 1;
+            this.slots = ByteBuffer.allocateDirect(tableSize * SLOT);
+            this.mask = tableSize - 1;
+            this.limit = limit;
+            this.moves = moves;
+            this.evictions = evictions;
+        }
+
+        /**
+         * @return the slot holding the MAC, or -1. Safe to call without the lock, as the probe
+         *         is bounded and only reads within the buffer; the caller validates the result.
+         */
+        int find(int hash, MacKey mac) {
+            int i = hash & mask;
+            for (int probes = 0; probes <= mask; probes++) {
+                int base = i * SLOT;
+                if (slots.getShort(base + PORT) == 0) return -1;
+                if (slots.getInt(base + HASH) == hash && keyEquals(base, mac)) return i;
+                i = (i + 1) & mask;
+            }
+            return -1;
+        }
+
+        private boolean keyEquals(int base, MacKey mac) {
+            int length = mac.length();
+            if (slots.get(base + KEY_LENGTH) != length) return false;
+            for (int k = 0; k < length; k++) {
+                if (slots.get(base + KEY + k) != mac.byteAt(k)) return false;
+            }
+            return true;
+        }
+
+        int port(int slot) {
+            return slots.getShort(slot * SLOT + PORT) & 0xFFFF;
+        }
+
+        int seen(int slot) {
+            return slots.getInt(slot * SLOT + SEEN);
+        }
+
+        /**
+         * Adds or refreshes the MAC. Needs the write lock.
+         * @return true if the MAC is new
+         */
+        boolean put(int hash, MacKey mac, int port, int now) {
+            int slot = find(hash, mac);
+            if (slot >= 0) {
+                int base = slot * SLOT;
+                if ((slots.getShort(base + PORT) & 0xFFFF) != port) {
+                    slots.putShort(base + PORT, (short) port);
+                    moves.increment();
+                }
+                slots.putInt(base + SEEN, now);
+                return false;
+            }
+            if (size >= limit) {
+                evict(hash & mask, now);
+            }
+            insert(hash, mac, port, now);
+            return true;
+        }
+
+        /**
+         * Adds a MAC that is not in the segment to a free slot. Needs the write lock.
+         */
+        void insert(int hash, MacKey mac, int port, int seen) {
+            int i = hash & mask;
+            while (slots.getShort(i * SLOT + PORT) != 0) {
+                i = (i + 1) & mask;
+            }
+            int base = i * SLOT;
+            slots.putInt(base + HASH, hash)
+                    .putInt(base + SEEN, seen)
+                    .putShort(base + PORT, (short) port)
+                    .put(base + KEY_LENGTH, (byte) mac.length());
+            for (int k = 0; k < mac.length(); k++) {
+                slots.put(base + KEY + k, mac.byteAt(k));
+            }
+            size++;
+        }
+
+        /**
+         * Removes the least recently seen of the first entries found from slot {@code from} on.
+         */
+        private void evict(int from, int now) {
+            int oldest = -1;
+            int i = from;
+            int sampled = 0;
+            for (int n = 0; n <= mask && sampled < EVICTION_SAMPLES; n++) {
+                if (slots.getShort(i * SLOT + PORT) != 0) {
+                    sampled++;
+                    if (oldest < 0 || now - seen(i) > now - seen(oldest)) {
+                        oldest = i;
+                    }
+                }
+                i = (i + 1) & mask;
+            }
+            if (oldest >= 0) {
+                delete(oldest);
+                evictions.increment();
+            }
+        }
+
+        /**
+         * Empties a slot and moves back the entries after it that would otherwise no longer be
+         * reachable from their home slot. Needs the write lock.
+         */
+        void delete(int hole) {
+            int j = hole;
+            while (true) {
+                j = (j + 1) & mask;
+                int base = j * SLOT;
+                if (slots.getShort(base + PORT) == 0) break;
+                int home = slots.getInt(base + HASH) & mask;
+                // Move the entry unless its home lies cyclically in (hole, j]
+                boolean reachable = hole <= j ? hole < home && home <= j : hole < home || home <= j;
+                if (!reachable) {
+                    slots.put(hole * SLOT, slots, base, SLOT);
+                    hole = j;
+                }
+            }
+            slots.putShort(hole * SLOT + PORT, (short) 0);
+            size--;
+        }
+
+        /**
+         * Deletes the entries {@code doomed} accepts, given their slot. Needs the write lock.
+         */
+        int deleteIf(SlotPredicate doomed) {
+            int removed = 0;
+            for (int i = 0; i <= mask; i++) {
+                // A deletion may shift an unvisited entry into this slot, so look again
+                while (slots.getShort(i * SLOT + PORT) != 0 && doomed.test(this, i)) {
+                    delete(i);
+                    removed++;
+                }
+            }
+            return removed;
+        }
+    }
+
+    private interface SlotPredicate {
+        boolean test(Segment segment, int slot);
+    }
+
+    OffHeapMacTable(int capacity, int agingSeconds) {
+        super(capacity, agingSeconds);
+        int count = Math.clamp(Integer.highestOneBit(Math.max(1, capacity / 256)), 1, MAX_SEGMENTS);
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(capacity / count + (i < capacity % count ? 1 : 0), moves, evictions);
+        }
+        this.segmentShift = 32 - Integer.numberOfTrailingZeros(count);
+        this.overflow = new HeapMacTable<>(Math.max(16, capacity / 64), agingSeconds);
+    }
+
+    private static int hash(MacKey mac) {
+        int h = mac.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 15);
+    }
+
+    private Segment segmentFor(int hash) {
+        // The high bits pick the segment and the low bits the slot, so the two stay independent
+        return segmentShift == 32 ? segments[0] : segments[hash >>> segmentShift];
+    }
+
+    @Override
+    public boolean learn(MacKey mac, P port) {
+        if (mac.length() > KEY_BYTES) {
+            return overflow.learn(mac, port);
+        }
+        int index = indexOf(port);
+        if (index < 0) return false;
+        int hash = hash(mac);
+        Segment segment = segmentFor(hash);
+        int now = clock;
+
+        long stamp = segment.lock.tryOptimisticRead();
+        if (stamp != 0) {
+            int slot = segment.find(hash, mac);
+            if (slot >= 0 && segment.port(slot) == index + 1 && segment.seen(slot) == now
+                    && segment.lock.validate(stamp)) {
+                return false;
+            }
+        }
+        stamp = segment.lock.writeLock();
+        try {
+            if (!segment.put(hash, mac, index + 1, now)) return false;
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+        learned.increment();
+        return true;
+    }
+
+    @Override
+    public boolean restore(MacKey mac, P port, int idleSeconds) {
+        if (mac.length() > KEY_BYTES) {
+            return overflow.restore(mac, port, idleSeconds);
+        }
+        int index = indexOf(port);
+        if (index < 0) return false;
+        int hash = hash(mac);
+        Segment segment = segmentFor(hash);
+        long stamp = segment.lock.writeLock();
+        try {
+            if (segment.size >= segment.limit || segment.find(hash, mac) >= 0) return false;
+            segment.insert(hash, mac, index + 1, clock - idleSeconds);
+            return true;
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public P lookup(MacKey mac) {
+        if (mac.length() > KEY_BYTES) {
+            return overflow.lookup(mac);
+        }
+        int hash = hash(mac);
+        Segment segment = segmentFor(hash);
+        int port;
+        int seen;
+        long stamp = segment.lock.tryOptimisticRead();
+        int slot = segment.find(hash, mac);
+        port = slot < 0 ? 0 : segment.port(slot);
+        seen = slot < 0 ? 0 : segment.seen(slot);
+        if (!segment.lock.validate(stamp)) {
+            stamp = segment.lock.readLock();
+            try {
+                slot = segment.find(hash, mac);
+                port = slot < 0 ? 0 : segment.port(slot);
+                seen = slot < 0 ? 0 : segment.seen(slot);
+            } finally {
+                segment.lock.unlockRead(stamp);
+            }
+        }
+        if (port == 0 || isExpired(seen, clock)) return null;
+        // Ports are registered before any slot refers to them, so read the array after the slot
+        return (P) ports[port - 1];
+    }
+
+    /**
+     * @return the index of the port in {@link #ports}, registering it if needed, or -1 if the
+     *         table already knows {@link #MAX_PORTS} ports
+     */
+    private int indexOf(P port) {
+        Integer index = portIndex.get(port);
+        if (index != null) return index;
+        synchronized (portIndex) {
+            index = portIndex.get(port);
+            if (index != null) return index;
+            if (portCount == MAX_PORTS) return -1;
+            Object[] current = ports;
+            if (portCount == current.length) {
+                current = Arrays.copyOf(current, Math.min(MAX_PORTS, current.length * 2));
+            }
+            current[portCount] = port;
+            ports = current;
+            portIndex.put(port, portCount);
+            return portCount++;
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public int removeIf(Predicate<P> stale) {
+        Object[] known = ports;
+        boolean[] doomed = new boolean[known.length + 1];
+        for (int i = 0; i < known.length && known[i] != null; i++) {
+            doomed[i + 1] = stale.test((P) known[i]);
+        }
+        int removed = 0;
+        for (Segment segment : segments) {
+            long stamp = segment.lock.writeLock();
+            try {
+                removed += segment.deleteIf((s, slot) -> {
+                    int port = s.port(slot);
+                    return port < doomed.length && doomed[port];
+                });
+            } finally {
+                segment.lock.unlockWrite(stamp);
+            }
+        }
+        return removed + overflow.removeIf(stale);
+    }
+
+    @Override
+    protected int expire(int now) {
+        int removed = 0;
+        for (Segment segment : segments) {
+            long stamp = segment.lock.writeLock();
+            try {
+                removed += segment.deleteIf((s, slot) -> isExpired(s.seen(slot), now));
+            } finally {
+                segment.lock.unlockWrite(stamp);
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public void tick(long nowNanos) {
+        super.tick(nowNanos);
+        overflow.tick(nowNanos);
+    }
+
+    @Override
+    public int size() {
+        int size = overflow.size();
+        for (Segment segment : segments) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void forEachEntry(EntryVisitor<P> visitor) {
+        int now = clock;
+        for (Segment segment : segments) {
+            long stamp = segment.lock.readLock();
+            try {
+                Object[] known = ports;
+                for (int i = 0; i <= segment.mask; i++) {
+                    int port = segment.port(i);
+                    if (port == 0) continue;
+                    int base = i * SLOT;
+                    byte[] key = new byte[segment.slots.get(base + KEY_LENGTH)];
+                    segment.slots.get(base + KEY, key);
+                    visitor.visit(new MacKey().set(ByteBuffer.wrap(key), 0, key.length), (P) known[port - 1],
+                            now - segment.seen(i));
+                }
+            } finally {
+                segment.lock.unlockRead(stamp);
+            }
+        }
+        overflow.forEachEntry(visitor);
+    }
+
+    @Override
+    public long moves() {
+        return super.moves() + overflow.moves();
+    }
+
+    @Override
+    public long evictions() {
+        return super.evictions() + overflow.evictions();
+    }
+
+    @Override
+    public long learned() {
+        return super.learned() + overflow.learned();
+    }
+
+    @Override
+    public long expirations() {
+        return super.expirations() + overflow.expirations();
+    }
+
+    @Override
+    public long learnRate() {
+        return super.learnRate() + overflow.learnRate();
+    }
+}
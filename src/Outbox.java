@@ -0,0 +1,240 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * Queue of the messages a {@link Host} sends, drained in order by one sending thread. Each
+ * message may carry FLAGS bits, such as {@link FrameCodec#FLAG_REQUEST}, for the frames it
+ * leaves in.
+ * <p>
+ * With coalescing on, small messages to the same destination and with the same flags that are
+ * queued together leave in one binary frame with {@link FrameCodec#FLAG_BATCH} set, whose payload
+ * is a sequence of
+ * <pre>
+ *   length(2) | message
+ * </pre>
+ * Nothing waits for a batch to fill: a batch holds whatever was queued while the previous frame
+ * was being sent, so an idle host sends each message at once and a busy one sends fewer, fuller
+ * frames. A batch that ends up holding a single message is sent as a plain frame.
+ */
+final class Outbox {
+    static final int LENGTH_FIELD = 2;
+    static final int CAPACITY = 4096;
+    private static final int MAX_DRAIN = 256;
+
+    /**
+     * Where the outbox sends messages. Called on the sending thread only.
+     */
+    interface Transmitter {
+        /** Sends one message, in fragments or reliably if the host does. */
+        void send(String destIp, byte[] message, byte flags) throws IOException;
+
+        /** Sends a batch frame with the given payload. */
+        void sendBatch(String destIp, byte[] payload, int length, byte flags) throws IOException;
+
+        /** @return the payload bytes a batch frame to {@code destIp} can hold, or 0 if there can be no batches */
+        int batchRoom(String destIp);
+    }
+
+    private record Outgoing(String destIp, byte[] message, byte flags, CompletableFuture<Void> sent) {}
+
+    private static final class Batch {
+        final byte[] payload;
+        final byte flags;
+        final List<Outgoing> messages = new ArrayList<>();
+        int length;
+
+        Batch(int room, byte flags) {
+            this.payload = new byte[room];
+            this.flags = flags;
+        }
+
+        boolean fits(Outgoing outgoing) {
+            return outgoing.flags() == flags && length + LENGTH_FIELD + outgoing.message().length <= payload.length;
+        }
+
+        void add(Outgoing outgoing) {
+            byte[] message = outgoing.message();
+            payload[length] = (byte) (message.length >>> 8);
+            payload[length + 1] = (byte) message.length;
+            System.arraycopy(message, 0, payload, length + LENGTH_FIELD, message.length);
+            length += LENGTH_FIELD + message.length;
+            messages.add(outgoing);
+        }
+    }
+
+    private final Transmitter transmitter;
+    private final Metrics metrics;
+    private final BlockingQueue<Outgoing> queue = new LinkedBlockingQueue<>(CAPACITY);
+    private volatile boolean coalescing;
+
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    Outbox(Transmitter transmitter, Metrics metrics) {
+        this.transmitter = transmitter;
+        this.metrics = metrics;
+    }
+
+    void setCoalescing(boolean coalescing) {
+        this.coalescing = coalescing;
+    }
+
+    boolean isCoalescing() {
+        return coalescing;
+    }
+
+    /**
+     * Queues a message without blocking.
+     * @return a future completed once the message has been sent, or failed with a
+     *         {@link RejectedExecutionException} if the queue is full
+     */
+    CompletableFuture<Void> submit(String destIp, byte[] message) {
+        return submit(destIp, message, (byte) 0);
+    }
+
+    /**
+     * Queues a message whose frames carry the given FLAGS bits, without blocking.
+     */
+    CompletableFuture<Void> submit(String destIp, byte[] message, byte flags) {
+        CompletableFuture<Void> sent = new CompletableFuture<>();
+        if (!queue.offer(new Outgoing(destIp, message, flags, sent))) {
+            metrics.drop(Metrics.Drop.QUEUE_FULL);
+            sent.completeExceptionally(new RejectedExecutionException("Send queue of " + CAPACITY + " messages is full"));
+        }
+        return sent;
+    }
+
+    /**
+     * Sends queued messages until interrupted, then fails those still queued.
+     */
+    void run() {
+        List<Outgoing> drained = new ArrayList<>(MAX_DRAIN);
+        Map<String, Batch> open = new LinkedHashMap<>();
+        try {
+            while (true) {
+                drained.add(queue.take());
+                queue.drainTo(drained, MAX_DRAIN - 1);
+                boolean coalesce = coalescing && drained.size() > 1;
+                for (Outgoing outgoing : drained) {
+                    if (coalesce) {
+                        add(open, outgoing);
+                    } else {
+                        send(outgoing);
+                    }
+                }
+                for (Batch batch : open.values()) {
+                    flush(batch);
+                }
+                open.clear();
+                drained.clear();
+            }
+        } catch (InterruptedException e) {
+            IOException closed = new IOException("Host closed");
+            queue.drainTo(drained);
+            for (Outgoing outgoing : drained) {
+                outgoing.sent().completeExceptionally(closed);
+            }
+        }
+    }
+
+    private void add(Map<String, Batch> open, Outgoing outgoing) {
+        Batch batch = open.get(outgoing.destIp());
+        if (batch != null && !batch.fits(outgoing)) {
+            // Also keeps the order when the message is too large for any batch or has other flags
+            flush(open.remove(outgoing.destIp()));
+            batch = null;
+        }
+        if (batch == null) {
+            int room = transmitter.batchRoom(outgoing.destIp());
+            if (LENGTH_FIELD + outgoing.message().length > room) {
+                send(outgoing);
+                return;
+            }
+            batch = new Batch(room, outgoing.flags());
+            open.put(outgoing.destIp(), batch);
+        }
+        batch.add(outgoing);
+    }
+
+    private void flush(Batch batch) {
+        if (batch.messages.size() == 1) {
+            send(batch.messages.getFirst());
+            return;
+        }
+        Outgoing first = batch.messages.getFirst();
+        try {
+            transmitter.sendBatch(first.destIp(), batch.payload, batch.length, batch.flags);
+            batches.increment();
+            coalesced.add(batch.messages.size());
+            messages.add(batch.messages.size());
+            for (Outgoing outgoing : batch.messages) {
+                outgoing.sent().complete(null);
+            }
+        } catch (IOException | RuntimeException e) {
+            metrics.drop(Metrics.Drop.SEND_FAILURE, batch.messages.size());
+            for (Outgoing outgoing : batch.messages) {
+                outgoing.sent().completeExceptionally(e);
+            }
+        }
+    }
+
+    private void send(Outgoing outgoing) {
+        try {
+            transmitter.send(outgoing.destIp(), outgoing.message(), outgoing.flags());
+            messages.increment();
+            outgoing.sent().complete(null);
+        } catch (IOException | RuntimeException e) {
+            metrics.drop(Metrics.Drop.SEND_FAILURE);
+            outgoing.sent().completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Hands each message of a batch frame to {@code consumer}.
+     * @return false if the batch is malformed; the messages before the fault have been handed over
+     */
+    static boolean split(FrameCodec.View view, BiConsumer<String, byte[]> consumer) {
+        String source = view.field(FrameCodec.SRC_IP);
+        ByteBuffer buf = view.buffer();
+        int p = view.offset(FrameCodec.PAYLOAD);
+        int end = p + view.length(FrameCodec.PAYLOAD);
+        while (p < end) {
+            if (end - p < LENGTH_FIELD) return false;
+            int length = buf.getShort(p) & 0xFFFF;
+            p += LENGTH_FIELD;
+            if (length > end - p) return false;
+            byte[] message = new byte[length];
+            buf.get(p, message);
+            p += length;
+            consumer.accept(source, message);
+        }
+        return true;
+    }
+
+    int queued() {
+        return queue.size();
+    }
+
+    long messages() {
+        return messages.sum();
+    }
+
+    long batches() {
+        return batches.sum();
+    }
+
+    long coalesced() {
+        return coalesced.sum();
+    }
+}
@@ -0,0 +1,277 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded output queues of one router port, drained by a sender thread of their own, so a
+ * neighbor that is slow to take frames only holds up the frames queued for it.
+ * <p>
+ * Frames are sorted into traffic classes by their {@link FrameCodec.View#priority() priority},
+ * the eight priorities spread evenly over the classes; a higher class is more important. Each
+ * class holds at most {@code capacity} frames and drops new ones when full. The sender serves
+ * the classes with a {@link Scheduler}, optionally shaped to a rate by a token bucket over the
+ * whole port.
+ * <p>
+ * Queued frames are copies, so the forwarding thread can reuse its receive buffer right away;
+ * the copies' buffers are recycled by the queue.
+ */
+final class OutputQueue implements Runnable {
+    private static final int BATCH_SIZE = 32;
+
+    enum Scheduler {
+        /** Always serves the highest class that has frames. */
+        STRICT,
+        /**
+         * Deficit round robin: each turn a class may send up to a quantum of bytes proportional
+         * to its class number plus one, so every class gets a share of the link.
+         */
+        DRR;
+
+        static Scheduler fromConfig(String value) {
+            if (value == null) return null;
+            return Scheduler.valueOf(value.trim().toUpperCase());
+        }
+    }
+
+    /**
+     * The configured queueing of a router's ports.
+     * @param capacity   frames each class holds
+     * @param shapeRate  bytes per second the port sends at most, or 0 for no shaping
+     * @param shapeBurst bytes the port may send at once after an idle period
+     */
+    record Settings(Scheduler scheduler, int classes, int capacity, long shapeRate, long shapeBurst) {
+        int classOf(int priority) {
+            return priority * classes / (FrameCodec.MAX_PRIORITY + 1);
+        }
+    }
+
+    /**
+     * Sends one frame to the port's neighbor.
+     */
+    interface Transmitter {
+        void send(ByteBuffer frame) throws IOException;
+    }
+
+    private final String port;
+    private final Settings settings;
+    private final int frameCapacity;
+    private final int quantum;
+    private final Transmitter transmitter;
+    private final Metrics.QueueCounters counters;
+    private final Metrics metrics;
+    private final Log log;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    // Guarded by lock
+    private final ArrayDeque<ByteBuffer>[] queues;
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+    private int queued;
+    private boolean closed;
+
+    // Owned by the sender thread
+    private final long[] deficit;
+    private int turn;
+    private boolean turnStarted;
+    private double tokens;
+    private long refilledAt;
+
+    /**
+     * @param frameCapacity the size of the buffers frames are copied to; also the DRR quantum
+     */
+    @SuppressWarnings("unchecked")
+    OutputQueue(String port, Settings settings, int frameCapacity, Transmitter transmitter, Metrics metrics, Log log) {
+        this.port = port;
+        this.settings = settings;
+        this.frameCapacity = frameCapacity;
+        this.quantum = frameCapacity;
+        this.transmitter = transmitter;
+        this.metrics = metrics;
+        this.counters = metrics.queue(port, settings.classes());
+        this.log = log;
+        this.queues = (ArrayDeque<ByteBuffer>[]) new ArrayDeque<?>[settings.classes()];
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = new ArrayDeque<>();
+        }
+        this.deficit = new long[settings.classes()];
+        this.tokens = settings.shapeBurst();
+        this.refilledAt = System.nanoTime();
+    }
+
+    void start(Thread.Builder builder, String name) {
+        builder.name(name).start(this);
+    }
+
+    /**
+     * Queues a copy of the frame between the buffer's position and limit. Called by the
+     * forwarding threads.
+     * @return false if the frame's class is full and the frame was dropped
+     */
+    boolean offer(ByteBuffer frame, int priority) {
+        int trafficClass = settings.classOf(priority);
+        int length = frame.remaining();
+        lock.lock();
+        try {
+            if (closed || queues[trafficClass].size() >= settings.capacity()) {
+                counters.dropped(trafficClass);
+                metrics.drop(Metrics.Drop.QUEUE_FULL);
+                return false;
+            }
+            ByteBuffer copy = free.poll();
+            if (copy == null || copy.capacity() < length) {
+                copy = ByteBuffer.allocateDirect(Math.max(frameCapacity, length));
+            }
+            copy.clear().put(0, frame, frame.position(), length).limit(length);
+            queues[trafficClass].add(copy);
+            counters.enqueued(trafficClass);
+            if (queued++ == 0) {
+                notEmpty.signal();
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the sender and drops the queued frames, for a port removed by a reload.
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            for (int c = 0; c < queues.length; c++) {
+                while (queues[c].poll() != null) {
+                    counters.dequeued(c);
+                    counters.dropped(c);
+                }
+            }
+            queued = 0;
+            // Not an interrupt, which would close the channel the sender may be writing to
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void run() {
+        ByteBuffer[] batch = new ByteBuffer[BATCH_SIZE];
+        int sent = 0;
+        while (true) {
+            int n;
+            try {
+                lock.lockInterruptibly();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                // The frames of the last batch are out, so their buffers can be reused
+                for (int i = 0; i < sent; i++) {
+                    free.add(batch[i]);
+                    batch[i] = null;
+                }
+                while (queued == 0 && !closed) {
+                    notEmpty.await();
+                }
+                if (closed) return;
+                n = dequeue(batch);
+                if (n == 0) {
+                    // Shaped: wait for the tokens of the next frame
+                    notEmpty.awaitNanos(tokenWaitNanos());
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            for (int i = 0; i < n; i++) {
+                try {
+                    transmitter.send(batch[i]);
+                } catch (IOException e) {
+                    metrics.drop(Metrics.Drop.SEND_FAILURE);
+                    log.debug("Failed to send to {}: {}", port, e.getMessage());
+                }
+            }
+            sent = n;
+        }
+    }
+
+    /**
+     * Takes up to a batch of frames in the scheduler's order, as far as the shaper allows.
+     * Needs the lock.
+     * @return the number of frames taken
+     */
+    private int dequeue(ByteBuffer[] batch) {
+        if (settings.shapeRate() > 0) {
+            long now = System.nanoTime();
+            tokens = Math.min(settings.shapeBurst(), tokens + (now - refilledAt) * settings.shapeRate() / 1e9);
+            refilledAt = now;
+        }
+        int n = 0;
+        while (n < batch.length && queued > 0) {
+            int c = settings.scheduler() == Scheduler.STRICT ? highestClass() : nextRoundRobinClass();
+            int length = queues[c].peek().remaining();
+            if (settings.shapeRate() > 0) {
+                // A frame larger than the burst goes out once the bucket is full
+                if (tokens < Math.min(length, settings.shapeBurst())) break;
+                tokens -= length;
+            }
+            if (settings.scheduler() == Scheduler.DRR) {
+                deficit[turn] -= length;
+            }
+            batch[n++] = queues[c].poll();
+            queued--;
+            counters.dequeued(c);
+        }
+        return n;
+    }
+
+    private int highestClass() {
+        for (int c = queues.length - 1; c > 0; c--) {
+            if (!queues[c].isEmpty()) return c;
+        }
+        return 0;
+    }
+
+    /**
+     * @return the class whose turn it is and whose deficit covers its next frame. Needs at
+     *         least one queued frame.
+     */
+    private int nextRoundRobinClass() {
+        while (true) {
+            ArrayDeque<ByteBuffer> queue = queues[turn];
+            if (queue.isEmpty()) {
+                // An idle class does not save up its quantum
+                deficit[turn] = 0;
+            } else {
+                if (!turnStarted) {
+                    deficit[turn] += (long) quantum * (turn + 1);
+                    turnStarted = true;
+                }
+                if (queue.peek().remaining() <= deficit[turn]) return turn;
+            }
+            turn = (turn + 1) % queues.length;
+            turnStarted = false;
+        }
+    }
+
+    /**
+     * @return how long until the bucket holds the tokens for the largest frame at the head of a
+     *         class, which covers whichever the scheduler picks next
+     */
+    private long tokenWaitNanos() {
+        long needed = 0;
+        for (ArrayDeque<ByteBuffer> queue : queues) {
+            if (!queue.isEmpty()) {
+                needed = Math.max(needed, Math.min(queue.peek().remaining(), settings.shapeBurst()));
+            }
+        }
+        double missing = Math.max(1, needed - tokens);
+        return Math.max(TimeUnit.MICROSECONDS.toNanos(50), (long) (missing * 1e9 / settings.shapeRate()));
+    }
+}
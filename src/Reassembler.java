@@ -0,0 +1,152 @@
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Puts messages split by a {@link Fragmenter} back together at the receiving host.
+ * <p>
+ * Memory is bounded: at most {@code maxPending} messages are held partly received, each of at
+ * most {@code maxMessageBytes}. A message that is not complete within the timeout is dropped,
+ * and a fragment of a new message arriving while every buffer is in use evicts the oldest
+ * partial message. Fragments may arrive in any order; duplicates are ignored.
+ * <p>
+ * Only used by the receiving thread; the counters may be read from anywhere.
+ */
+final class Reassembler {
+    private final int maxPending;
+    private final long timeoutNanos;
+    private final int maxMessageBytes;
+    private final Metrics metrics;
+
+    // Insertion order is arrival order of the first fragment, so the eldest expires first
+    private final LinkedHashMap<Key, Partial> pending = new LinkedHashMap<>();
+
+    private final LongAdder fragments = new LongAdder();
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder oversized = new LongAdder();
+
+    private record Key(String source, int id) {}
+
+    private static final class Partial {
+        final byte[][] parts;
+        final long startNanos;
+        int received;
+        long bytes;
+
+        Partial(int count, long startNanos) {
+            this.parts = new byte[count][];
+            this.startNanos = startNanos;
+        }
+    }
+
+    Reassembler(int maxPending, int timeoutMillis, int maxMessageBytes, Metrics metrics) {
+        this.maxPending = Math.max(1, maxPending);
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.maxMessageBytes = maxMessageBytes;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Adds the fragment parsed into {@code view}.
+     * @return the whole message if this fragment completed it, otherwise null
+     */
+    byte[] add(FrameCodec.View view, long nowNanos) {
+        expire(nowNanos);
+
+        ByteBuffer buf = view.buffer();
+        int at = view.offset(FrameCodec.PAYLOAD);
+        int length = view.length(FrameCodec.PAYLOAD) - Fragmenter.HEADER;
+        int id = length < 0 ? 0 : buf.getInt(at);
+        int index = length < 0 ? 0 : buf.getShort(at + 4) & 0xFFFF;
+        int count = length < 0 ? 0 : buf.getShort(at + 6) & 0xFFFF;
+        if (index >= count) {
+            metrics.drop(Metrics.Drop.INVALID_FRAME);
+            return null;
+        }
+        fragments.increment();
+
+        Key key = new Key(view.field(FrameCodec.SRC_IP), id);
+        Partial partial = pending.get(key);
+        if (partial == null) {
+            // Every fragment but the last is full, so the first one seen bounds the size
+            if (index < count - 1 && (long) length * (count - 1) > maxMessageBytes) {
+                oversized.increment();
+                return null;
+            }
+            if (pending.size() >= maxPending) {
+                Iterator<Partial> eldest = pending.values().iterator();
+                eldest.next();
+                eldest.remove();
+                evictions.increment();
+            }
+            partial = new Partial(count, nowNanos);
+            pending.put(key, partial);
+        } else if (partial.parts.length != count) {
+            metrics.drop(Metrics.Drop.INVALID_FRAME);
+            return null;
+        }
+        if (partial.parts[index] != null) {
+            return null;
+        }
+
+        partial.bytes += length;
+        if (partial.bytes > maxMessageBytes) {
+            pending.remove(key);
+            oversized.increment();
+            return null;
+        }
+        byte[] part = new byte[length];
+        buf.get(at + Fragmenter.HEADER, part);
+        partial.parts[index] = part;
+        if (++partial.received < count) {
+            return null;
+        }
+
+        pending.remove(key);
+        messages.increment();
+        byte[] message = new byte[(int) partial.bytes];
+        int p = 0;
+        for (byte[] fragment : partial.parts) {
+            System.arraycopy(fragment, 0, message, p, fragment.length);
+            p += fragment.length;
+        }
+        return message;
+    }
+
+    private void expire(long nowNanos) {
+        Iterator<Partial> it = pending.values().iterator();
+        while (it.hasNext()) {
+            if (nowNanos - it.next().startNanos < timeoutNanos) return;
+            it.remove();
+            timeouts.increment();
+        }
+    }
+
+    int pending() {
+        return pending.size();
+    }
+
+    long fragments() {
+        return fragments.sum();
+    }
+
+    long messages() {
+        return messages.sum();
+    }
+
+    long timeouts() {
+        return timeouts.sum();
+    }
+
+    long evictions() {
+        return evictions.sum();
+    }
+
+    long oversized() {
+        return oversized.sum();
+    }
+}
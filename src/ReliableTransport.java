@@ -0,0 +1,707 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Optional reliable, ordered message delivery between hosts, on top of ordinary frames with
+ * {@link FrameCodec#FLAG_RELIABLE} set.
+ * <p>
+ * A message is cut into segments that fit the uplink's MTU. Segments are numbered and at most
+ * a window of them is unacknowledged at a time; the receiver acknowledges every segment with
+ * the next sequence number it expects plus up to {@link #MAX_SACK_BLOCKS} ranges it holds
+ * beyond that (SACK), and buffers out-of-order segments within its window. The sender
+ * <ul>
+ *   <li>retransmits a segment once three segments after it were acknowledged, or on the third
+ *       duplicate cumulative acknowledgement (fast retransmit), and</li>
+ *   <li>retransmits the oldest unacknowledged segment and every hole below the highest SACKed
+ *       one when the retransmission timeout expires, doubling the timeout. The timeout follows
+ *       the measured round trip time as in RFC 6298, sampling only segments that were sent
+ *       once (Karn).</li>
+ * </ul>
+ * Segment payloads, big-endian:
+ * <pre>
+ *   DATA  type=0(1) flags(1) epoch(4) seq(4) data...        flags: 1 = last segment of a message
+ *   ACK   type=1(1) sackBlocks(1) window(2) epoch(4) cumulativeAck(4) trigger(4) [start(4) end(4)]...
+ * </pre>
+ * where {@code trigger} is the segment the ACK answers, which the sender takes its round trip
+ * time samples from. The frames of a message's segments carry the FLAGS bits it was sent with,
+ * and the receiver delivers the message with those of its last segment.
+ * The epoch is chosen at random by each sender, so a receiver starts over when segment 0 of
+ * a new epoch arrives, after the sender restarted or gave up; late segments of the epochs it
+ * moved on from are ignored. A peer that does not acknowledge anything for {@link #MAX_TIMEOUTS} timeouts in a
+ * row is given up on and blocked senders fail.
+ * <p>
+ * Goodput, retransmissions and round trip times are logged per peer while there is traffic.
+ */
+public class ReliableTransport {
+    static final int DATA = 0;
+    static final int ACK = 1;
+    static final int FLAG_END = 1;
+    static final int DATA_HEADER = 10;
+    static final int ACK_HEADER = 16;
+    static final int MAX_SACK_BLOCKS = 4;
+
+    private static final int DUP_THRESHOLD = 3;
+    private static final int MAX_TIMEOUTS = 10;
+    private static final int MAX_RETIRED_EPOCHS = 16;
+    private static final long INITIAL_RTO_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+    private static final long MIN_RTO_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    private static final long MAX_RTO_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final long REPORT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    /**
+     * How segments reach the network: the host frames them and sends them on its uplink.
+     */
+    public interface Link {
+        /**
+         * @return the largest segment that fits in one frame to the destination
+         */
+        int maxPayload(String destIp);
+
+        /**
+         * @param flags FLAGS bits for the frame, besides {@link FrameCodec#FLAG_RELIABLE}
+         */
+        void send(String destIp, byte[] payload, byte flags) throws IOException;
+    }
+
+    /**
+     * Where complete messages go.
+     */
+    public interface Receiver {
+        /**
+         * @param flags the FLAGS byte of the frame of the message's last segment
+         */
+        void deliver(String sourceIp, byte[] message, byte flags);
+    }
+
+    private record Delivery(byte[] message, byte flags) {}
+
+    private record Transmission(String destIp, byte[] payload, byte flags) {}
+
+    private final Link link;
+    private final int window;
+    private final int maxMessageBytes;
+    private final Receiver deliver;
+    private final String name;
+    private final Log log;
+
+    // All state below is guarded by the lock, which is not held while delivering messages or
+    // sending frames: frames are queued in outgoing and sent by the same thread once it has
+    // released the lock, so a link that blocks holds up no other peer. Outgoing is empty
+    // whenever the lock is free. Waiting senders and the timer thread are woken by any change
+    // of state.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final List<Transmission> outgoing = new ArrayList<>();
+    private final Map<String, Sender> senders = new HashMap<>();
+    private final Map<String, Stream> streams = new HashMap<>();
+    private Thread timer;
+    private long nextReport;
+
+    private final LongAdder segmentsSent = new LongAdder();
+    private final LongAdder retransmits = new LongAdder();
+    private final LongAdder fastRetransmits = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder bytesAcked = new LongAdder();
+    private final LongAdder bytesDelivered = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    /**
+     * @param window  how many segments may be unacknowledged, and how many out-of-order
+     *                segments are buffered per sender
+     * @param deliver called with every complete message, in order
+     */
+    public ReliableTransport(String name, Link link, int window, int maxMessageBytes,
+                             Receiver deliver, Log log) {
+        if (window < 1 || window > 0xFFFF) {
+            throw new IllegalArgumentException("Window must be between 1 and 65535 segments, not " + window);
+        }
+        this.name = name;
+        this.link = link;
+        this.window = window;
+        this.maxMessageBytes = maxMessageBytes;
+        this.deliver = deliver;
+        this.log = log;
+    }
+
+    /**
+     * Sends a message, blocking while the window to the destination is full. Segments the link
+     * fails to send are lost like any other and retransmitted.
+     * @throws IOException if the destination stopped acknowledging or the thread was interrupted;
+     *                     the connection then starts over, so the receiver drops the part of the
+     *                     message it has
+     */
+    public void send(String destIp, byte[] message) throws IOException {
+        send(destIp, message, (byte) 0);
+    }
+
+    /**
+     * Sends a message whose frames carry the given FLAGS bits.
+     */
+    public void send(String destIp, byte[] message, byte flags) throws IOException {
+        Sender sender = null;
+        int from = 0;
+        do {
+            List<Transmission> segments;
+            lock.lock();
+            try {
+                startTimer();
+                if (sender == null) {
+                    sender = senders.computeIfAbsent(destIp, Sender::new);
+                }
+                while (sender.inFlight() >= sender.window() && !sender.failed) {
+                    try {
+                        changed.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        if (from > 0) sender.retire();
+                        throw new IOException("Interrupted while sending to " + destIp);
+                    }
+                }
+                if (sender.failed) throw new IOException(destIp + " stopped acknowledging");
+                // As much of the message as the window allows, sent together below
+                do {
+                    int length = Math.min(sender.maxData, message.length - from);
+                    boolean end = from + length == message.length;
+                    sender.sendNew(message, from, length, end, flags);
+                    from += length;
+                } while (from < message.length && sender.inFlight() < sender.window());
+                segments = takeOutgoing();
+            } finally {
+                lock.unlock();
+            }
+            sendQuietly(segments);
+        } while (from < message.length);
+    }
+
+    /**
+     * Handles a frame with {@link FrameCodec#FLAG_RELIABLE} set that was addressed to this host.
+     * Messages it completes are delivered on the calling thread.
+     */
+    public void receive(FrameCodec.View view) {
+        ByteBuffer buf = view.buffer();
+        int at = view.offset(FrameCodec.PAYLOAD);
+        int length = view.length(FrameCodec.PAYLOAD);
+        String source = view.field(FrameCodec.SRC_IP);
+        List<Delivery> complete = null;
+        List<Transmission> replies;
+        lock.lock();
+        try {
+            startTimer();
+            if (length >= DATA_HEADER && buf.get(at) == DATA) {
+                complete = streams.computeIfAbsent(source, Stream::new).onData(buf, at, length, view.flags());
+            } else if (length >= ACK_HEADER && buf.get(at) == ACK) {
+                Sender sender = senders.get(source);
+                if (sender != null) sender.onAck(buf, at, length);
+            }
+            replies = takeOutgoing();
+        } finally {
+            lock.unlock();
+        }
+        // ACKs and fast retransmissions
+        sendQuietly(replies);
+        if (complete != null) {
+            for (Delivery delivery : complete) {
+                deliver.deliver(source, delivery.message(), delivery.flags());
+            }
+        }
+    }
+
+    public long segmentsSent() {
+        return segmentsSent.sum();
+    }
+
+    public long retransmits() {
+        return retransmits.sum();
+    }
+
+    public long fastRetransmits() {
+        return fastRetransmits.sum();
+    }
+
+    public long timeouts() {
+        return timeouts.sum();
+    }
+
+    public long bytesAcked() {
+        return bytesAcked.sum();
+    }
+
+    public long bytesDelivered() {
+        return bytesDelivered.sum();
+    }
+
+    public long failures() {
+        return failures.sum();
+    }
+
+    /**
+     * Starts the thread that runs retransmission timeouts and reports, on first use, so hosts
+     * that never use the transport do not pay for a thread.
+     */
+    private void startTimer() {
+        if (timer != null) return;
+        nextReport = System.nanoTime() + REPORT_INTERVAL_NANOS;
+        timer = new Thread(this::runTimer, "reliable-" + name);
+        timer.setDaemon(true);
+        timer.start();
+    }
+
+    /**
+     * @return the frames queued since the lock was taken, to be sent once it is released
+     */
+    private List<Transmission> takeOutgoing() {
+        if (outgoing.isEmpty()) return List.of();
+        List<Transmission> taken = List.copyOf(outgoing);
+        outgoing.clear();
+        return taken;
+    }
+
+    /**
+     * Sends frames; the protocol recovers from the loss of any of them.
+     */
+    private void sendQuietly(List<Transmission> transmissions) {
+        for (Transmission transmission : transmissions) {
+            try {
+                link.send(transmission.destIp(), transmission.payload(), transmission.flags());
+            } catch (IOException e) {
+                // Lost like any other frame; the timeout or the next segment makes up for it
+            }
+        }
+    }
+
+    @SuppressWarnings("InfiniteLoopStatement")
+    private void runTimer() {
+        try {
+            while (true) {
+                List<Transmission> retransmissions;
+                lock.lock();
+                try {
+                    retransmissions = expire();
+                } finally {
+                    lock.unlock();
+                }
+                sendQuietly(retransmissions);
+            }
+        } catch (InterruptedException e) {
+            // Exit
+        }
+    }
+
+    /**
+     * Runs the due timeouts and reports, then waits for the next one unless there are
+     * retransmissions to send first. Needs the lock.
+     * @return the retransmissions to send
+     */
+    private List<Transmission> expire() throws InterruptedException {
+        long now = System.nanoTime();
+        long next = nextReport;
+        for (Sender sender : List.copyOf(senders.values())) {
+            if (sender.deadline - now <= 0) {
+                sender.onTimeout(now);
+            }
+            if (sender.deadline - next < 0) next = sender.deadline;
+        }
+        if (nextReport - now <= 0) {
+            report(now);
+            nextReport = now + REPORT_INTERVAL_NANOS;
+            next = Math.min(next, nextReport);
+        }
+        List<Transmission> retransmissions = takeOutgoing();
+        long waitNanos = next - System.nanoTime();
+        if (retransmissions.isEmpty() && waitNanos > 0) {
+            changed.awaitNanos(waitNanos);
+        }
+        return retransmissions;
+    }
+
+    private void report(long now) {
+        for (Sender sender : senders.values()) {
+            if (sender.intervalSegments == 0 && sender.intervalAcked == 0) continue;
+            double seconds = (now - sender.intervalStart) / 1e9;
+            log.info("{}", String.format("Reliable to %s: goodput %.2f Mbit/s, %d segment(s) sent, " +
+                            "%d retransmitted (%.2f%%), %d fast, %d timeout(s), srtt %.0f us, rto %.1f ms",
+                    sender.destIp, sender.intervalAcked * 8 / seconds / 1e6, sender.intervalSegments,
+                    sender.intervalRetransmits, 100.0 * sender.intervalRetransmits / Math.max(1, sender.intervalSegments),
+                    sender.intervalFast, sender.intervalTimeouts, sender.srtt / 1e3, sender.rto / 1e6));
+            sender.resetInterval(now);
+        }
+        for (Stream stream : streams.values()) {
+            if (stream.intervalBytes == 0) continue;
+            double seconds = (now - stream.intervalStart) / 1e9;
+            log.info("{}", String.format("Reliable from %s: goodput %.2f Mbit/s, %d message(s), %d duplicate segment(s)",
+                    stream.source, stream.intervalBytes * 8 / seconds / 1e6, stream.intervalMessages,
+                    stream.intervalDuplicates));
+            stream.resetInterval(now);
+        }
+    }
+
+    private static final class Segment {
+        byte[] payload;
+        byte flags;
+        int dataLength;
+        long sentAt;
+        int transmissions;
+        boolean sacked;
+        // Retransmitted by loss recovery since the last timeout
+        boolean recovered;
+    }
+
+    /**
+     * Sending side of the connection to one destination.
+     */
+    private final class Sender {
+        final String destIp;
+        final int epoch = ThreadLocalRandom.current().nextInt();
+        final int maxData;
+        final Segment[] ring = new Segment[window];
+        int sndUna;
+        int nextSeq;
+        int peerWindow = window;
+        // One past the highest segment the receiver has SACKed
+        int highSacked;
+        int dupAcks;
+        long srtt;
+        long rttvar;
+        long rto = INITIAL_RTO_NANOS;
+        long deadline = Long.MAX_VALUE;
+        int consecutiveTimeouts;
+        boolean failed;
+
+        long intervalStart = System.nanoTime();
+        long intervalSegments;
+        long intervalRetransmits;
+        long intervalFast;
+        long intervalTimeouts;
+        long intervalAcked;
+
+        Sender(String destIp) {
+            this.destIp = destIp;
+            this.maxData = link.maxPayload(destIp) - DATA_HEADER;
+            if (maxData <= 0) {
+                throw new IllegalArgumentException("MTU leaves no room for data to " + destIp);
+            }
+            for (int i = 0; i < ring.length; i++) {
+                ring[i] = new Segment();
+            }
+        }
+
+        int inFlight() {
+            return nextSeq - sndUna;
+        }
+
+        int window() {
+            return Math.min(window, peerWindow);
+        }
+
+        Segment segment(int seq) {
+            return ring[Math.floorMod(seq, ring.length)];
+        }
+
+        void sendNew(byte[] message, int from, int length, boolean end, byte flags) {
+            int seq = nextSeq++;
+            ByteBuffer payload = ByteBuffer.allocate(DATA_HEADER + length)
+                    .put((byte) DATA)
+                    .put((byte) (end ? FLAG_END : 0))
+                    .putInt(epoch)
+                    .putInt(seq)
+                    .put(message, from, length);
+            Segment segment = segment(seq);
+            segment.payload = payload.array();
+            segment.flags = flags;
+            segment.dataLength = length;
+            segment.transmissions = 0;
+            segment.sacked = false;
+            segment.recovered = false;
+            transmit(segment);
+            if (deadline == Long.MAX_VALUE) {
+                deadline = segment.sentAt + rto;
+                changed.signalAll();
+            }
+        }
+
+        /**
+         * Queues the segment to be sent once the lock is released.
+         */
+        void transmit(Segment segment) {
+            segment.sentAt = System.nanoTime();
+            if (segment.transmissions++ > 0) {
+                retransmits.increment();
+                intervalRetransmits++;
+            }
+            segmentsSent.increment();
+            intervalSegments++;
+            outgoing.add(new Transmission(destIp, segment.payload, segment.flags));
+        }
+
+        void onAck(ByteBuffer buf, int at, int length) {
+            int blocks = buf.get(at + 1) & 0xFF;
+            if (buf.getInt(at + 4) != epoch || length < ACK_HEADER + 8 * blocks) return;
+            peerWindow = Math.max(1, buf.getShort(at + 2) & 0xFFFF);
+            int cumulative = buf.getInt(at + 8);
+            int trigger = buf.getInt(at + 12);
+            if (cumulative - nextSeq > 0) return;
+
+            long now = System.nanoTime();
+            if (trigger - sndUna >= 0 && trigger - nextSeq < 0 && segment(trigger).transmissions == 1) {
+                sampleRtt(now - segment(trigger).sentAt);
+            }
+            boolean advanced = cumulative - sndUna > 0;
+            if (advanced) {
+                for (int seq = sndUna; seq != cumulative; seq++) {
+                    Segment segment = segment(seq);
+                    bytesAcked.add(segment.dataLength);
+                    intervalAcked += segment.dataLength;
+                    segment.payload = null;
+                }
+                sndUna = cumulative;
+                dupAcks = 0;
+                consecutiveTimeouts = 0;
+                deadline = inFlight() == 0 ? Long.MAX_VALUE : now + rto;
+                changed.signalAll();
+            }
+
+            if (highSacked - sndUna < 0) highSacked = sndUna;
+            for (int i = 0; i < blocks; i++) {
+                int start = buf.getInt(at + ACK_HEADER + 8 * i);
+                int end = buf.getInt(at + ACK_HEADER + 4 + 8 * i);
+                if (start - sndUna < 0 || end - nextSeq > 0 || end - start <= 0) continue;
+                for (int seq = start; seq != end; seq++) {
+                    segment(seq).sacked = true;
+                }
+                if (end - highSacked > 0) highSacked = end;
+            }
+            if (cumulative == sndUna && !advanced && inFlight() > 0 && ++dupAcks == DUP_THRESHOLD &&
+                    !segment(sndUna).recovered) {
+                fastRetransmit(segment(sndUna));
+            }
+
+            // A hole with DUP_THRESHOLD segments received after it is taken as lost
+            int sackedAbove = 0;
+            for (int seq = highSacked - 1; seq - sndUna >= 0; seq--) {
+                Segment segment = segment(seq);
+                if (segment.sacked) {
+                    sackedAbove++;
+                } else if (sackedAbove >= DUP_THRESHOLD && !segment.recovered) {
+                    fastRetransmit(segment);
+                }
+            }
+        }
+
+        void fastRetransmit(Segment segment) {
+            segment.recovered = true;
+            fastRetransmits.increment();
+            intervalFast++;
+            transmit(segment);
+        }
+
+        void sampleRtt(long sample) {
+            if (srtt == 0) {
+                srtt = sample;
+                rttvar = sample / 2;
+            } else {
+                rttvar += (Math.abs(srtt - sample) - rttvar) / 4;
+                srtt += (sample - srtt) / 8;
+            }
+            rto = Math.clamp(srtt + 4 * rttvar, MIN_RTO_NANOS, MAX_RTO_NANOS);
+        }
+
+        void onTimeout(long now) {
+            if (inFlight() == 0) {
+                deadline = Long.MAX_VALUE;
+                return;
+            }
+            timeouts.increment();
+            intervalTimeouts++;
+            if (++consecutiveTimeouts > MAX_TIMEOUTS) {
+                log.warn("Giving up on {} after {} retransmission timeouts", destIp, MAX_TIMEOUTS);
+                failures.increment();
+                retire();
+                return;
+            }
+            // The holes the receiver reported are resent together, so one timeout also recovers
+            // retransmissions that were lost again
+            for (int seq = sndUna; seq != nextSeq; seq++) {
+                Segment segment = segment(seq);
+                segment.recovered = false;
+                if (seq == sndUna || (!segment.sacked && seq - highSacked < 0)) {
+                    transmit(segment);
+                }
+            }
+            dupAcks = 0;
+            rto = Math.min(rto * 2, MAX_RTO_NANOS);
+            deadline = now + rto;
+        }
+
+        /**
+         * Fails the senders waiting on this connection and removes it, so the next message
+         * starts a new one with a new epoch.
+         */
+        void retire() {
+            failed = true;
+            senders.remove(destIp, this);
+            changed.signalAll();
+        }
+
+        void resetInterval(long now) {
+            intervalStart = now;
+            intervalSegments = 0;
+            intervalRetransmits = 0;
+            intervalFast = 0;
+            intervalTimeouts = 0;
+            intervalAcked = 0;
+        }
+    }
+
+    /**
+     * Receiving side of the connection from one source.
+     */
+    private final class Stream {
+        final String source;
+        final byte[][] ring = new byte[window][];
+        final boolean[] ends = new boolean[window];
+        final byte[] flags = new byte[window];
+        int epoch;
+        boolean started;
+        // Epochs this stream has moved on from, whose late segments are ignored
+        final Set<Integer> retired = new LinkedHashSet<>();
+        int rcvNext;
+        int highestReceived;
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        boolean discarding;
+
+        long intervalStart = System.nanoTime();
+        long intervalBytes;
+        long intervalMessages;
+        long intervalDuplicates;
+
+        Stream(String source) {
+            this.source = source;
+        }
+
+        /**
+         * @return the messages this segment completed, or null
+         */
+        List<Delivery> onData(ByteBuffer buf, int at, int length, byte frameFlags) {
+            int segmentEpoch = buf.getInt(at + 2);
+            int seq = buf.getInt(at + 6);
+            if (!started || segmentEpoch != epoch) {
+                // A new sender, or the old one restarted or gave up. Only its first segment, 0,
+                // starts the stream over: a late segment must not reset it to an older epoch
+                if (seq != 0 || retired.contains(segmentEpoch)) return null;
+                if (started) {
+                    retired.add(epoch);
+                    if (retired.size() > MAX_RETIRED_EPOCHS) {
+                        retired.remove(retired.iterator().next());
+                    }
+                }
+                started = true;
+                epoch = segmentEpoch;
+                rcvNext = 0;
+                highestReceived = 0;
+                Arrays.fill(ring, null);
+                message.reset();
+                discarding = false;
+            }
+
+            List<Delivery> complete = null;
+            int slot = Math.floorMod(seq, window);
+            if (seq - rcvNext < 0 || seq - rcvNext >= window || ring[slot] != null) {
+                intervalDuplicates++;
+            } else {
+                byte[] data = new byte[length - DATA_HEADER];
+                buf.get(at + DATA_HEADER, data);
+                ring[slot] = data;
+                ends[slot] = (buf.get(at + 1) & FLAG_END) != 0;
+                flags[slot] = frameFlags;
+                if (seq - highestReceived > 0) highestReceived = seq;
+                complete = advance();
+            }
+            sendAck(seq);
+            return complete;
+        }
+
+        private List<Delivery> advance() {
+            List<Delivery> complete = null;
+            for (int slot; ring[slot = Math.floorMod(rcvNext, window)] != null; rcvNext++) {
+                byte[] data = ring[slot];
+                ring[slot] = null;
+                bytesDelivered.add(data.length);
+                intervalBytes += data.length;
+                if (!discarding && message.size() + data.length > maxMessageBytes) {
+                    log.warn("Discarding a message from {} longer than {} bytes", source, maxMessageBytes);
+                    discarding = true;
+                    message.reset();
+                }
+                if (!discarding) {
+                    message.write(data, 0, data.length);
+                }
+                if (ends[slot]) {
+                    if (!discarding) {
+                        if (complete == null) complete = new ArrayList<>();
+                        complete.add(new Delivery(message.toByteArray(), flags[slot]));
+                        intervalMessages++;
+                    }
+                    message.reset();
+                    discarding = false;
+                }
+            }
+            if (highestReceived - rcvNext < 0) highestReceived = rcvNext;
+            return complete;
+        }
+
+        /**
+         * Acknowledges up to rcvNext and SACKs the held ranges, the one with the segment that
+         * just arrived first so the sender learns of the newest data even with many holes.
+         */
+        private void sendAck(int latest) {
+            int[] blocks = new int[2 * MAX_SACK_BLOCKS];
+            int count = 0;
+            for (int seq = rcvNext + 1; seq - highestReceived <= 0 && count < MAX_SACK_BLOCKS; seq++) {
+                if (ring[Math.floorMod(seq, window)] == null) continue;
+                int start = seq;
+                while (seq + 1 - highestReceived <= 0 && ring[Math.floorMod(seq + 1, window)] != null) {
+                    seq++;
+                }
+                int b = count++;
+                if (latest - start >= 0 && latest - seq <= 0 && b > 0) {
+                    blocks[2 * b] = blocks[0];
+                    blocks[2 * b + 1] = blocks[1];
+                    b = 0;
+                }
+                blocks[2 * b] = start;
+                blocks[2 * b + 1] = seq + 1;
+            }
+            ByteBuffer ack = ByteBuffer.allocate(ACK_HEADER + 8 * count)
+                    .put((byte) ACK)
+                    .put((byte) count)
+                    .putShort((short) window)
+                    .putInt(epoch)
+                    .putInt(rcvNext)
+                    .putInt(latest);
+            for (int i = 0; i < 2 * count; i++) {
+                ack.putInt(blocks[i]);
+            }
+            outgoing.add(new Transmission(source, ack.array(), (byte) 0));
+        }
+
+        void resetInterval(long now) {
+            intervalStart = now;
+            intervalBytes = 0;
+            intervalMessages = 0;
+            intervalDuplicates = 0;
+        }
+    }
+}
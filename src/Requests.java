@@ -0,0 +1,132 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Matches the responses of {@link Host#request} to their requests.
+ * <p>
+ * Requests and responses are messages sent in frames with {@link FrameCodec#FLAG_REQUEST} set,
+ * so an application message is never mistaken for one. They start with
+ * <pre>
+ *   kind(3) | request id(8)
+ * </pre>
+ * where the kind is {@code "RQ|"} for a request, {@code "RS|"} for a response and
+ * {@code "RE|"} for a response reporting that the responder failed, whose body is the error text.
+ * A response arriving after its request timed out is counted and dropped.
+ */
+final class Requests {
+    static final int HEADER = 11;
+
+    enum Kind {
+        REQUEST("RQ|"), RESPONSE("RS|"), ERROR("RE|");
+
+        final byte[] tag;
+
+        Kind(String tag) {
+            this.tag = tag.getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    // Starts at random so a restarted host does not match responses meant for its last run
+    private final AtomicLong nextId = new AtomicLong(ThreadLocalRandom.current().nextLong());
+    private final Map<Long, CompletableFuture<byte[]>> pending = new ConcurrentHashMap<>();
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder answered = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder late = new LongAdder();
+
+    /**
+     * Registers a new request whose response completes {@code response}, or fails it with a
+     * {@link TimeoutException} after {@code timeout}.
+     * @return the id to send the request with
+     */
+    long start(CompletableFuture<byte[]> response, Duration timeout) {
+        long id = nextId.getAndIncrement();
+        pending.put(id, response);
+        sent.increment();
+        response.orTimeout(timeout.toNanos(), TimeUnit.NANOSECONDS).whenComplete((body, e) -> {
+            pending.remove(id);
+            if (e instanceof TimeoutException) {
+                timeouts.increment();
+            }
+        });
+        return id;
+    }
+
+    /**
+     * Completes the request a response or error message answers.
+     */
+    void complete(String sourceIp, byte[] message) {
+        CompletableFuture<byte[]> response = pending.remove(id(message));
+        if (response == null) {
+            late.increment();
+            return;
+        }
+        answered.increment();
+        if (kind(message) == Kind.ERROR) {
+            response.completeExceptionally(new IOException("Request failed at " + sourceIp + ": " +
+                    new String(body(message), StandardCharsets.UTF_8)));
+        } else {
+            response.complete(body(message));
+        }
+    }
+
+    static byte[] encode(Kind kind, long id, byte[] body) {
+        return ByteBuffer.allocate(HEADER + body.length)
+                .put(kind.tag)
+                .putLong(id)
+                .put(body)
+                .array();
+    }
+
+    /**
+     * @return the kind of a message marked as a request or response, or null if it is malformed
+     */
+    static Kind kind(byte[] message) {
+        if (message.length < HEADER || message[2] != '|') return null;
+        for (Kind kind : Kind.values()) {
+            if (message[0] == kind.tag[0] && message[1] == kind.tag[1]) return kind;
+        }
+        return null;
+    }
+
+    static long id(byte[] message) {
+        return ByteBuffer.wrap(message).getLong(3);
+    }
+
+    static byte[] body(byte[] message) {
+        byte[] body = new byte[message.length - HEADER];
+        System.arraycopy(message, HEADER, body, 0, body.length);
+        return body;
+    }
+
+    int pending() {
+        return pending.size();
+    }
+
+    long sent() {
+        return sent.sum();
+    }
+
+    long answered() {
+        return answered.sum();
+    }
+
+    long timeouts() {
+        return timeouts.sum();
+    }
+
+    long late() {
+        return late.sum();
+    }
+}
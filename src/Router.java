@@ -1,192 +1,679 @@
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
 
 public class Router {
+    private static final int BATCH_SIZE = 32;
+    private static final long STATS_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(30);
+
     private final String routerId;
     private String myIp;
     private int myPort;
-    private final Map<String, PortInfo> virtualPorts;
-    private final Map<String, RoutingEntry> routingTable;
-    private NetworkLayer networkLayer;
+    // Guarded by this, like everything the forwarding state is built from
+    private List<Config.RoutingTableEntry> staticRoutes = List.of();
+    // Subnet -> switch, for subnets found behind neighbor switches when distance-vector is on
+    private Map<String, String> connectedSubnets = Map.of();
+    private DistanceVector distanceVector;
+    private Path stateFile;
+    private int stateIntervalSeconds;
+    // Rebuilt and swapped as a whole whenever routes or neighbors change, so the adjacencies
+    // resolved into its entries can never go stale
+    private volatile Forwarding forwarding;
+    private int workerCount;
+    private int flowCacheSize;
+    // Null when ports send without output queues; fixed until restart
+    private OutputQueue.Settings queueSettings;
+    private int frameSize;
+    private int ingressQueueSize;
+    private ForwardQueue.DropPolicy dropPolicy;
+    private Shard[] shards;
+    // Shard whose socket the next new output queue sends through
+    private int nextQueueShard;
+    private boolean virtualThreads;
+    private final LongAdder reloads = new LongAdder();
+    private final LongAdder restoredRoutes = new LongAdder();
+    private final byte[] routerMac;
+    private final Metrics metrics;
+    private final Metrics.PortCounters unknownPort;
+    private final Log log;
 
     public Router(String routerId) {
         this.routerId = routerId;
-        this.virtualPorts = new HashMap<>();
-        this.routingTable = new HashMap<>();
+        this.routerMac = routerId.getBytes(StandardCharsets.UTF_8);
+        this.log = Log.get(routerId);
+        this.metrics = new Metrics(routerId);
+        this.unknownPort = metrics.port("unknown");
     }
 
+    /**
+     * Everything the forwarding threads read, published with one volatile write. A shard reads
+     * the reference once per frame, so it never blocks on a rebuild and never sees ports and
+     * routes from different versions. Its flow cache is tied to the routing table instance, so
+     * publishing a new one also invalidates every cached flow.
+     */
+    private record Forwarding(Map<String, PortInfo> virtualPorts, Map<InetSocketAddress, PortInfo> portsByAddress,
+                              Fib<RoutingEntry> routingTable, FrameCodec.Format frameFormat) {}
+
     private void loadConfig(Config config) {
         this.myIp = config.getIp(routerId);
         this.myPort = config.getPort(routerId);
+        this.workerCount = config.getWorkers(routerId);
+        this.flowCacheSize = config.getFlowCacheSize(routerId);
+        this.queueSettings = config.getOutputQueueSettings(routerId);
+        this.frameSize = config.getFrameSize(routerId);
+        this.ingressQueueSize = config.getIngressQueueSize(routerId);
+        this.dropPolicy = config.getDropPolicy(routerId);
+    }
 
-        List<String> neighbors = config.getNeighbors(routerId);
-        for (String neighborId : neighbors) {
+    /**
+     * Reads the neighbors and routes and publishes the forwarding state built from them. Ports
+     * to neighbors that did not change are kept, with their counters.
+     */
+    private synchronized void loadTopology(Config config) {
+        Map<String, PortInfo> previous = forwarding == null ? Map.of() : forwarding.virtualPorts;
+        Map<String, PortInfo> ports = new HashMap<>();
+        for (String neighborId : config.getNeighbors(routerId)) {
             String neighborIp = config.getIp(neighborId);
             int neighborPort = config.getPort(neighborId);
             String portName = neighborIp + ":" + neighborPort;
-            virtualPorts.put(portName, new PortInfo(neighborIp, neighborPort, neighborId));
+            PortInfo port = previous.get(portName);
+            if (port == null || !neighborId.equals(port.neighborId)) {
+                port = new PortInfo(neighborIp, neighborPort, neighborId, metrics.port(portName));
+                if (queueSettings != null) {
+                    port.queue = newOutputQueue(port, shards[nextQueueShard++ % shards.length].networkLayer);
+                }
+            }
+            ports.put(portName, port);
+        }
+        for (PortInfo port : previous.values()) {
+            if (port.queue != null && ports.get(port.toString()) != port) {
+                port.queue.close();
+            }
         }
 
-        loadRoutingTable(config);
+        connectedSubnets = config.isDistanceVector(routerId) ? findConnectedSubnets(config) : Map.of();
+        staticRoutes = loadRoutingTable(config);
+        publish(ports, config.getFrameFormat(routerId));
     }
 
-    private void loadRoutingTable(Config config) {
-        List<Config.RoutingTableEntry> entries = config.getRoutingTable(routerId);
-        if (entries != null) {
-            for (Config.RoutingTableEntry entry : entries) {
-                routingTable.put(entry.subnet, new RoutingEntry(entry.subnet, entry.nextHop));
+    /**
+     * Creates and starts the output queues of a port. Queued frames go out through the given
+     * socket; ports are spread over the shards' sockets so one socket does not carry them all.
+     */
+    private OutputQueue newOutputQueue(PortInfo port, NetworkLayer networkLayer) {
+        OutputQueue queue = new OutputQueue(port.toString(), queueSettings, NetworkLayer.bufferCapacity(frameSize),
+                frame -> {
+                    port.counters.tx(frame.remaining());
+                    networkLayer.send(frame, port.address);
+                }, metrics, log);
+        Thread.Builder builder = virtualThreads ? Thread.ofVirtual() : Thread.ofPlatform().daemon();
+        queue.start(builder, "router-" + routerId + "-tx-" + port);
+        return queue;
+    }
+
+    /**
+     * @return the subnets of the hosts on each neighbor switch, which this router delivers to directly
+     */
+    private Map<String, String> findConnectedSubnets(Config config) {
+        Map<String, String> connected = new TreeMap<>();
+        for (String neighborId : config.getNeighbors(routerId)) {
+            if (!"switch".equals(config.getType(neighborId))) continue;
+            for (String deviceId : config.getNeighbors(neighborId)) {
+                String virtualIp = config.getVirtualIp(deviceId);
+                if (!"host".equals(config.getType(deviceId)) || virtualIp == null) continue;
+                int dotIndex = virtualIp.lastIndexOf('.');
+                if (dotIndex > 0) {
+                    connected.putIfAbsent(virtualIp.substring(0, dotIndex), neighborId);
+                }
             }
         }
+        return connected;
+    }
 
-        System.out.println("\n+-------------------------------------------+");
-        System.out.println("| Routing Table for " + String.format("%-23s", routerId) + "|");
-        System.out.println("+----------------------+--------------------+");
-        System.out.println("| Subnet Prefix        | Next-hop/Exit Port |");
-        System.out.println("+----------------------+--------------------+");
-        for (Map.Entry<String, RoutingEntry> entry : routingTable.entrySet()) {
-            System.out.printf("| %-20s | %-18s |%n",
-                    entry.getKey(),
-                    entry.getValue().nextHopOrPort);
+    /**
+     * Starts distance-vector routing with the neighbor routers. Configured routes to directly
+     * attached subnets and the subnets found behind neighbor switches are advertised.
+     */
+    private synchronized void startDistanceVector(Config config, NetworkLayer networkLayer) {
+        Map<String, InetSocketAddress> neighborRouters = neighborRouters(config);
+        Set<String> connected = advertisedPrefixes();
+        distanceVector = new DistanceVector(routerId, neighborRouters, connected, networkLayer,
+                this::rebuildRoutingTable, metrics, log, config.getAdvertiseIntervalSeconds(routerId));
+        log.info("Distance-vector routing with neighbors {}, advertising {}", neighborRouters.keySet(), connected);
+        if (stateFile != null) {
+            restoreRoutes(config.getAdvertiseIntervalSeconds(routerId));
         }
-        System.out.println("+----------------------+--------------------+\n");
     }
 
-    public void initialize(String configFile) throws IOException {
-        Config config = new Config(configFile);
-        loadConfig(config);
-
-        this.networkLayer = new NetworkLayer(myPort);
-
-        System.out.println("Router " + routerId + " initialized on " + myIp + ":" + myPort);
-        System.out.println("Virtual ports created for neighbors: " + virtualPorts.keySet());
+    /**
+     * Starts routing with the distance-vector routes of the state snapshot, so the FIB is
+     * complete before the first advertisements arrive. A snapshot older than the neighbor
+     * timeout is dropped as a whole: any of its routes could have been withdrawn since.
+     */
+    private void restoreRoutes(int advertiseIntervalSeconds) {
+        StateSnapshot snapshot;
+        try {
+            snapshot = StateSnapshot.load(stateFile);
+        } catch (IOException e) {
+            log.warn("Ignoring state snapshot: {}", e.getMessage());
+            return;
+        }
+        if (snapshot == null) return;
+        if (snapshot.ageSeconds() > 3L * advertiseIntervalSeconds) {
+            log.info("Dropped {} route(s) from a snapshot written {} s ago", snapshot.routes().size(),
+                    snapshot.ageSeconds());
+            return;
+        }
+        Map<String, DistanceVector.Route> learned = new HashMap<>();
+        for (StateSnapshot.Route route : snapshot.routes()) {
+            learned.put(route.prefix(), new DistanceVector.Route(route.nextHop(), route.cost()));
+        }
+        int restored = distanceVector.restore(learned);
+        restoredRoutes.add(restored);
+        rebuildRoutingTable();
+        log.info("Restored {} route(s) from a snapshot written {} s ago, dropped {} stale", restored,
+                snapshot.ageSeconds(), learned.size() - restored);
     }
 
-    @SuppressWarnings("InfiniteLoopStatement")
-    public void start() {
-        System.out.println("Router " + routerId + " is running");
+    private StateSnapshot snapshot() {
+        List<StateSnapshot.Route> learned = new ArrayList<>();
+        distanceVector.routes().forEach((prefix, route) -> {
+            if (route.nextHop() != null) {
+                learned.add(new StateSnapshot.Route(prefix, route.nextHop(), route.cost()));
+            }
+        });
+        return new StateSnapshot(System.currentTimeMillis(), List.of(), learned);
+    }
 
-        while (true) {
-            try {
-                NetworkLayer.Data data = networkLayer.receive();
-                handleFrame(data);
-            } catch (IOException e) {
-                System.err.println("Error receiving frame: " + e.getMessage());
+    private Map<String, InetSocketAddress> neighborRouters(Config config) {
+        Map<String, InetSocketAddress> neighborRouters = new HashMap<>();
+        for (PortInfo port : forwarding.virtualPorts.values()) {
+            if ("router".equals(config.getType(port.neighborId))) {
+                neighborRouters.put(port.neighborId, port.address);
             }
         }
+        return neighborRouters;
     }
 
-    private void handleFrame(NetworkLayer.Data data) {
-        String frame = data.frame();
-        String senderIp = data.srcIp();
-        int senderPort = data.srcPort();
-
-        String[] parts = frame.split(":", 5);
-        if (parts.length < 5) {
-            System.err.println("Invalid frame format: " + frame);
-            return;
+    private Set<String> advertisedPrefixes() {
+        Set<String> connected = new HashSet<>(connectedSubnets.keySet());
+        for (Config.RoutingTableEntry route : staticRoutes) {
+            if (!route.nextHop.contains(".") && !route.isDefaultRoute()) {
+                connected.add(route.subnet);
+            }
         }
+        return connected;
+    }
 
-        String srcMAC = parts[0];
-        String destMAC = parts[1];
-        String srcIP = parts[2];
-        String destIP = parts[3];
-        String message = parts[4];
-
-        System.out.println("\n[" + routerId + "] RECEIVED Frame:");
-        System.out.println("  Virtual Source MAC: " + srcMAC);
-        System.out.println("  Virtual Dest MAC: " + destMAC);
-        System.out.println("  Virtual Source IP: " + srcIP);
-        System.out.println("  Virtual Dest IP: " + destIP);
-        System.out.println("  Message: " + message);
-        System.out.println("  From: " + senderIp + ":" + senderPort);
-
-        if (!destMAC.equals(routerId)) {
-            System.out.println("[" + routerId + "] Frame not for me (dest MAC: " + destMAC + "), dropping.");
+    /**
+     * Applies a changed config while the router keeps forwarding. The new ports and routing
+     * table are built on the calling thread and published with one reference swap. The address
+     * and worker count need new sockets and only change on restart.
+     */
+    public void reload(Config config) {
+        if (!config.hasDevice(routerId)) {
+            log.warn("Reloaded config has no device {}, keeping the current one", routerId);
             return;
         }
+        if (config.getPort(routerId) != myPort || config.getWorkers(routerId) != workerCount
+                || config.getIngressQueueSize(routerId) != ingressQueueSize || config.getDropPolicy(routerId) != dropPolicy) {
+            log.warn("Address, worker and queue changes of {} take effect on restart", routerId);
+        }
+        if (!Objects.equals(config.getOutputQueueSettings(routerId), queueSettings)) {
+            log.warn("Output queue changes of {} take effect on restart", routerId);
+        }
+        synchronized (this) {
+            loadTopology(config);
+            if (distanceVector != null) {
+                distanceVector.reconfigure(neighborRouters(config), advertisedPrefixes());
+            }
+        }
+        reloads.increment();
+        log.info("Reloaded config: {} virtual port(s), {} route(s)", forwarding.virtualPorts.size(),
+                forwarding.routingTable.size());
+    }
 
-        String destSubnet = extractSubnet(destIP);
+    private List<Config.RoutingTableEntry> loadRoutingTable(Config config) {
+        List<Config.RoutingTableEntry> entries = null;
+        if (config.getFibFile() != null) {
+            entries = loadFibFile(config, config.getFibFile());
+        }
+        if (entries == null) {
+            long start = System.nanoTime();
+            entries = config.getRoutingTable(routerId);
+            if (entries != null) {
+                log.info("Loaded {} route(s) from the config in {} us", entries.size(),
+                        TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+            }
+        }
+        return entries != null ? entries : List.of();
+    }
 
-        RoutingEntry routingEntry = routingTable.get(destSubnet);
-        if (routingEntry == null) {
-            System.err.println("[" + routerId + "] No route to subnet: " + destSubnet);
-            return;
+    /**
+     * @return the routes precompiled for this router by {@link TopologyCompiler}, or null to fall
+     *         back to the config if the file is missing, stale or has no routes for this router
+     */
+    private List<Config.RoutingTableEntry> loadFibFile(Config config, String fibFile) {
+        long start = System.nanoTime();
+        try {
+            List<Config.RoutingTableEntry> entries = TopologyCompiler.load(Path.of(fibFile), routerId, config);
+            if (entries == null) {
+                log.warn("No routes for {} in {}", routerId, fibFile);
+            } else {
+                log.info("Loaded {} route(s) from {} in {} us", entries.size(), fibFile,
+                        TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+            }
+            return entries;
+        } catch (IOException e) {
+            log.warn("Ignoring FIB file: {}", e.getMessage());
+            return null;
         }
+    }
 
-        System.out.println("[" + routerId + "] Routing decision: " + destSubnet + " -> " + routingEntry.nextHopOrPort);
+    /**
+     * Rebuilds the FIB from the current ports, for when only the distance-vector routes changed.
+     */
+    private synchronized void rebuildRoutingTable() {
+        publish(forwarding.virtualPorts, forwarding.frameFormat);
+    }
 
-        String newDestMAC;
-        PortInfo outgoingPort;
+    /**
+     * Builds a new FIB from the configured routes with every next hop resolved to its outgoing
+     * port, then publishes it with the ports. Must be called whenever routes or virtual ports
+     * change. Configured routes take precedence over connected and distance-vector routes for
+     * the same prefix.
+     */
+    private synchronized void publish(Map<String, PortInfo> virtualPorts, FrameCodec.Format frameFormat) {
+        Map<String, PortInfo> portsByNeighbor = new HashMap<>();
+        Map<InetSocketAddress, PortInfo> portsByAddress = new HashMap<>();
+        for (PortInfo port : virtualPorts.values()) {
+            if (port.neighborId != null) {
+                portsByNeighbor.put(port.neighborId, port);
+            }
+            portsByAddress.put(port.address, port);
+        }
 
-        if (routingEntry.nextHopOrPort.contains(".")) {
-            newDestMAC = extractHostId(routingEntry.nextHopOrPort);
+        Fib<RoutingEntry> table = new Fib<>();
+        Set<String> prefixes = new HashSet<>();
+        for (Config.RoutingTableEntry route : staticRoutes) {
+            RoutingEntry entry = resolve(route.subnet, route.nextHop, portsByNeighbor);
+            if (entry.outPort == null) {
+                log.warn("No virtual port for next hop {} of route {}", route.nextHop, route.subnet);
+            }
+            table.insert(route.subnet, entry);
+            prefixes.add(route.subnet);
+        }
+        connectedSubnets.forEach((subnet, switchId) -> {
+            if (prefixes.add(subnet)) {
+                table.insert(subnet, resolve(subnet, switchId, portsByNeighbor));
+            }
+        });
+        if (distanceVector != null) {
+            distanceVector.routes().forEach((prefix, route) -> {
+                if (route.nextHop() == null || !prefixes.add(prefix)) return;
+                table.insert(prefix, new RoutingEntry(prefix, route.nextHop() + " (dv " + route.cost() + ")",
+                        portsByNeighbor.get(route.nextHop()), route.nextHop().getBytes(StandardCharsets.UTF_8)));
+            });
+        }
+        forwarding = new Forwarding(Map.copyOf(virtualPorts), portsByAddress, table, frameFormat);
+        printRoutingTable(table);
+    }
 
-            outgoingPort = findPortByNeighborId(newDestMAC);
+    /**
+     * A next hop containing a dot is the virtual IP of a neighbor router, which becomes the new
+     * destination MAC. Otherwise it names the neighbor (switch) that reaches a directly attached
+     * subnet, and the destination MAC is taken from the frame's destination IP.
+     */
+    private RoutingEntry resolve(String subnet, String nextHopOrPort, Map<String, PortInfo> portsByNeighbor) {
+        if (nextHopOrPort.contains(".")) {
+            String nextHopId = extractHostId(nextHopOrPort);
+            return new RoutingEntry(subnet, nextHopOrPort, portsByNeighbor.get(nextHopId),
+                    nextHopId.getBytes(StandardCharsets.UTF_8));
+        }
+        return new RoutingEntry(subnet, nextHopOrPort, portsByNeighbor.get(nextHopOrPort), null);
+    }
 
-            if (outgoingPort == null) {
-                System.err.println("[" + routerId + "] Cannot find port for next-hop router: " + newDestMAC);
-                return;
-            }
-        } else {
-            newDestMAC = extractHostId(destIP);
+    private void printRoutingTable(Fib<RoutingEntry> routingTable) {
+        StringBuilder sb = new StringBuilder("\n+-------------------------------------------+\n");
+        sb.append("| Routing Table for ").append(String.format("%-23s", routerId)).append("|\n");
+        sb.append("+----------------------+--------------------+\n");
+        sb.append("| Subnet Prefix        | Next-hop/Exit Port |\n");
+        sb.append("+----------------------+--------------------+\n");
+        routingTable.forEach((prefix, entry) ->
+                sb.append(String.format("| %-20s | %-18s |%n", prefix, entry.nextHopOrPort)));
+        sb.append("+----------------------+--------------------+\n");
+        log.info("{}", sb);
+    }
 
-            outgoingPort = findPortByNeighborId(routingEntry.nextHopOrPort);
+    public void initialize(String configFile) throws IOException {
+        Config config = new Config(configFile);
+        Log.configure(config.getLogLevel(routerId), config.getLogFile(routerId));
+        initialize(config, null);
+    }
 
-            if (outgoingPort == null) {
-                System.err.println("[" + routerId + "] Cannot find outgoing port for neighbor: " + routingEntry.nextHopOrPort);
-                return;
-            }
+    /**
+     * Sets the router up from a loaded config. With a fabric the router runs inside a
+     * {@link TopologyRunner}: it reaches other local devices through memory and uses virtual threads.
+     */
+    void initialize(Config config, LocalFabric fabric) throws IOException {
+        this.virtualThreads = fabric != null;
+        loadConfig(config);
+        this.stateFile = config.getStateFile(routerId);
+        this.stateIntervalSeconds = config.getStateIntervalSeconds(routerId);
+
+        // With several workers every shard binds its own socket to the same port and the kernel
+        // spreads incoming datagrams across them by sender, keeping each neighbor's frames in order
+        boolean reusePort = workerCount > 1;
+        this.shards = new Shard[Math.max(1, workerCount)];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard(fabric == null
+                    ? new NetworkLayer(myPort, reusePort, config.getFrameSize(routerId)) : fabric.open(routerId, reusePort));
+            shards[i].networkLayer.setLossRate(config.getLossRate(routerId));
+            shards[i].networkLayer.setSocketBuffers(config.getReceiveBuffer(routerId), config.getSendBuffer(routerId));
         }
+        // Output queues send through the shards' sockets, so the ports are set up once they exist
+        loadTopology(config);
 
-        String newSrcMAC = routerId;
+        if (config.isDistanceVector(routerId)) {
+            startDistanceVector(config, shards[0].networkLayer);
+        }
 
-        String newFrame = newSrcMAC + ":" + newDestMAC + ":" + srcIP + ":" + destIP + ":" + message;
+        metrics.gauge("routes", () -> forwarding.routingTable.size());
+        metrics.gauge("config_reloads", reloads::sum);
+        metrics.gauge("routes_restored", restoredRoutes::sum);
+        metrics.gauge("rx_batches", () -> sumOverShards(shard -> shard.networkLayer.batchCount()));
+        metrics.gauge("rx_batched_frames", () -> sumOverShards(shard -> shard.networkLayer.batchedFrames()));
+        metrics.gauge("rx_oversized_frames", () -> sumOverShards(shard -> shard.networkLayer.oversizedFrames()));
+        metrics.gauge("injected_losses", () -> sumOverShards(shard -> shard.networkLayer.injectedLosses()));
+        // Every shard's socket is bound to the same port, whose kernel drops are counted once
+        metrics.gauge("kernel_rx_drops", shards[0].networkLayer::kernelDrops);
+        metrics.gauge("inbox_drops", () -> sumOverShards(shard -> shard.networkLayer.inboxDrops()));
+        if (ingressQueueSize > 0) {
+            metrics.gauge("forward_queue_depth", () -> sumOverShards(shard -> shard.queue.depth()));
+        }
+        if (flowCacheSize > 0) {
+            metrics.gauge("flow_cache_hits", () -> sumOverShards(shard -> shard.flowCache.hits()));
+            metrics.gauge("flow_cache_misses", () -> sumOverShards(shard -> shard.flowCache.misses()));
+            metrics.gauge("flow_cache_evictions", () -> sumOverShards(shard -> shard.flowCache.evictions()));
+        }
+        metrics.gauge("log_dropped_messages", Log::droppedMessages);
+        metrics.command("reload", () -> {
+            reload(config.reload());
+            return "Reloaded " + config.getPath();
+        });
+        config.startMetrics(routerId, metrics);
+        if (config.isWatchConfig(routerId)) {
+            ConfigWatcher.watch(config.getPath(), this::reload);
+        }
 
-        System.out.println("\n[" + routerId + "] FORWARDING Frame:");
-        System.out.println("  Virtual Source MAC: " + newSrcMAC);
-        System.out.println("  Virtual Dest MAC: " + newDestMAC);
-        System.out.println("  Virtual Source IP: " + srcIP);
-        System.out.println("  Virtual Dest IP: " + destIP);
-        System.out.println("  Message: " + message);
-        System.out.println("  To: " + outgoingPort.ip + ":" + outgoingPort.port);
+        log.info("Router {} initialized on {}:{}", routerId, myIp, myPort);
+        log.info("Virtual ports created for neighbors: {}", forwarding.virtualPorts.keySet());
+        if (config.getReceiveBuffer(routerId) > 0 || config.getSendBuffer(routerId) > 0) {
+            log.info("Socket buffers: {}", shards[0].networkLayer.socketBuffers());
+        }
+        if (ingressQueueSize > 0) {
+            log.info("Forward queues of {} frames per socket, {} drop", ingressQueueSize, dropPolicy);
+        }
+        if (queueSettings != null) {
+            log.info("Output queues: {} scheduling of {} class(es) of {} frames", queueSettings.scheduler(),
+                    queueSettings.classes(), queueSettings.capacity());
+            if (queueSettings.shapeRate() > 0) {
+                log.info("Ports shaped to {} B/s, burst {} B", queueSettings.shapeRate(), queueSettings.shapeBurst());
+            }
+        }
+    }
 
-        forwardFrame(newFrame, outgoingPort);
+    public void start() {
+        log.info("Router {} is running with {} receive socket(s)", routerId, shards.length);
+
+        if (distanceVector != null) {
+            Thread.Builder builder = virtualThreads ? Thread.ofVirtual() : Thread.ofPlatform().daemon();
+            builder.name("router-" + routerId + "-dv").start(distanceVector);
+            if (stateFile != null) {
+                StateSnapshot.startWriter(virtualThreads ? Thread.ofVirtual() : Thread.ofPlatform().daemon(),
+                        "router-" + routerId + "-state", stateFile, stateIntervalSeconds, this::snapshot, log);
+            }
+        }
+        for (int i = 1; i < shards.length; i++) {
+            Thread.Builder builder = virtualThreads ? Thread.ofVirtual() : Thread.ofPlatform();
+            builder.name("router-" + routerId + "-shard-" + i).start(shards[i]);
+        }
+        Thread.currentThread().setName("router-" + routerId + "-shard-0");
+        shards[0].run();
     }
 
-    private String extractSubnet(String virtualIP) {
-        int dotIndex = virtualIP.indexOf('.');
-        if (dotIndex > 0) {
-            return virtualIP.substring(0, dotIndex);
+    /**
+     * Adds up a per-shard counter for reporting. The counters are plain fields owned by the shard
+     * threads, so the total is approximate while the router is forwarding.
+     */
+    private long sumOverShards(ToLongFunction<Shard> counter) {
+        long total = 0;
+        for (Shard shard : shards) {
+            total += counter.applyAsLong(shard);
         }
-        return virtualIP;
+        return total;
     }
 
     private String extractHostId(String virtualIP) {
-        int dotIndex = virtualIP.indexOf('.');
+        int dotIndex = virtualIP.lastIndexOf('.');
         if (dotIndex > 0 && dotIndex < virtualIP.length() - 1) {
             return virtualIP.substring(dotIndex + 1);
         }
         return virtualIP;
     }
 
-    private PortInfo findPortByNeighborId(String neighborId) {
-        for (PortInfo port : virtualPorts.values()) {
-            if (port.neighborId != null && port.neighborId.equals(neighborId)) {
-                return port;
+    /**
+     * Copies the host part (last label) of the frame's destination IP into {@code dst}.
+     * @return the number of bytes copied
+     */
+    private static int copyHostId(FrameCodec.View view, byte[] dst) {
+        ByteBuffer buf = view.buffer();
+        int start = view.offset(FrameCodec.DEST_IP);
+        int end = start + view.length(FrameCodec.DEST_IP);
+        int hostStart = start;
+        for (int i = end - 2; i > start; i--) {
+            if (buf.get(i) == '.') {
+                hostStart = i + 1;
+                break;
             }
         }
-        return null;
+        buf.get(hostStart, dst, 0, end - hostStart);
+        return end - hostStart;
     }
 
-    private void forwardFrame(String frame, PortInfo port) {
-        try {
-            networkLayer.send(frame, port.ip, port.port);
-            System.out.println("[" + routerId + "] Successfully transmitted frame to " + port.ip + ":" + port.port);
-        } catch (IOException e) {
-            System.err.println("Error forwarding frame to " + port.ip + ":" + port.port +
-                    " - " + e.getMessage());
+    /**
+     * One receive socket with its own forwarding thread. Shards share the forwarding state, which
+     * is immutable and only ever replaced as a whole, and each sends from its own socket. With a
+     * forward queue the receiving thread only moves frames into the queue, and a second thread
+     * forwards them.
+     */
+    private class Shard implements Runnable {
+        private final NetworkLayer networkLayer;
+        // Null when frames are forwarded on the receiving thread
+        private final ForwardQueue queue;
+        private final FrameBatch rxBatch;
+        private final FrameBatch txBatch = new FrameBatch(BATCH_SIZE);
+        private final FrameCodec.View frameView = new FrameCodec.View();
+        private final byte[] hostIdScratch = new byte[FrameCodec.MAX_FIELD_LENGTH];
+        private final FlowCache<FlowEntry> flowCache;
+
+        Shard(NetworkLayer networkLayer) {
+            this.networkLayer = networkLayer;
+            this.rxBatch = networkLayer.newReceiveBatch(BATCH_SIZE);
+            this.flowCache = flowCacheSize > 0 ? new FlowCache<>(flowCacheSize) : null;
+            this.queue = ingressQueueSize > 0 ? new ForwardQueue(ingressQueueSize, dropPolicy, networkLayer, metrics) : null;
+        }
+
+        @Override
+        @SuppressWarnings("InfiniteLoopStatement")
+        public void run() {
+            if (queue != null) {
+                Thread.Builder builder = virtualThreads ? Thread.ofVirtual() : Thread.ofPlatform().daemon();
+                builder.name(Thread.currentThread().getName() + "-forward").start(this::forward);
+            }
+            long nextStats = System.nanoTime() + STATS_INTERVAL_NANOS;
+            while (true) {
+                try {
+                    int count = networkLayer.receiveBatch(rxBatch);
+                    if (queue != null) {
+                        for (int i = 0; i < count; i++) {
+                            queue.offer(rxBatch, i);
+                        }
+                    } else {
+                        for (int i = 0; i < count; i++) {
+                            long startNanos = System.nanoTime();
+                            handleFrame(rxBatch.frame(i), rxBatch.address(i));
+                            metrics.handleTime(System.nanoTime() - startNanos);
+                        }
+                        flush();
+                    }
+                } catch (IOException e) {
+                    log.error("Error receiving frame: {}", e.getMessage());
+                }
+
+                if (System.nanoTime() - nextStats >= 0) {
+                    log.info("{} batch stats: {}{}", Thread.currentThread().getName(), networkLayer.batchStats(),
+                            flowCache != null ? ", " + flowCache.stats() : "");
+                    nextStats = System.nanoTime() + STATS_INTERVAL_NANOS;
+                }
+            }
+        }
+
+        /**
+         * Forwards the frames of the forward queue, on a thread of its own.
+         */
+        private void forward() {
+            ForwardQueue.Slot[] taken = new ForwardQueue.Slot[BATCH_SIZE];
+            while (true) {
+                int n;
+                try {
+                    n = queue.take(taken);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < n; i++) {
+                    long startNanos = System.nanoTime();
+                    handleFrame(taken[i].frame, taken[i].sender);
+                    metrics.handleTime(System.nanoTime() - startNanos);
+                }
+                // Batched frames point into the slots' buffers, so flush before recycling them
+                flush();
+                queue.release(taken, n);
+            }
+        }
+
+        void handleFrame(ByteBuffer frame, InetSocketAddress sender) {
+            Forwarding state = forwarding;
+            PortInfo incomingPort = state.portsByAddress.get(sender);
+            (incomingPort == null ? unknownPort : incomingPort.counters).rx(frame.remaining());
+
+            if (!FrameCodec.parse(frame, frameView, state.frameFormat.acceptsLegacy())) {
+                log.debug("Invalid frame format from {}", sender);
+                metrics.drop(Metrics.Drop.INVALID_FRAME);
+                return;
+            }
+
+            log.debug("RECEIVED {} from {}", frameView, sender);
+
+            if (!frameView.fieldEquals(FrameCodec.DEST_MAC, routerMac)) {
+                log.debug("Frame not for me, dropping");
+                metrics.drop(Metrics.Drop.NOT_FOR_ME);
+                return;
+            }
+
+            if ((frameView.flags() & FrameCodec.FLAG_ROUTING) != 0) {
+                if (distanceVector != null) {
+                    distanceVector.receive(frameView.field(FrameCodec.SRC_MAC), frameView.field(FrameCodec.PAYLOAD));
+                }
+                return;
+            }
+
+            Fib<RoutingEntry> table = state.routingTable;
+            boolean cacheable = flowCache != null && !frameView.isLegacy();
+            if (cacheable) {
+                flowCache.validate(table);
+                FlowEntry flow = flowCache.lookup(frameView);
+                if (flow != null && FrameCodec.replaceHeader(frameView, flow.header)) {
+                    log.debug("Fast path to {}", flow.port);
+                    forwardFrame(frame, flow.port, frameView.priority());
+                    return;
+                }
+            }
+
+            RoutingEntry routingEntry = table.lookup(frameView.buffer(),
+                    frameView.offset(FrameCodec.DEST_IP), frameView.length(FrameCodec.DEST_IP));
+            if (routingEntry == null) {
+                log.debug("No route for frame, dropping");
+                metrics.drop(Metrics.Drop.NO_ROUTE);
+                return;
+            }
+
+            log.debug("Routing decision: matched {} -> {}", routingEntry.subnet, routingEntry.nextHopOrPort);
+
+            PortInfo outgoingPort = routingEntry.outPort;
+            if (outgoingPort == null) {
+                log.debug("Cannot find outgoing port for next hop {}", routingEntry.nextHopOrPort);
+                metrics.drop(Metrics.Drop.NO_ROUTE);
+                return;
+            }
+
+            byte[] newDestMac = routingEntry.nextHopMac;
+            int newDestMacLength;
+            if (newDestMac != null) {
+                newDestMacLength = newDestMac.length;
+            } else {
+                newDestMac = hostIdScratch;
+                newDestMacLength = copyHostId(frameView, hostIdScratch);
+            }
+
+            if (!FrameCodec.rewriteMacs(frameView, routerMac, newDestMac, newDestMacLength)) {
+                log.debug("Rewritten frame does not fit in buffer, dropping");
+                metrics.drop(Metrics.Drop.INVALID_FRAME);
+                return;
+            }
+
+            if (cacheable) {
+                flowCache.put(frameView, new FlowEntry(FrameCodec.copyHeader(frameView), outgoingPort));
+            }
+
+            log.debug("FORWARDING {} to {}", frameView, outgoingPort);
+
+            forwardFrame(frame, outgoingPort, frameView.priority());
+        }
+
+        private void forwardFrame(ByteBuffer frame, PortInfo port, int priority) {
+            if (port.queue != null) {
+                port.queue.offer(frame, priority);
+                return;
+            }
+            port.counters.tx(frame.remaining());
+            if (!txBatch.add(frame, port.address)) {
+                flush();
+                txBatch.add(frame, port.address);
+            }
+        }
+
+        void flush() {
+            if (txBatch.isEmpty()) return;
+            try {
+                networkLayer.sendBatch(txBatch);
+            } catch (NetworkLayer.BatchSendException e) {
+                metrics.drop(Metrics.Drop.SEND_FAILURE, e.failed());
+                log.error("Error forwarding frames - {}", e.getMessage());
+            }
         }
     }
 
@@ -194,11 +681,17 @@ public class Router {
         String ip;
         int port;
         String neighborId;
+        final InetSocketAddress address;
+        final Metrics.PortCounters counters;
+        // Null without output queues; set before the port is published
+        OutputQueue queue;
 
-        PortInfo(String ip, int port, String neighborId) {
+        PortInfo(String ip, int port, String neighborId, Metrics.PortCounters counters) {
             this.ip = ip;
             this.port = port;
             this.neighborId = neighborId;
+            this.address = new InetSocketAddress(ip, port);
+            this.counters = counters;
         }
 
         @Override
@@ -213,18 +706,33 @@ public class Router {
         public int hashCode() {
             return ip.hashCode() * 31 + port;
         }
+
+        @Override
+        public String toString() {
+            return ip + ":" + port;
+        }
     }
 
     private static class RoutingEntry {
-        String subnet;
-        String nextHopOrPort;
+        final String subnet;
+        final String nextHopOrPort;
+        // Resolved when the routing table is built
+        final PortInfo outPort;
+        final byte[] nextHopMac; // null when the destination is on a directly attached subnet
 
-        RoutingEntry(String subnet, String nextHopOrPort) {
+        RoutingEntry(String subnet, String nextHopOrPort, PortInfo outPort, byte[] nextHopMac) {
             this.subnet = subnet;
             this.nextHopOrPort = nextHopOrPort;
+            this.outPort = outPort;
+            this.nextHopMac = nextHopMac;
         }
     }
 
+    /**
+     * Cached result of forwarding one (srcIP, destIP) flow: the fully rewritten header and the port.
+     */
+    private record FlowEntry(byte[] header, PortInfo port) {}
+
     public static void main(String[] args) {
         if (args.length < 1) {
             System.out.println("Usage: java Router <routerID> [configFile]");
@@ -0,0 +1,130 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * The state a device has learned at run time, kept in a local file so that a restarted device
+ * does not start cold: a switch that forgot its MACs floods every frame until it has seen every
+ * host again.
+ * <p>
+ * The file is
+ * <pre>
+ *   magic(4) | written at, epoch ms(8) | MAC count(4) | MACs | route count(4) | routes
+ *   MAC:   idle seconds(4) | MAC | port
+ *   route: cost(1) | prefix | next hop
+ * </pre>
+ * with every string as {@link DataOutputStream#writeUTF} writes it, a 2-byte length and the
+ * bytes. Idle times are as of the time
+ * the snapshot was written, so the reader adds the snapshot's age to find how long ago a MAC was
+ * really seen.
+ *
+ * @param macs   MACs of a switch, with the name of their port
+ * @param routes dynamic routes of a router
+ */
+record StateSnapshot(long writtenMillis, List<Mac> macs, List<Route> routes) {
+    private static final int MAGIC = 0x53544131; // "STA1"
+
+    record Mac(String mac, String port, int idleSeconds) {}
+
+    record Route(String prefix, String nextHop, int cost) {}
+
+    /**
+     * @return how long ago the snapshot was written, never negative
+     */
+    long ageSeconds() {
+        return Math.max(0, TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - writtenMillis));
+    }
+
+    /**
+     * Writes the snapshot, replacing any previous one atomically, so a device that dies while
+     * writing leaves the last complete snapshot behind.
+     */
+    void write(Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeLong(writtenMillis);
+            out.writeInt(macs.size());
+            for (Mac mac : macs) {
+                out.writeInt(mac.idleSeconds);
+                out.writeUTF(mac.mac);
+                out.writeUTF(mac.port);
+            }
+            out.writeInt(routes.size());
+            for (Route route : routes) {
+                out.writeByte(route.cost);
+                out.writeUTF(route.prefix);
+                out.writeUTF(route.nextHop);
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the snapshot, or null if there is none
+     * @throws IOException if the file cannot be read or is not a snapshot
+     */
+    static StateSnapshot load(Path file) throws IOException {
+        if (!Files.exists(file)) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a state snapshot: " + file);
+            }
+            long writtenMillis = in.readLong();
+            int macCount = in.readInt();
+            List<Mac> macs = new ArrayList<>(Math.min(macCount, 1 << 16));
+            for (int i = 0; i < macCount; i++) {
+                int idleSeconds = in.readInt();
+                macs.add(new Mac(in.readUTF(), in.readUTF(), idleSeconds));
+            }
+            int routeCount = in.readInt();
+            List<Route> routes = new ArrayList<>(Math.min(routeCount, 1 << 16));
+            for (int i = 0; i < routeCount; i++) {
+                int cost = in.readUnsignedByte();
+                routes.add(new Route(in.readUTF(), in.readUTF(), cost));
+            }
+            return new StateSnapshot(writtenMillis, macs, routes);
+        }
+    }
+
+    /**
+     * Writes a snapshot of the device's state every {@code intervalSeconds} on a thread of its
+     * own, so taking and writing it never holds up forwarding, and once more when the JVM shuts
+     * down.
+     */
+    static void startWriter(Thread.Builder builder, String name, Path file, int intervalSeconds,
+                            Supplier<StateSnapshot> state, Log log) {
+        Runnable writer = new Runnable() {
+            @Override
+            public synchronized void run() {
+                StateSnapshot snapshot = state.get();
+                try {
+                    snapshot.write(file);
+                    log.debug("Wrote {} MAC(s) and {} route(s) to {}", snapshot.macs.size(), snapshot.routes.size(), file);
+                } catch (IOException e) {
+                    log.warn("Failed to write state snapshot {}: {}", file, e.getMessage());
+                }
+            }
+        };
+        builder.name(name).start(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(TimeUnit.SECONDS.toMillis(Math.max(1, intervalSeconds)));
+                    writer.run();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(new Thread(writer, name + "-final"));
+    }
+}
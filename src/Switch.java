@@ -1,132 +1,504 @@
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 public class Switch {
+    private static final int BATCH_SIZE = 32;
+    private static final int DEFAULT_WORKER_QUEUE_SIZE = 256;
+    private static final long STATS_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final long MAC_TICK_MILLIS = 1000;
+
     private final String switchId;
     private String myIp;
     private int myPort;
-    private final Map<String, PortInfo> virtualPorts;
-    private final Map<String, PortInfo> switchTable;
+    private int workerCount;
+    private int workerQueueSize;
+    private ForwardQueue.DropPolicy dropPolicy;
+    // The workers of worker mode, for reporting
+    private volatile Worker[] workers = new Worker[0];
+    private MacTable<PortInfo> switchTable;
+    // Replaced as a whole on reload; see Forwarding
+    private volatile Forwarding forwarding;
     private NetworkLayer networkLayer;
+    private boolean virtualThreads;
+    private FrameBatch rxBatch;
+    private MacTable.Backend macTableBackend;
+    private Path stateFile;
+    private int stateIntervalSeconds;
+    private final LongAdder reloads = new LongAdder();
+    private final Metrics metrics;
+    private final Metrics.PortCounters unknownPort;
+    private final FloodControl unknownFlood;
+    private final LongAdder floodCopies = new LongAdder();
+    private final LongAdder floodStorms = new LongAdder();
+    private final LongAdder restoredMacs = new LongAdder();
+    private final Log log;
 
     public Switch(String switchId) {
         this.switchId = switchId;
-        this.virtualPorts = new HashMap<>();
-        this.switchTable = new HashMap<>();
+        this.log = Log.get(switchId);
+        this.metrics = new Metrics(switchId);
+        this.unknownPort = metrics.port("unknown");
+        this.unknownFlood = new FloodControl("unknown", log, floodStorms);
     }
 
+    /**
+     * Everything the workers read, published with one volatile write. A worker reads the
+     * reference once per frame, so it never blocks on a reload and never sees a half-built
+     * port map.
+     *
+     * @param floodPorts the ports a frame from each port is flooded to, i.e. all the others
+     * @param allPorts   the ports a frame from an unknown sender is flooded to
+     */
+    private record Forwarding(Map<String, PortInfo> virtualPorts, Map<InetSocketAddress, PortInfo> portsByAddress,
+                              Map<PortInfo, PortInfo[]> floodPorts, PortInfo[] allPorts,
+                              FloodControl.Limits floodLimits, FrameCodec.Format frameFormat) {}
+
     private void loadConfig(Config config){
         this.myIp = config.getIp(switchId);
         this.myPort = config.getPort(switchId);
+        this.workerCount = config.getWorkers(switchId);
+        this.workerQueueSize = config.getIngressQueueSize(switchId);
+        this.dropPolicy = config.getDropPolicy(switchId);
+        loadTopology(config);
+    }
 
-        List<String> neighbors = config.getNeighbors(switchId);
-        for (String neighborId : neighbors) {
+    /**
+     * Builds the ports from the config and publishes them. Ports to neighbors that did not
+     * change are kept, with their counters and the MACs learned on them.
+     * @return the ports that were removed
+     */
+    private synchronized Set<PortInfo> loadTopology(Config config) {
+        Map<String, PortInfo> previous = forwarding == null ? Map.of() : forwarding.virtualPorts;
+        Map<String, PortInfo> ports = new HashMap<>();
+        Map<InetSocketAddress, PortInfo> portsByAddress = new HashMap<>();
+        for (String neighborId : config.getNeighbors(switchId)) {
             String neighborIp = config.getIp(neighborId);
             int neighborPort = config.getPort(neighborId);
             String portName = neighborIp + ":" + neighborPort;
-            virtualPorts.put(portName, new PortInfo(neighborIp, neighborPort));
+            PortInfo port = previous.get(portName);
+            if (port == null) {
+                port = new PortInfo(neighborIp, neighborPort, metrics.port(portName), new FloodControl(portName, log, floodStorms));
+            }
+            ports.put(portName, port);
+            portsByAddress.put(port.address, port);
+        }
+        PortInfo[] allPorts = ports.values().toArray(new PortInfo[0]);
+        Map<PortInfo, PortInfo[]> floodPorts = new IdentityHashMap<>();
+        for (PortInfo ingress : allPorts) {
+            floodPorts.put(ingress, Arrays.stream(allPorts).filter(port -> port != ingress).toArray(PortInfo[]::new));
+        }
+        forwarding = new Forwarding(Map.copyOf(ports), portsByAddress, floodPorts, allPorts,
+                config.getFloodLimits(switchId), config.getFrameFormat(switchId));
+
+        Set<PortInfo> removed = Collections.newSetFromMap(new IdentityHashMap<>());
+        removed.addAll(previous.values());
+        removed.removeAll(ports.values());
+        return removed;
+    }
+
+    /**
+     * Applies a changed config while the switch keeps forwarding. MACs learned on ports that
+     * still exist are kept, so traffic to them is not flooded again; MACs on removed ports are
+     * forgotten. The address and worker count need a new socket and only change on restart.
+     */
+    public void reload(Config config) {
+        if (!config.hasDevice(switchId)) {
+            log.warn("Reloaded config has no device {}, keeping the current one", switchId);
+            return;
+        }
+        if (config.getPort(switchId) != myPort || config.getWorkers(switchId) != workerCount
+                || config.getIngressQueueSize(switchId) != workerQueueSize || config.getDropPolicy(switchId) != dropPolicy) {
+            log.warn("Address, worker and queue changes of {} take effect on restart", switchId);
         }
+        if (config.getMacTableCapacity(switchId) != switchTable.capacity()
+                || config.getMacAgingSeconds(switchId) != switchTable.agingSeconds()
+                || config.getMacTableBackend(switchId) != macTableBackend) {
+            log.warn("MAC table changes of {} take effect on restart", switchId);
+        }
+        Set<PortInfo> removed = loadTopology(config);
+        int forgotten = removed.isEmpty() ? 0 : switchTable.removeIf(removed::contains);
+        reloads.increment();
+        log.info("Reloaded config: {} virtual port(s), {} removed, {} MAC(s) forgotten",
+                forwarding.virtualPorts.size(), removed.size(), forgotten);
     }
 
     public void initialize(String configFile) throws IOException {
         Config config = new Config(configFile);
+        Log.configure(config.getLogLevel(switchId), config.getLogFile(switchId));
+        initialize(config, null);
+    }
+
+    /**
+     * Sets the switch up from a loaded config. With a fabric the switch runs inside a
+     * {@link TopologyRunner}: it reaches other local devices through memory and uses virtual threads.
+     */
+    void initialize(Config config, LocalFabric fabric) throws IOException {
         loadConfig(config);
+        macTableBackend = config.getMacTableBackend(switchId);
+        switchTable = MacTable.create(macTableBackend, config.getMacTableCapacity(switchId),
+                config.getMacAgingSeconds(switchId));
+        stateFile = config.getStateFile(switchId);
+        stateIntervalSeconds = config.getStateIntervalSeconds(switchId);
+        if (stateFile != null) {
+            restoreMacTable();
+        }
+
+        this.networkLayer = fabric == null
+                ? new NetworkLayer(myPort, false, config.getFrameSize(switchId)) : fabric.open(switchId, false);
+        this.virtualThreads = fabric != null;
+        networkLayer.setLossRate(config.getLossRate(switchId));
+        networkLayer.setSocketBuffers(config.getReceiveBuffer(switchId), config.getSendBuffer(switchId));
+        this.rxBatch = networkLayer.newReceiveBatch(BATCH_SIZE);
 
-        this.networkLayer = new NetworkLayer(myPort);
+        metrics.gauge("mac_table_size", switchTable::size);
+        metrics.gauge("mac_learned", switchTable::learned);
+        metrics.gauge("mac_learn_rate", switchTable::learnRate);
+        metrics.gauge("mac_moves", switchTable::moves);
+        metrics.gauge("mac_evictions", switchTable::evictions);
+        metrics.gauge("mac_expirations", switchTable::expirations);
+        metrics.gauge("mac_restored", restoredMacs::sum);
+        metrics.gauge("rx_batches", networkLayer::batchCount);
+        metrics.gauge("rx_batched_frames", networkLayer::batchedFrames);
+        metrics.gauge("rx_max_batch", networkLayer::maxBatch);
+        metrics.gauge("rx_oversized_frames", networkLayer::oversizedFrames);
+        metrics.gauge("injected_losses", networkLayer::injectedLosses);
+        metrics.gauge("kernel_rx_drops", networkLayer::kernelDrops);
+        metrics.gauge("inbox_drops", networkLayer::inboxDrops);
+        metrics.gauge("forward_queue_depth", () -> Arrays.stream(workers).mapToLong(worker -> worker.queue.depth()).sum());
+        metrics.gauge("log_dropped_messages", Log::droppedMessages);
+        metrics.gauge("config_reloads", reloads::sum);
+        metrics.gauge("flood_copies", floodCopies::sum);
+        metrics.gauge("flood_storms", floodStorms::sum);
+        metrics.gauge("flood_suppressed_ports", () -> (unknownFlood.isSuppressed() ? 1 : 0)
+                + Arrays.stream(forwarding.allPorts).filter(port -> port.flood.isSuppressed()).count());
+        metrics.command("reload", () -> {
+            reload(config.reload());
+            return "Reloaded " + config.getPath();
+        });
+        config.startMetrics(switchId, metrics);
+        if (config.isWatchConfig(switchId)) {
+            ConfigWatcher.watch(config.getPath(), this::reload);
+        }
 
-        System.out.println("Switch " + switchId + " initialized on " + myIp + ":" + myPort);
-        System.out.println("Virtual ports created for neighbors: " + virtualPorts.keySet());
+        log.info("Switch {} initialized on {}:{}", switchId, myIp, myPort);
+        log.info("Virtual ports created for neighbors: {}", forwarding.virtualPorts.keySet());
+        if (config.getReceiveBuffer(switchId) > 0 || config.getSendBuffer(switchId) > 0) {
+            log.info("Socket buffers: {}", networkLayer.socketBuffers());
+        }
+        log.info("MAC table: {} backend, {} entries, aging {}", macTableBackend, switchTable.capacity(),
+                switchTable.agingSeconds() > 0 ? switchTable.agingSeconds() + " s" : "off");
+        FloodControl.Limits limits = forwarding.floodLimits;
+        if (limits.ratePerSecond() > 0 || limits.stormThreshold() > 0) {
+            log.info("Flood control per port: rate limit {}/s (burst {}), storm threshold {}/s",
+                    limits.ratePerSecond(), limits.burst(), limits.stormThreshold());
+        }
     }
 
-    @SuppressWarnings("InfiniteLoopStatement")
     public void start() {
-        System.out.println("Switch " + switchId + " is running");
+        log.info("Switch {} is running with {} worker(s)", switchId, workerCount);
+        Thread.Builder builder = virtualThreads ? Thread.ofVirtual() : Thread.ofPlatform().daemon();
+        builder.name("switch-" + switchId + "-mac-aging").start(this::tickMacTable);
+        if (stateFile != null) {
+            StateSnapshot.startWriter(virtualThreads ? Thread.ofVirtual() : Thread.ofPlatform().daemon(),
+                    "switch-" + switchId + "-state", stateFile, stateIntervalSeconds, this::snapshot, log);
+        }
 
+        if (workerCount <= 1 && workerQueueSize == 0) {
+            runInline();
+        } else {
+            runWorkers();
+        }
+    }
+
+    /**
+     * Single-threaded mode: frames are forwarded on the receiving thread.
+     */
+    @SuppressWarnings("InfiniteLoopStatement")
+    private void runInline() {
+        Worker worker = new Worker(null);
+        long nextStats = System.nanoTime() + STATS_INTERVAL_NANOS;
         while (true) {
             try {
-                NetworkLayer.Data data = networkLayer.receive();
-                handleFrame(data);
+                int count = networkLayer.receiveBatch(rxBatch);
+                for (int i = 0; i < count; i++) {
+                    long startNanos = System.nanoTime();
+                    worker.handleFrame(rxBatch.frame(i), rxBatch.address(i));
+                    metrics.handleTime(System.nanoTime() - startNanos);
+                }
+                worker.flush();
             } catch (IOException e) {
-                System.err.println("Error receiving frame: " + e.getMessage());
+                log.error("Error receiving frame: {}", e.getMessage());
             }
+            nextStats = maybePrintStats(nextStats);
         }
     }
 
-    private void handleFrame(NetworkLayer.Data data) {
-        String frame = data.frame();
-        String senderIp = data.srcIp();
-        int senderPort = data.srcPort();
-        String[] parts = frame.split(":", 3);
-        if (parts.length < 3) {
-            System.err.println("Invalid frame format: " + frame);
-            return;
+    /**
+     * Worker mode: this thread only receives and hands each frame to the worker that owns its
+     * (srcMAC, destMAC) flow, so frames of one flow stay in order while flows spread over cores.
+     * Each worker's queue drops frames by the drop policy when the worker falls behind. Also
+     * used with a single worker when an ingress queue is configured.
+     */
+    @SuppressWarnings("InfiniteLoopStatement")
+    private void runWorkers() {
+        int queueSize = workerQueueSize > 0 ? workerQueueSize : DEFAULT_WORKER_QUEUE_SIZE;
+        Worker[] workers = new Worker[Math.max(1, workerCount)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(new ForwardQueue(queueSize, dropPolicy, networkLayer, metrics));
+            Thread.Builder builder = virtualThreads ? Thread.ofVirtual() : Thread.ofPlatform().daemon();
+            builder.name("switch-" + switchId + "-worker-" + i).start(workers[i]);
         }
-        String srcMAC = parts[0];
-        String destMAC = parts[1];
-
-        System.out.println("[" + switchId + "] Recieve: " + frame +
-                " from " + senderIp + ":" + senderPort);
 
-        PortInfo incomingPort = new PortInfo(senderIp, senderPort);
-        boolean isNewEntry = !switchTable.containsKey(srcMAC);
-        switchTable.put(srcMAC, incomingPort);
+        this.workers = workers;
 
-        if (isNewEntry) {
-            System.out.println("[" + switchId + "] Learned: " + srcMAC + " -> " + senderIp + ":" + senderPort);
-            printSwitchTable();
+        FrameCodec.View view = new FrameCodec.View();
+        long nextStats = System.nanoTime() + STATS_INTERVAL_NANOS;
+        while (true) {
+            try {
+                int count = networkLayer.receiveBatch(rxBatch);
+                for (int i = 0; i < count; i++) {
+                    // Unparseable frames all go to worker 0, which reports them
+                    int shard = FrameCodec.parse(rxBatch.frame(i), view, forwarding.frameFormat.acceptsLegacy())
+                            ? flowShard(view, workers.length) : 0;
+                    workers[shard].queue.offer(rxBatch, i);
+                }
+            } catch (IOException e) {
+                log.error("Error receiving frame: {}", e.getMessage());
+            }
+            nextStats = maybePrintStats(nextStats);
         }
+    }
 
-        if (switchTable.containsKey(destMAC)) {
-            PortInfo destPort = switchTable.get(destMAC);
-            System.out.println("[" + switchId + "] Forwarding: Dest " + destMAC + " is known");
-            forwardFrame(frame, destPort);
-        } else {
-            System.out.println("[" + switchId + "] Flooding: Dest " + destMAC + " is unknown");
-            flood(frame, incomingPort);
+    /**
+     * Drives the MAC table's clock, which ages out MACs and updates the learn rate.
+     */
+    private void tickMacTable() {
+        try {
+            while (true) {
+                Thread.sleep(MAC_TICK_MILLIS);
+                switchTable.tick(System.nanoTime());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
-    private void forwardFrame(String frame, PortInfo port) {
+    /**
+     * Learns the MACs of the state snapshot, so the switch forwards to known hosts right away
+     * instead of flooding until it has seen them again. MACs that would have aged out by now and
+     * MACs on ports the switch no longer has are dropped.
+     */
+    private void restoreMacTable() {
+        StateSnapshot snapshot;
         try {
-            networkLayer.send(frame, port.ip, port.port);
-            System.out.println("[" + switchId + "] Transmit: Frame sent to " + port.ip + ":" + port.port);
+            snapshot = StateSnapshot.load(stateFile);
         } catch (IOException e) {
-            System.err.println("Error forwarding frame to " + port.ip + ":" + port.port +
-                    " - " + e.getMessage());
+            log.warn("Ignoring state snapshot: {}", e.getMessage());
+            return;
         }
+        if (snapshot == null) return;
+        long age = snapshot.ageSeconds();
+        int aging = switchTable.agingSeconds();
+        Map<String, PortInfo> ports = forwarding.virtualPorts;
+        int dropped = 0;
+        // Most recently seen first, in case the table is now smaller than the snapshot
+        List<StateSnapshot.Mac> macs = new ArrayList<>(snapshot.macs());
+        macs.sort(Comparator.comparingInt(StateSnapshot.Mac::idleSeconds));
+        for (StateSnapshot.Mac entry : macs) {
+            long idle = entry.idleSeconds() + age;
+            PortInfo port = ports.get(entry.port());
+            if (port == null || (aging > 0 && idle > aging)
+                    || !switchTable.restore(MacKey.of(entry.mac()), port, (int) Math.min(idle, Integer.MAX_VALUE))) {
+                dropped++;
+                continue;
+            }
+            restoredMacs.increment();
+        }
+        log.info("Restored {} MAC(s) from a snapshot written {} s ago, dropped {} stale", restoredMacs.sum(), age, dropped);
     }
 
-    private void flood(String frame, PortInfo incomingPort) {
-        for (PortInfo port : virtualPorts.values()) {
-            if (!port.equals(incomingPort)) {
+    private StateSnapshot snapshot() {
+        int aging = switchTable.agingSeconds();
+        List<StateSnapshot.Mac> macs = new ArrayList<>(switchTable.size());
+        switchTable.forEachEntry((mac, port, idleSeconds) -> {
+            if (aging == 0 || idleSeconds <= aging) {
+                macs.add(new StateSnapshot.Mac(mac.toString(), port.toString(), idleSeconds));
+            }
+        });
+        return new StateSnapshot(System.currentTimeMillis(), macs, List.of());
+    }
+
+    private static int flowShard(FrameCodec.View view, int shards) {
+        int h = view.fieldHash(FrameCodec.SRC_MAC) * 31 + view.fieldHash(FrameCodec.DEST_MAC);
+        h ^= (h >>> 16);
+        return Math.floorMod(h, shards);
+    }
+
+    private long maybePrintStats(long nextStats) {
+        if (System.nanoTime() - nextStats < 0) return nextStats;
+        log.info("Batch stats: {} workerQueueDrops={} earlyDrops={}", networkLayer.batchStats(),
+                metrics.dropped(Metrics.Drop.QUEUE_FULL), metrics.dropped(Metrics.Drop.EARLY_DROP));
+        return System.nanoTime() + STATS_INTERVAL_NANOS;
+    }
+
+    /**
+     * Forwarding state owned by one thread, fed by its queue in worker mode.
+     */
+    private class Worker implements Runnable {
+        private final FrameCodec.View frameView = new FrameCodec.View();
+        private final FrameBatch txBatch = new FrameBatch(BATCH_SIZE);
+        private final MacKey srcKey = new MacKey();
+        private final MacKey destKey = new MacKey();
+        // Null when frames are forwarded on the receiving thread
+        final ForwardQueue queue;
+
+        Worker(ForwardQueue queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        @SuppressWarnings("InfiniteLoopStatement")
+        public void run() {
+            ForwardQueue.Slot[] taken = new ForwardQueue.Slot[BATCH_SIZE];
+            while (true) {
+                int n;
+                try {
+                    n = queue.take(taken);
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                for (int i = 0; i < n; i++) {
+                    long startNanos = System.nanoTime();
+                    handleFrame(taken[i].frame, taken[i].sender);
+                    metrics.handleTime(System.nanoTime() - startNanos);
+                }
+                // Queued frames point into the slots' buffers, so flush before recycling them
+                flush();
+                queue.release(taken, n);
+            }
+        }
+
+        void handleFrame(ByteBuffer frame, InetSocketAddress sender) {
+            Forwarding state = forwarding;
+            PortInfo incomingPort = state.portsByAddress.get(sender);
+            (incomingPort == null ? unknownPort : incomingPort.counters).rx(frame.remaining());
+
+            if (!FrameCodec.parse(frame, frameView, state.frameFormat.acceptsLegacy())) {
+                log.debug("Invalid frame format from {}", sender);
+                metrics.drop(Metrics.Drop.INVALID_FRAME);
+                return;
+            }
+            srcKey.set(frameView, FrameCodec.SRC_MAC);
+            destKey.set(frameView, FrameCodec.DEST_MAC);
+
+            log.debug("Recieve: {} from {}", frameView, sender);
+
+            // Frames from senders that are not configured neighbors are counted on the unknown
+            // port and forwarded, but not learned from: every such sender would take a port of
+            // the MAC table for good, so a flood of them could fill it
+            boolean isNewEntry = incomingPort != null && switchTable.learn(srcKey, incomingPort);
+
+            if (isNewEntry) {
+                log.debug("Learned: {} -> {}", srcKey, incomingPort);
+                if (Log.isEnabled(Log.Level.DEBUG)) {
+                    printSwitchTable();
+                }
+            }
+
+            PortInfo destPort = switchTable.lookup(destKey);
+            if (destPort != null) {
+                log.debug("Forwarding: Dest {} is known, to {}", destKey, destPort);
+                metrics.unicast();
+                forwardFrame(frame, destPort);
+            } else {
+                log.debug("Flooding: Dest {} is unknown", destKey);
+                flood(frame, incomingPort, state);
+            }
+        }
+
+        private void forwardFrame(ByteBuffer frame, PortInfo port) {
+            port.counters.tx(frame.remaining());
+            if (!txBatch.add(frame, port.address)) {
+                flush();
+                txBatch.add(frame, port.address);
+            }
+        }
+
+        void flush() {
+            if (txBatch.isEmpty()) return;
+            try {
+                networkLayer.sendBatch(txBatch);
+            } catch (NetworkLayer.BatchSendException e) {
+                metrics.drop(Metrics.Drop.SEND_FAILURE, e.failed());
+                log.error("Error forwarding frames - {}", e.getMessage());
+            }
+        }
+
+        /**
+         * Queues the received frame itself to every other port, unless flood control holds it back.
+         */
+        /**
+         * @param incomingPort the port the frame came in on, or null if it is not a configured one
+         */
+        private void flood(ByteBuffer frame, PortInfo incomingPort, Forwarding state) {
+            FloodControl control = incomingPort == null ? unknownFlood : incomingPort.flood;
+            FloodControl.Verdict verdict = control.admit(state.floodLimits, System.nanoTime());
+            if (verdict != FloodControl.Verdict.FLOOD) {
+                metrics.drop(verdict == FloodControl.Verdict.RATE_LIMITED
+                        ? Metrics.Drop.FLOOD_RATE_LIMITED : Metrics.Drop.STORM_SUPPRESSED);
+                return;
+            }
+            metrics.flooded();
+            PortInfo[] fanOut = incomingPort == null ? null : state.floodPorts.get(incomingPort);
+            if (fanOut == null) {
+                fanOut = state.allPorts;
+            }
+            for (PortInfo port : fanOut) {
                 forwardFrame(frame, port);
             }
+            floodCopies.add(fanOut.length);
         }
     }
 
     private void printSwitchTable() {
-        System.out.println("\n+-------------------------------------------+");
-        System.out.println("| Switch Table for " + String.format("%-25s", switchId) + "|");
-        System.out.println("+----------------------+--------------------+");
-        System.out.println("| MAC Address          | Virtual Port (IP)  |");
-        System.out.println("+----------------------+--------------------+");
-        for (Map.Entry<String, PortInfo> entry : switchTable.entrySet()) {
-            System.out.printf("| %-20s | %-18s |%n",
-                    entry.getKey(),
-                    entry.getValue().ip + ":" + entry.getValue().port);
-        }
-        System.out.println("+----------------------+--------------------+\n");
+        StringBuilder sb = new StringBuilder("\n+-------------------------------------------+\n");
+        sb.append("| Switch Table for ").append(String.format("%-25s", switchId)).append("|\n");
+        sb.append("+----------------------+--------------------+\n");
+        sb.append("| MAC Address          | Virtual Port (IP)  |\n");
+        sb.append("+----------------------+--------------------+\n");
+        switchTable.forEach((mac, port) ->
+                sb.append(String.format("| %-20s | %-18s |%n", mac, port)));
+        sb.append("+----------------------+--------------------+\n");
+        log.debug("{}", sb);
     }
 
     private static class PortInfo {
         String ip;
         int port;
+        final InetSocketAddress address;
+        final Metrics.PortCounters counters;
+        final FloodControl flood;
 
-        PortInfo(String ip, int port) {
+        PortInfo(String ip, int port, Metrics.PortCounters counters, FloodControl flood) {
             this.ip = ip;
             this.port = port;
+            this.address = new InetSocketAddress(ip, port);
+            this.counters = counters;
+            this.flood = flood;
         }
 
         @Override
@@ -141,6 +513,11 @@ public class Switch {
         public int hashCode() {
             return ip.hashCode() * 31 + port;
         }
+
+        @Override
+        public String toString() {
+            return ip + ":" + port;
+        }
     }
 
     public static void main(String[] args) {
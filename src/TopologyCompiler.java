@@ -0,0 +1,472 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * Computes the routing table of every router from the devices and links of a config, for
+ * static deployments that want no routing protocol at all.
+ * <p>
+ * A subnet is the part of a virtual IP before its last label. A router is attached to the
+ * subnets of its own virtual IPs and of the hosts it reaches through neighbor switches, and
+ * delivers to them through the neighbor that leads to those hosts. Routers linked to each
+ * other form the routing graph; a shortest-path search from every router (hop count, ties
+ * broken by router id) gives the next hop toward every other router, and each subnet is
+ * routed toward the nearest router attached to it. Next hops are written the way a
+ * hand-written routing table names them: the neighbor router's virtual IP, preferring one on
+ * a subnet both routers share.
+ * <p>
+ * The result can be written as a precompiled FIB file:
+ * <pre>
+ * int magic "FIB1", long topology fingerprint
+ * int subnetCount, subnetCount x string
+ * int routerCount, routerCount x (string routerId, int sectionOffset)
+ * per router: short nextHopCount, nextHopCount x string, subnetCount x varint
+ * </pre>
+ * where strings are an unsigned short length followed by UTF-8 bytes, section offsets count
+ * from the first section, and the varint of a subnet is 0 when the router has no route to it
+ * or the index of its next hop plus one. A router reads only the header and its own section.
+ * <p>
+ * Usage: {@code java TopologyCompiler [configFile] [fibFile]}
+ */
+public class TopologyCompiler {
+    private static final int MAGIC = 0x46494231; // "FIB1"
+
+    private static final Log log = Log.get("compiler");
+
+    /**
+     * The compiled routes of every router.
+     */
+    public static final class Result {
+        private final String[] subnets;
+        private final Map<String, Integer> routerIndex;
+        private final String[][] nextHops;
+        // routes[router][subnet]: 0 for no route, otherwise index into nextHops[router] plus one
+        private final int[][] routes;
+        private final long fingerprint;
+
+        private Result(String[] subnets, Map<String, Integer> routerIndex, String[][] nextHops, int[][] routes,
+                       long fingerprint) {
+            this.subnets = subnets;
+            this.routerIndex = routerIndex;
+            this.nextHops = nextHops;
+            this.routes = routes;
+            this.fingerprint = fingerprint;
+        }
+
+        /**
+         * @return the routes of the router, or null if it is not a router of this topology
+         */
+        public List<Config.RoutingTableEntry> routes(String routerId) {
+            Integer r = routerIndex.get(routerId);
+            if (r == null) return null;
+            List<Config.RoutingTableEntry> entries = new ArrayList<>();
+            for (int s = 0; s < subnets.length; s++) {
+                int choice = routes[r][s];
+                if (choice > 0) {
+                    entries.add(new Config.RoutingTableEntry(subnets[s], nextHops[r][choice - 1]));
+                }
+            }
+            return entries;
+        }
+
+        public int routerCount() {
+            return routes.length;
+        }
+
+        public int subnetCount() {
+            return subnets.length;
+        }
+
+        public long routeCount() {
+            long count = 0;
+            for (int[] table : routes) {
+                for (int choice : table) {
+                    if (choice > 0) count++;
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Writes the precompiled FIB file, replacing it atomically.
+         */
+        public void write(Path file) throws IOException {
+            ByteArrayOutputStream sections = new ByteArrayOutputStream();
+            DataOutputStream sectionOut = new DataOutputStream(sections);
+            int[] offsets = new int[routes.length];
+            for (int r = 0; r < routes.length; r++) {
+                offsets[r] = sectionOut.size();
+                sectionOut.writeShort(nextHops[r].length);
+                for (String nextHop : nextHops[r]) {
+                    writeString(sectionOut, nextHop);
+                }
+                byte[] table = new byte[routes[r].length * 5];
+                int length = 0;
+                for (int choice : routes[r]) {
+                    length = putVarint(table, length, choice);
+                }
+                sectionOut.write(table, 0, length);
+            }
+
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (OutputStream os = Files.newOutputStream(tmp);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os, 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeLong(fingerprint);
+                out.writeInt(subnets.length);
+                for (String subnet : subnets) {
+                    writeString(out, subnet);
+                }
+                String[] routerIds = new String[routes.length];
+                routerIndex.forEach((id, r) -> routerIds[r] = id);
+                out.writeInt(routerIds.length);
+                for (int r = 0; r < routerIds.length; r++) {
+                    writeString(out, routerIds[r]);
+                    out.writeInt(offsets[r]);
+                }
+                sections.writeTo(out);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * Computes the routes of every router in the config.
+     */
+    public static Result compile(Config config) {
+        long start = System.nanoTime();
+
+        // Routers sorted by id for deterministic tie-breaking
+        List<String> routerIds = new ArrayList<>();
+        for (String id : config.deviceIds()) {
+            if ("router".equals(config.getType(id))) routerIds.add(id);
+        }
+        routerIds.sort(null);
+        Map<String, Integer> routerIndex = new HashMap<>();
+        for (int r = 0; r < routerIds.size(); r++) {
+            routerIndex.put(routerIds.get(r), r);
+        }
+
+        // Attached subnets of every router, with the neighbor that delivers to each
+        Map<String, Integer> subnetIndex = new HashMap<>();
+        List<String> subnets = new ArrayList<>();
+        List<Map<Integer, String>> attached = new ArrayList<>();
+        List<List<Integer>> attachedRouters = new ArrayList<>();
+        for (String routerId : routerIds) {
+            Map<Integer, String> exits = new LinkedHashMap<>();
+            findAttachedSubnets(config, routerId).forEach((subnet, exit) -> {
+                Integer s = subnetIndex.get(subnet);
+                if (s == null) {
+                    s = subnets.size();
+                    subnetIndex.put(subnet, s);
+                    subnets.add(subnet);
+                    attachedRouters.add(new ArrayList<>());
+                }
+                exits.put(s, exit);
+                attachedRouters.get(s).add(routerIndex.get(routerId));
+            });
+            attached.add(exits);
+        }
+
+        // Router adjacency, with the next hop string each router uses for each neighbor
+        int routerCount = routerIds.size();
+        int[][] adjacency = new int[routerCount][];
+        String[][] adjacencyNames = new String[routerCount][];
+        for (int r = 0; r < routerCount; r++) {
+            String routerId = routerIds.get(r);
+            List<Integer> neighbors = new ArrayList<>();
+            List<String> names = new ArrayList<>();
+            for (String neighborId : new TreeSet<>(config.getNeighbors(routerId))) {
+                Integer n = routerIndex.get(neighborId);
+                if (n == null) continue;
+                String nextHop = neighborAddress(config, routerId, neighborId);
+                if (nextHop == null) continue;
+                neighbors.add(n);
+                names.add(nextHop);
+            }
+            adjacency[r] = neighbors.stream().mapToInt(Integer::intValue).toArray();
+            adjacencyNames[r] = names.toArray(new String[0]);
+        }
+        long graphBuilt = System.nanoTime();
+
+        int subnetCount = subnets.size();
+        int[][] attachedTo = new int[subnetCount][];
+        for (int s = 0; s < subnetCount; s++) {
+            attachedTo[s] = attachedRouters.get(s).stream().mapToInt(Integer::intValue).toArray();
+        }
+        String[][] nextHops = new String[routerCount][];
+        int[][] routes = new int[routerCount][];
+        IntStream.range(0, routerCount).parallel().forEach(r -> {
+            // Breadth-first search from r: distance to and first hop toward every router
+            int[] dist = new int[routerCount];
+            int[] firstHop = new int[routerCount];
+            Arrays.fill(dist, -1);
+            dist[r] = 0;
+            int[] queue = new int[routerCount];
+            int head = 0, tail = 0;
+            for (int i = 0; i < adjacency[r].length; i++) {
+                int n = adjacency[r][i];
+                if (dist[n] >= 0) continue;
+                dist[n] = 1;
+                firstHop[n] = i;
+                queue[tail++] = n;
+            }
+            while (head < tail) {
+                int u = queue[head++];
+                for (int v : adjacency[u]) {
+                    if (dist[v] >= 0) continue;
+                    dist[v] = dist[u] + 1;
+                    firstHop[v] = firstHop[u];
+                    queue[tail++] = v;
+                }
+            }
+
+            // Next hops are the neighbor routers in adjacency order, then the attached exits
+            List<String> names = new ArrayList<>(List.of(adjacencyNames[r]));
+            int[] table = new int[subnetCount];
+            attached.get(r).forEach((s, exit) -> {
+                int index = names.indexOf(exit);
+                if (index < 0) {
+                    index = names.size();
+                    names.add(exit);
+                }
+                table[s] = index + 1;
+            });
+            for (int s = 0; s < subnetCount; s++) {
+                if (table[s] != 0) continue;
+                int best = -1;
+                for (int t : attachedTo[s]) {
+                    if (dist[t] > 0 && (best < 0 || dist[t] < dist[best])) best = t;
+                }
+                if (best >= 0) {
+                    table[s] = firstHop[best] + 1;
+                }
+            }
+            nextHops[r] = names.toArray(new String[0]);
+            routes[r] = table;
+        });
+        long done = System.nanoTime();
+
+        log.info("{}", String.format("Compiled routes for %d router(s) and %d subnet(s) in %.1f ms " +
+                        "(graph %.1f ms, shortest paths %.1f ms)", routerCount, subnetCount,
+                (done - start) / 1e6, (graphBuilt - start) / 1e6, (done - graphBuilt) / 1e6));
+        return new Result(subnets.toArray(new String[0]), routerIndex, nextHops, routes, fingerprint(config));
+    }
+
+    /**
+     * Reads the routes of one router from a precompiled FIB file.
+     * @return the routes, or null if the file has no section for the router
+     * @throws IOException if the file cannot be read or was compiled from a different topology
+     */
+    public static List<Config.RoutingTableEntry> load(Path file, String routerId, Config config) throws IOException {
+        ByteBuffer buf;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        try {
+            if (buf.getInt() != MAGIC) {
+                throw new IOException(file + " is not a FIB file");
+            }
+            if (buf.getLong() != fingerprint(config)) {
+                throw new IOException(file + " was compiled from a different topology");
+            }
+            String[] subnets = new String[buf.getInt()];
+            for (int s = 0; s < subnets.length; s++) {
+                subnets[s] = readString(buf);
+            }
+            int routerCount = buf.getInt();
+            int sectionOffset = -1;
+            for (int r = 0; r < routerCount; r++) {
+                String id = readString(buf);
+                int offset = buf.getInt();
+                if (id.equals(routerId)) sectionOffset = offset;
+            }
+            if (sectionOffset < 0) return null;
+
+            buf.position(buf.position() + sectionOffset);
+            String[] nextHops = new String[buf.getShort() & 0xFFFF];
+            for (int i = 0; i < nextHops.length; i++) {
+                nextHops[i] = readString(buf);
+            }
+            List<Config.RoutingTableEntry> entries = new ArrayList<>();
+            for (String subnet : subnets) {
+                int choice = readVarint(buf);
+                if (choice > 0) {
+                    entries.add(new Config.RoutingTableEntry(subnet, nextHops[choice - 1]));
+                }
+            }
+            return entries;
+        } catch (RuntimeException e) {
+            // BufferUnderflowException or a bad index from a truncated or corrupt file
+            throw new IOException(file + " is corrupt: " + e, e);
+        }
+    }
+
+    /**
+     * @return the subnets this router delivers to directly, mapped to the neighbor to deliver through
+     */
+    private static Map<String, String> findAttachedSubnets(Config config, String routerId) {
+        Map<String, String> attached = new LinkedHashMap<>();
+        for (String neighborId : new TreeSet<>(config.getNeighbors(routerId))) {
+            String type = config.getType(neighborId);
+            if ("host".equals(type)) {
+                addSubnetOf(attached, config.getVirtualIp(neighborId), neighborId);
+            } else if ("switch".equals(type)) {
+                // Every host on the switch, or on switches behind it
+                Set<String> seen = new HashSet<>(List.of(neighborId));
+                ArrayDeque<String> pending = new ArrayDeque<>(seen);
+                while (!pending.isEmpty()) {
+                    for (String deviceId : config.getNeighbors(pending.poll())) {
+                        String deviceType = config.getType(deviceId);
+                        if ("host".equals(deviceType)) {
+                            addSubnetOf(attached, config.getVirtualIp(deviceId), neighborId);
+                        } else if ("switch".equals(deviceType) && seen.add(deviceId)) {
+                            pending.add(deviceId);
+                        }
+                    }
+                }
+            }
+        }
+        // Subnets of the router's own addresses that only lead to another router
+        for (String virtualIp : config.getVirtualIps(routerId)) {
+            String subnet = subnetOf(virtualIp);
+            if (subnet == null || attached.containsKey(subnet)) continue;
+            for (String neighborId : new TreeSet<>(config.getNeighbors(routerId))) {
+                if (hasAddressIn(config, neighborId, subnet)) {
+                    attached.put(subnet, neighborId);
+                    break;
+                }
+            }
+        }
+        return attached;
+    }
+
+    private static void addSubnetOf(Map<String, String> attached, String virtualIp, String exit) {
+        String subnet = virtualIp == null ? null : subnetOf(virtualIp);
+        if (subnet != null) attached.putIfAbsent(subnet, exit);
+    }
+
+    /**
+     * @return the virtual IP through which a router reaches a neighbor router, preferring one on
+     *         a subnet they share, or null if the neighbor has no virtual IP
+     */
+    private static String neighborAddress(Config config, String routerId, String neighborId) {
+        List<String> addresses = config.getVirtualIps(neighborId);
+        for (String address : addresses) {
+            String subnet = subnetOf(address);
+            if (subnet != null && hasAddressIn(config, routerId, subnet)) return address;
+        }
+        return addresses.isEmpty() ? null : addresses.getFirst();
+    }
+
+    private static boolean hasAddressIn(Config config, String deviceId, String subnet) {
+        for (String address : config.getVirtualIps(deviceId)) {
+            if (subnet.equals(subnetOf(address))) return true;
+        }
+        return false;
+    }
+
+    private static String subnetOf(String virtualIp) {
+        int dotIndex = virtualIp.lastIndexOf('.');
+        return dotIndex > 0 ? virtualIp.substring(0, dotIndex) : null;
+    }
+
+    /**
+     * A hash of everything the routes are computed from, so that a FIB file compiled from
+     * another version of the config is not loaded. Devices and links are combined so that
+     * their order in the config does not matter.
+     */
+    static long fingerprint(Config config) {
+        long hash = 0;
+        for (String id : config.deviceIds()) {
+            long deviceHash = mix(mix(0xcbf29ce484222325L, id), String.valueOf(config.getType(id)));
+            for (String address : config.getVirtualIps(id)) {
+                deviceHash = mix(deviceHash, address);
+            }
+            long linkHash = 0;
+            for (String neighborId : config.getNeighbors(id)) {
+                linkHash += mix(deviceHash, neighborId);
+            }
+            hash += deviceHash * 31 + linkHash;
+        }
+        return hash;
+    }
+
+    private static long mix(long hash, String s) {
+        hash = (hash ^ s.hashCode()) * 0x100000001b3L;
+        hash = (hash ^ s.length()) * 0x100000001b3L;
+        return hash ^ (hash >>> 29);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getShort() & 0xFFFF];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the position after the varint
+     */
+    private static int putVarint(byte[] dst, int at, int value) {
+        while ((value & ~0x7F) != 0) {
+            dst[at++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        dst[at++] = (byte) value;
+        return at;
+    }
+
+    private static int readVarint(ByteBuffer buf) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buf.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        String configFile = args.length > 0 ? args[0] : "resources/config.json";
+        Path fibFile = Path.of(args.length > 1 ? args[1] : "resources/fib.bin");
+
+        long start = System.nanoTime();
+        Config config = new Config(configFile);
+        long parsed = System.nanoTime();
+        Result result = compile(config);
+        long compiled = System.nanoTime();
+        result.write(fibFile);
+        long written = System.nanoTime();
+
+        log.info("{}", String.format("Parsed %d device(s) in %d ms, compiled in %d ms, wrote %d route(s) " +
+                        "to %s (%d bytes) in %d ms", config.deviceIds().size(), TimeUnit.NANOSECONDS.toMillis(parsed - start),
+                TimeUnit.NANOSECONDS.toMillis(compiled - parsed), result.routeCount(), fibFile, Files.size(fibFile),
+                TimeUnit.NANOSECONDS.toMillis(written - compiled)));
+    }
+}
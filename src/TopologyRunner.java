@@ -0,0 +1,114 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the devices of a config in one JVM, each on its own virtual thread, connected through a
+ * {@link LocalFabric}. Devices that are not run here are reached over UDP as usual, so a
+ * topology can be split between several runners or mixed with standalone devices.
+ * <p>
+ * Usage:
+ * <pre>
+ * java TopologyRunner [configFile] [--only id,id,...] [--traffic hostId=profile]...
+ *                     [--interactive hostId] [--log-level level] [--log-file file]
+ * </pre>
+ * Hosts only receive unless they are given a traffic profile or are the interactive host,
+ * which reads messages from stdin. Device types come from the "type" field of the config.
+ */
+public class TopologyRunner {
+    private static final long STATS_INTERVAL_SECONDS = 30;
+
+    private static final Log log = Log.get("topology");
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String configFile = "resources/config.json";
+        Set<String> only = null;
+        Map<String, String> traffic = new HashMap<>();
+        String interactiveHost = null;
+        String logLevel = null;
+        String logFile = null;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--only" -> only = new TreeSet<>(List.of(args[++i].split(",")));
+                case "--traffic" -> {
+                    String[] hostAndProfile = args[++i].split("=", 2);
+                    traffic.put(hostAndProfile[0], hostAndProfile[1]);
+                }
+                case "--interactive" -> interactiveHost = args[++i];
+                case "--log-level" -> logLevel = args[++i];
+                case "--log-file" -> logFile = args[++i];
+                default -> configFile = args[i];
+            }
+        }
+
+        long loadNanos = System.nanoTime();
+        Config config = new Config(configFile);
+        loadNanos = System.nanoTime() - loadNanos;
+        Log.configure(logLevel, logFile);
+        log.info("Loaded {} device(s) in {} ms{}", config.deviceIds().size(), TimeUnit.NANOSECONDS.toMillis(loadNanos),
+                config.loadedFromSnapshot() ? " from the snapshot" : "");
+        Set<String> local = new TreeSet<>(only != null ? only : config.deviceIds());
+        LocalFabric fabric = new LocalFabric(config, local);
+
+        long startNanos = System.nanoTime();
+        Map<String, Runnable> devices = new HashMap<>();
+        for (String id : local) {
+            String type = config.getType(id);
+            if (type == null) {
+                log.warn("Skipping device {} without a type", id);
+                continue;
+            }
+            switch (type) {
+                case "switch" -> {
+                    Switch sw = new Switch(id);
+                    sw.initialize(config, fabric);
+                    devices.put(id, sw::start);
+                }
+                case "router" -> {
+                    Router router = new Router(id);
+                    router.initialize(config, fabric);
+                    devices.put(id, router::start);
+                }
+                case "host" -> {
+                    Host host = new Host(id);
+                    host.initialize(config, fabric);
+                    String profile = traffic.get(id);
+                    boolean interactive = id.equals(interactiveHost);
+                    devices.put(id, () -> {
+                        try {
+                            host.start(profile, interactive);
+                        } catch (IOException e) {
+                            log.error("Host {} stopped: {}", id, e.getMessage());
+                        }
+                    });
+                }
+                default -> log.warn("Skipping device {} of unknown type {}", id, type);
+            }
+        }
+        long initializedNanos = System.nanoTime();
+
+        // Every device is registered in the fabric before any of them starts sending
+        List<Thread> threads = new ArrayList<>();
+        devices.forEach((id, device) -> threads.add(Thread.ofVirtual().name(id).start(device)));
+
+        int remote = 0;
+        for (String id : local) {
+            if (fabric.hasRemoteNeighbor(id)) remote++;
+        }
+        log.info("Started {} device(s) in {} ms ({} with remote neighbors over UDP)", threads.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos), remote);
+        log.info("Initialization took {} ms", TimeUnit.NANOSECONDS.toMillis(initializedNanos - startNanos));
+
+        // Virtual threads do not keep the JVM alive
+        while (true) {
+            TimeUnit.SECONDS.sleep(STATS_INTERVAL_SECONDS);
+            log.info("Fabric: delivered={} dropped={}", fabric.delivered(), fabric.dropped());
+        }
+    }
+}
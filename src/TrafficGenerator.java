@@ -0,0 +1,289 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiFunction;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Non-interactive Host sender that plays a traffic profile at a target rate.
+ * <p>
+ * A profile is a JSON file:
+ * <pre>
+ * { "duration": 10,
+ *   "flows": [ { "destination": "subnet3.C", "size": 256, "rate": 5000, "burst": 8 } ] }
+ * </pre>
+ * {@code size} is the payload size in bytes, {@code rate} is frames per second and
+ * {@code burst} is how many frames go out back to back each time the flow is due.
+ * <p>
+ * Every payload starts with a fixed-width text header, {@code TG|flow|seq|sendTime|}, followed
+ * by padding, so the receiver can measure loss, reordering and one-way latency. The frame of
+ * each flow is encoded once; only the sequence number and timestamp are patched in place
+ * before each send.
+ * <p>
+ * A flow with {@code "reliable": true} instead sends messages of {@code size} bytes through the
+ * {@link ReliableTransport} on its own thread, as fast as the window allows; its goodput and
+ * retransmissions are reported by the transport.
+ */
+public class TrafficGenerator implements Runnable {
+    static final byte[] MAGIC = "TG|".getBytes(StandardCharsets.US_ASCII);
+    static final int FLOW_OFFSET = 3;
+    static final int SEQ_OFFSET = 8;
+    static final int TIME_OFFSET = 25;
+    static final int HEADER_LENGTH = 42;
+
+    private static final long PARK_THRESHOLD_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    // Wall clock with nanoTime resolution, comparable between processes on the same machine
+    private static final long CLOCK_OFFSET = epochNanos(Instant.now()) - System.nanoTime();
+
+    private final List<FlowSpec> flows;
+    private final long durationNanos;
+    private final NetworkLayer networkLayer;
+    private final InetSocketAddress switchAddress;
+    private final BiFunction<String, String, ByteBuffer> encoder;
+    private final Metrics.PortCounters uplink;
+    private final int mtu;
+    private final ReliableTransport transport;
+    private final Log log;
+
+    /**
+     * @param encoder builds a frame from (destination IP, payload)
+     * @param mtu   MTU of the uplink; generated frames are not fragmented, so must fit in it
+     */
+    public TrafficGenerator(String profileFile, NetworkLayer networkLayer, InetSocketAddress switchAddress,
+                            BiFunction<String, String, ByteBuffer> encoder, Metrics.PortCounters uplink,
+                            int mtu, ReliableTransport transport, Log log) throws IOException {
+        JSONObject json = new JSONObject(Files.readString(Path.of(profileFile)));
+        this.durationNanos = TimeUnit.MILLISECONDS.toNanos((long) (json.optDouble("duration", 10) * 1000));
+        this.flows = new ArrayList<>();
+        JSONArray flowArray = json.getJSONArray("flows");
+        for (int i = 0; i < flowArray.length(); i++) {
+            JSONObject obj = flowArray.getJSONObject(i);
+            flows.add(new FlowSpec(obj.getString("destination"), obj.optInt("size", 64),
+                    obj.optDouble("rate", 0), obj.optInt("burst", 1), obj.optBoolean("reliable")));
+        }
+        this.networkLayer = networkLayer;
+        this.switchAddress = switchAddress;
+        this.encoder = encoder;
+        this.uplink = uplink;
+        this.mtu = mtu;
+        this.transport = transport;
+        this.log = log;
+    }
+
+    /**
+     * @return whether the message is a traffic generator payload
+     */
+    static boolean isGenerated(byte[] message) {
+        if (message.length < HEADER_LENGTH) return false;
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (message[i] != MAGIC[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the current time in nanoseconds since the epoch
+     */
+    static long now() {
+        return CLOCK_OFFSET + System.nanoTime();
+    }
+
+    private static long epochNanos(Instant instant) {
+        return TimeUnit.SECONDS.toNanos(instant.getEpochSecond()) + instant.getNano();
+    }
+
+    @Override
+    public void run() {
+        Flow[] active = new Flow[flows.size()];
+        List<Thread> reliableFlows = new ArrayList<>();
+        Map<String, Integer> flowIds = new HashMap<>();
+        long start = System.nanoTime();
+        long end = start + durationNanos;
+        for (int i = 0; i < active.length; i++) {
+            FlowSpec spec = flows.get(i);
+            // Flows to the same destination are told apart by id
+            int id = flowIds.merge(spec.destination, 1, Integer::sum) - 1;
+            if (spec.reliable) {
+                Thread thread = new Thread(() -> runReliable(spec, id, end), "reliable-flow-" + id);
+                thread.setDaemon(true);
+                reliableFlows.add(thread);
+                continue;
+            }
+            try {
+                active[i] = new Flow(spec, id);
+            } catch (IllegalArgumentException e) {
+                log.error("Skipping flow to {}: {}", spec.destination, e.getMessage());
+            }
+        }
+
+        log.info("Traffic generator starting {} flow(s) for {} ms", active.length,
+                TimeUnit.NANOSECONDS.toMillis(durationNanos));
+        reliableFlows.forEach(Thread::start);
+        for (Flow flow : active) {
+            if (flow != null) flow.nextDue = start;
+        }
+
+        while (true) {
+            Flow due = null;
+            for (Flow flow : active) {
+                if (flow != null && (due == null || flow.nextDue - due.nextDue < 0)) {
+                    due = flow;
+                }
+            }
+            if (due == null || due.nextDue - end >= 0) break;
+
+            long wait = due.nextDue - System.nanoTime();
+            if (wait > PARK_THRESHOLD_NANOS) {
+                LockSupport.parkNanos(wait - PARK_THRESHOLD_NANOS);
+                continue;
+            }
+            while (due.nextDue - System.nanoTime() > 0) {
+                Thread.onSpinWait();
+            }
+
+            for (int i = 0; i < due.spec.burst; i++) {
+                due.send();
+            }
+            due.nextDue += due.burstIntervalNanos;
+        }
+
+        for (Thread thread : reliableFlows) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        for (Flow flow : active) {
+            if (flow == null) continue;
+            log.info("{}", String.format("Traffic to %s/%d: sent %d frames (%d failed) in %.2f s, %.1f frames/s",
+                    flow.spec.destination, flow.id, flow.sent, flow.failed, seconds, flow.sent / seconds));
+        }
+    }
+
+    /**
+     * Sends messages through the reliable transport until {@code end}.
+     */
+    private void runReliable(FlowSpec spec, int id, long end) {
+        if (spec.size < HEADER_LENGTH) {
+            log.error("Skipping flow to {}: size must be at least {}", spec.destination, HEADER_LENGTH);
+            return;
+        }
+        byte[] message = payload(id, spec.size).getBytes(StandardCharsets.US_ASCII);
+        long start = System.nanoTime();
+        long sent = 0;
+        while (System.nanoTime() - end < 0) {
+            try {
+                transport.send(spec.destination, message);
+                sent++;
+            } catch (IOException | IllegalArgumentException e) {
+                log.error("Reliable flow to {} failed: {}", spec.destination, e.getMessage());
+                break;
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        log.info("{}", String.format("Reliable traffic to %s/%d: sent %d message(s) of %d bytes in %.2f s, %.2f Mbit/s",
+                spec.destination, id, sent, spec.size, seconds, sent * spec.size * 8 / seconds / 1e6));
+    }
+
+    private static String payload(int id, int size) {
+        StringBuilder payload = new StringBuilder(size).append("TG|");
+        appendHex(payload, id, 4).append('|');
+        appendHex(payload, 0, 16).append('|');
+        appendHex(payload, 0, 16).append('|');
+        while (payload.length() < size) {
+            payload.append('.');
+        }
+        return payload.toString();
+    }
+
+    private record FlowSpec(String destination, int size, double rate, int burst, boolean reliable) {}
+
+    private class Flow {
+        final FlowSpec spec;
+        final int id;
+        final ByteBuffer frame;
+        final int payloadOffset;
+        final long burstIntervalNanos;
+        long nextDue;
+        long seq;
+        long sent;
+        long failed;
+
+        Flow(FlowSpec spec, int id) {
+            if (spec.size < HEADER_LENGTH) {
+                throw new IllegalArgumentException("size must be at least " + HEADER_LENGTH);
+            }
+            if (spec.rate <= 0 || spec.burst < 1) {
+                throw new IllegalArgumentException("rate must be positive and burst at least 1");
+            }
+            this.spec = spec;
+            this.id = id;
+            this.burstIntervalNanos = (long) (1e9 * spec.burst / spec.rate);
+
+            ByteBuffer encoded = encoder.apply(spec.destination, payload(id, spec.size));
+            if (encoded.remaining() > mtu) {
+                throw new IllegalArgumentException("frame of " + encoded.remaining() + " bytes exceeds the MTU of " +
+                        mtu);
+            }
+            this.frame = encoded;
+            this.payloadOffset = encoded.limit() - spec.size;
+        }
+
+        void send() {
+            writeHex(frame, payloadOffset + SEQ_OFFSET, seq++, 16);
+            writeHex(frame, payloadOffset + TIME_OFFSET, now(), 16);
+            try {
+                networkLayer.send(frame, switchAddress);
+                uplink.tx(frame.remaining());
+                sent++;
+            } catch (IOException e) {
+                failed++;
+            }
+        }
+    }
+
+    private static StringBuilder appendHex(StringBuilder sb, long value, int digits) {
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+            sb.append(Character.forDigit((int) (value >>> shift) & 0xF, 16));
+        }
+        return sb;
+    }
+
+    private static void writeHex(ByteBuffer buf, int at, long value, int digits) {
+        for (int i = digits - 1; i >= 0; i--) {
+            buf.put(at + i, (byte) Character.forDigit((int) value & 0xF, 16));
+            value >>>= 4;
+        }
+    }
+
+    /**
+     * Reads a fixed-width hex field written by this generator.
+     * @return the value, or -1 if the field is not hex
+     */
+    static long readHex(ByteBuffer buf, int at, int digits) {
+        long value = 0;
+        for (int i = 0; i < digits; i++) {
+            int d = Character.digit(buf.get(at + i), 16);
+            if (d < 0) return -1;
+            value = (value << 4) | d;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,114 @@
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Receiver side of {@link TrafficGenerator}: per-source throughput, loss, reordering and
+ * one-way latency, logged periodically while traffic is arriving.
+ * <p>
+ * A source is a (srcIP, flow id) pair. Loss is estimated from the highest sequence number
+ * seen, so it only counts frames that were overtaken by a later one; a frame that arrives
+ * after a later one counts as reordered.
+ */
+public class TrafficStats {
+    // One reporting thread for every host in the process
+    private static ScheduledExecutorService reporter;
+
+    private final Map<String, Source> sources = new LinkedHashMap<>();
+    private final Log log;
+
+    public TrafficStats(Log log) {
+        this.log = log;
+    }
+
+    /**
+     * Logs a report every {@code intervalSeconds} for the sources that received traffic since
+     * the previous one.
+     */
+    public void startReporting(int intervalSeconds) {
+        reporter().scheduleAtFixedRate(this::report, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    private static synchronized ScheduledExecutorService reporter() {
+        if (reporter == null) {
+            reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "traffic-report");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return reporter;
+    }
+
+    /**
+     * Records the frame in {@code view} if its payload was written by a traffic generator.
+     * @return false if the payload is not generator traffic
+     */
+    public boolean record(FrameCodec.View view) {
+        ByteBuffer buf = view.buffer();
+        int p = view.offset(FrameCodec.PAYLOAD);
+        if (view.length(FrameCodec.PAYLOAD) < TrafficGenerator.HEADER_LENGTH) return false;
+        for (int i = 0; i < TrafficGenerator.MAGIC.length; i++) {
+            if (buf.get(p + i) != TrafficGenerator.MAGIC[i]) return false;
+        }
+        long flow = TrafficGenerator.readHex(buf, p + TrafficGenerator.FLOW_OFFSET, 4);
+        long seq = TrafficGenerator.readHex(buf, p + TrafficGenerator.SEQ_OFFSET, 16);
+        long sentAt = TrafficGenerator.readHex(buf, p + TrafficGenerator.TIME_OFFSET, 16);
+        if (flow < 0 || seq < 0 || sentAt < 0) return false;
+
+        long receivedAt = TrafficGenerator.now();
+        String key = view.field(FrameCodec.SRC_IP) + "/" + flow;
+        synchronized (this) {
+            sources.computeIfAbsent(key, k -> new Source()).record(seq, view.frameLength(), receivedAt - sentAt);
+        }
+        return true;
+    }
+
+    synchronized void report() {
+        long now = System.nanoTime();
+        sources.forEach((key, source) -> {
+            if (source.intervalFrames == 0) return;
+            double seconds = (now - source.intervalStart) / 1e9;
+            long expected = source.highestSeq + 1;
+            long lost = Math.max(0, expected - source.received);
+            log.info("{}", String.format("Traffic from %s: rx=%d %.1f frames/s %.2f Mbit/s lost=%d (%.2f%%) " +
+                            "reordered=%d latency us p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f",
+                    key, source.received, source.intervalFrames / seconds,
+                    source.intervalBytes * 8 / seconds / 1e6, lost, 100.0 * lost / expected, source.reordered,
+                    micros(source.latency.percentile(0.5)), micros(source.latency.percentile(0.9)),
+                    micros(source.latency.percentile(0.99)), micros(source.latency.percentile(0.999))));
+            source.intervalStart = now;
+            source.intervalFrames = 0;
+            source.intervalBytes = 0;
+        });
+    }
+
+    private static double micros(long nanos) {
+        return nanos / 1e3;
+    }
+
+    private static final class Source {
+        long received;
+        long highestSeq = -1;
+        long reordered;
+        long intervalStart = System.nanoTime();
+        long intervalFrames;
+        long intervalBytes;
+        final Metrics.Histogram latency = new Metrics.Histogram();
+
+        void record(long seq, int bytes, long latencyNanos) {
+            received++;
+            intervalFrames++;
+            intervalBytes += bytes;
+            if (seq > highestSeq) {
+                highestSeq = seq;
+            } else {
+                reordered++;
+            }
+            latency.record(latencyNanos);
+        }
+    }
+}